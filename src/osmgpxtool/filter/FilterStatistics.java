@@ -0,0 +1,339 @@
+package osmgpxtool.filter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import osmgpxtool.util.TimeTools;
+
+/**
+ * Statistics of a {@link GpxFilter}: tracks per result and rejection reason,
+ * histograms of the points and segments per track and the number of points
+ * inside and outside the bounding box or polygon. Gpx files rejected by a
+ * predicate on their metadata are counted per file, as their tracks are not
+ * parsed. All counters are striped over several cache lines, so that the
+ * parse and filter threads of the pipeline do not contend for the same
+ * counter.
+ *
+ * The points inside and outside are only counted, if enabled by
+ * {@link #setCountingPoints(boolean)}, as it needs another pass over the
+ * points of every track. The statistics can be exported as JSON.
+ */
+public class FilterStatistics {
+	private static final int STRIPES = stripes();
+	// longs per cache line
+	private static final int PADDING = 8;
+	// bucket 0: 0, bucket k: 2^(k-1) to 2^k - 1
+	private static final int BUCKETS = 32;
+
+	private Counter passed = new Counter();
+	private Counter rejected = new Counter();
+	private Counter filesRejected = new Counter();
+	// rejections and name per result flag
+	private Counter[] reasons = new Counter[31];
+	private String[] reasonNames = new String[31];
+	private Counter pointsInside = new Counter();
+	private Counter pointsOutside = new Counter();
+	private Histogram pointsPerTrack = new Histogram();
+	private Histogram segmentsPerTrack = new Histogram();
+	private volatile boolean countingPoints = false;
+
+	public FilterStatistics() {
+		setReason(GpxFilter.REJECTED_BBOX, "bbox");
+		setReason(GpxFilter.REJECTED_ELE, "elevation");
+		setReason(GpxFilter.REJECTED_EQUAL_ELE, "equal_elevation");
+	}
+
+	/**
+	 * registers a rejection reason. Must be called before the statistics are
+	 * used.
+	 *
+	 * @param flag
+	 *            result flag of the reason
+	 * @param name
+	 */
+	void setReason(int flag, String name) {
+		int bit = Integer.numberOfTrailingZeros(flag);
+		reasons[bit] = new Counter();
+		reasonNames[bit] = name;
+	}
+
+	private static int stripes() {
+		int stripes = 1;
+		while (stripes < 2 * Runtime.getRuntime().availableProcessors() && stripes < 64) {
+			stripes *= 2;
+		}
+		return stripes;
+	}
+
+	/**
+	 * @return index of the stripe of the current thread
+	 */
+	private static int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & (STRIPES - 1);
+	}
+
+	/**
+	 * counts the result of a track. This method is thread-safe.
+	 *
+	 * @param result
+	 *            {@link GpxFilter#PASSED} or a combination of the REJECTED_*
+	 *            flags
+	 * @param segments
+	 *            number of segments of the track or -1, if unknown
+	 * @param points
+	 *            number of points of the track or -1, if unknown
+	 * @param inside
+	 *            number of points inside the bounding box or polygon or -1,
+	 *            if not counted
+	 */
+	public void record(int result, int segments, int points, int inside) {
+		addReasons(result);
+		if (result == GpxFilter.PASSED) {
+			passed.add(1);
+		} else {
+			rejected.add(1);
+		}
+		if (segments >= 0) {
+			segmentsPerTrack.add(segments);
+		}
+		if (points >= 0) {
+			pointsPerTrack.add(points);
+			if (inside >= 0) {
+				pointsInside.add(inside);
+				pointsOutside.add(points - inside);
+			}
+		}
+	}
+
+	/**
+	 * counts a gpx file, which was rejected by a predicate on its metadata.
+	 * This method is thread-safe.
+	 *
+	 * @param result
+	 *            result flag of the predicate
+	 */
+	public void recordFile(int result) {
+		addReasons(result);
+		filesRejected.add(1);
+	}
+
+	private void addReasons(int result) {
+		for (int bits = result; bits != 0; bits &= bits - 1) {
+			reasons[Integer.numberOfTrailingZeros(bits)].add(1);
+		}
+	}
+
+	/**
+	 * @param countingPoints
+	 *            true, if the points inside and outside are counted
+	 */
+	public void setCountingPoints(boolean countingPoints) {
+		this.countingPoints = countingPoints;
+	}
+
+	public boolean isCountingPoints() {
+		return countingPoints;
+	}
+
+	public long getPassed() {
+		return passed.sum();
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return number of gpx files rejected by their metadata
+	 */
+	public long getFilesRejected() {
+		return filesRejected.sum();
+	}
+
+	/**
+	 * @param flag
+	 *            result flag of a rejection reason
+	 * @return number of tracks or, for predicates on the metadata, gpx files
+	 *         rejected for the given reason
+	 */
+	public long getRejected(int flag) {
+		Counter counter = reasons[Integer.numberOfTrailingZeros(flag)];
+		return counter == null ? 0 : counter.sum();
+	}
+
+	public long getRejectedBbox() {
+		return getRejected(GpxFilter.REJECTED_BBOX);
+	}
+
+	public long getRejectedEle() {
+		return getRejected(GpxFilter.REJECTED_ELE);
+	}
+
+	public long getEqualEle() {
+		return getRejected(GpxFilter.REJECTED_EQUAL_ELE);
+	}
+
+	public long getPointsInside() {
+		return pointsInside.sum();
+	}
+
+	public long getPointsOutside() {
+		return pointsOutside.sum();
+	}
+
+	/**
+	 * writes the statistics as JSON file.
+	 *
+	 * @param file
+	 * @param input
+	 *            name of the input file
+	 * @param statistics
+	 *            statistics of the filter
+	 * @param regions
+	 *            statistics of the filter of each region or null
+	 * @throws IOException
+	 */
+	public static void writeJson(File file, String input, FilterStatistics statistics,
+			Map<String, FilterStatistics> regions) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"input\": ");
+		appendString(sb, input);
+		sb.append(",\n  \"created\": ");
+		appendString(sb, TimeTools.toXmlTime(System.currentTimeMillis()));
+		sb.append(",\n  \"filter\": ");
+		statistics.appendJson(sb, "  ");
+		if (regions != null) {
+			sb.append(",\n  \"regions\": {");
+			boolean first = true;
+			for (Map.Entry<String, FilterStatistics> region : regions.entrySet()) {
+				sb.append(first ? "\n    " : ",\n    ");
+				appendString(sb, region.getKey());
+				sb.append(": ");
+				region.getValue().appendJson(sb, "    ");
+				first = false;
+			}
+			sb.append("\n  }");
+		}
+		sb.append("\n}\n");
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(sb.toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	private void appendJson(StringBuilder sb, String indent) {
+		String inner = indent + "  ";
+		sb.append("{\n");
+		sb.append(inner).append("\"tracks_passed\": ").append(getPassed()).append(",\n");
+		sb.append(inner).append("\"tracks_rejected\": ").append(getRejected()).append(",\n");
+		sb.append(inner).append("\"files_rejected\": ").append(getFilesRejected()).append(",\n");
+		for (int bit = 0; bit < reasons.length; bit++) {
+			if (reasons[bit] != null) {
+				sb.append(inner);
+				appendString(sb, "rejected_" + reasonNames[bit]);
+				sb.append(": ").append(reasons[bit].sum()).append(",\n");
+			}
+		}
+		if (countingPoints) {
+			sb.append(inner).append("\"points_inside\": ").append(getPointsInside()).append(",\n");
+			sb.append(inner).append("\"points_outside\": ").append(getPointsOutside()).append(",\n");
+		}
+		sb.append(inner).append("\"points_per_track\": ");
+		pointsPerTrack.appendJson(sb);
+		sb.append(",\n").append(inner).append("\"segments_per_track\": ");
+		segmentsPerTrack.appendJson(sb);
+		sb.append("\n").append(indent).append("}");
+	}
+
+	private static void appendString(StringBuilder sb, String s) {
+		if (s == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * counter, which is striped over the threads
+	 */
+	static class Counter {
+		private AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+		void add(long x) {
+			cells.addAndGet(stripe() * PADDING, x);
+		}
+
+		long sum() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				sum += cells.get(i * PADDING);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * histogram with buckets of powers of two, which is striped over the
+	 * threads
+	 */
+	static class Histogram {
+		// buckets of a stripe followed by the sum of the values
+		private static final int ROW = BUCKETS + 1 + PADDING - 1;
+		private AtomicLongArray cells = new AtomicLongArray(STRIPES * ROW);
+
+		void add(int value) {
+			int row = stripe() * ROW;
+			cells.incrementAndGet(row + bucket(value));
+			cells.addAndGet(row + BUCKETS, value);
+		}
+
+		static int bucket(int value) {
+			return 32 - Integer.numberOfLeadingZeros(value);
+		}
+
+		long count(int bucket) {
+			long count = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				count += cells.get(i * ROW + bucket);
+			}
+			return count;
+		}
+
+		private void appendJson(StringBuilder sb) {
+			long total = 0;
+			StringBuilder buckets = new StringBuilder();
+			for (int b = 0; b < BUCKETS; b++) {
+				long count = count(b);
+				if (count > 0) {
+					long min = b == 0 ? 0 : 1L << (b - 1);
+					long max = b == 0 ? 0 : (1L << b) - 1;
+					buckets.append(buckets.length() == 0 ? "" : ", ");
+					buckets.append("{\"min\": ").append(min).append(", \"max\": ").append(max)
+							.append(", \"count\": ").append(count).append('}');
+					total += count;
+				}
+			}
+			sb.append("{\"count\": ").append(total).append(", \"sum\": ").append(count(BUCKETS))
+					.append(", \"buckets\": [").append(buckets).append("]}");
+		}
+	}
+}
@@ -12,18 +12,33 @@
 
 package osmgpxtool.filter;
 
-import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import osmgpxtool.filter.gpx.GpxTrace;
+import osmgpxtool.filter.gpx.GpxTrack;
 import osmgpxtool.filter.gpx.schema10.Gpx.Trk;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg.Trkpt;
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 
+/**
+ * Filter of gps tracks. The criteria of the filter are {@link TrackPredicate}s,
+ * which are evaluated in the order of their estimated cost: predicates on the
+ * metadata of the gpx file first, then the bounding box of the track, then
+ * the predicates, which look at every point. The evaluation stops at the first
+ * predicate, which rejects the track.
+ * 
+ * The bounding box (or polygon or regions) and the elevation check are added
+ * by the constructors, further predicates by
+ * {@link #addPredicate(TrackPredicate)}.
+ */
 public class GpxFilter {
 	static Logger LOGGER = LoggerFactory.getLogger(GpxFilter.class);
 
@@ -32,13 +47,44 @@ public class GpxFilter {
 	private Double bboxBottom;
 	private Double bboxTop;
 	private Envelope env;
+	// polygon of a region filter
+	private Region region = null;
+	// regions of a region set filter
+	private RegionSet regions = null;
 	private boolean bboxClip;
 	private boolean elevationOnly;
-	private int rejectedEle;
-	private int equalEle;
-	private int rejectedBbox;
-	private int rejected;
-	private int passed;
+	private FilterStatistics statistics = new FilterStatistics();
+	// all predicates in the order of evaluation
+	private List<Link> predicates = new ArrayList<Link>();
+	private Link[] metadataChain = new Link[0];
+	private Link[] trackChain = new Link[0];
+	private int nextFlag = REJECTED_EQUAL_ELE << 1;
+	private boolean customTrackPredicates = false;
+
+	// converts tracks of the JAXB representation, one builder per thread
+	private static final ThreadLocal<GpxTrack.Builder> BUILDERS = new ThreadLocal<GpxTrack.Builder>() {
+		@Override
+		protected GpxTrack.Builder initialValue() {
+			return new GpxTrack.Builder();
+		}
+	};
+
+	/**
+	 * result of {@link #evaluate(GpxTrack)}: track passes the filter
+	 */
+	public static final int PASSED = 0;
+	/**
+	 * result flag of {@link #evaluate(GpxTrack)}: track is outside the bounding box
+	 */
+	public static final int REJECTED_BBOX = 1;
+	/**
+	 * result flag of {@link #evaluate(GpxTrack)}: track has points without elevation
+	 */
+	public static final int REJECTED_ELE = 2;
+	/**
+	 * result flag of {@link #evaluate(GpxTrack)}: all points have the same elevation
+	 */
+	public static final int REJECTED_EQUAL_ELE = 4;
 
 	public GpxFilter(Double bboxLeft, Double bboxRight, Double bboxBottom, Double bboxTop, boolean bboxClip,
 			boolean elevationOnly) {
@@ -56,7 +102,176 @@ public class GpxFilter {
 			this.env = null;
 		}
 		printArgs();
+		initPredicates();
+	}
+
+	/**
+	 * creates the filter of a single extract region. Points are clipped at
+	 * the polygon of the region, if it is not a bounding box.
+	 * 
+	 * @param region
+	 * @param bboxClip
+	 * @param elevationOnly
+	 */
+	public GpxFilter(Region region, boolean bboxClip, boolean elevationOnly) {
+		this.env = region.getEnvelope();
+		this.bboxLeft = env.getMinX();
+		this.bboxRight = env.getMaxX();
+		this.bboxBottom = env.getMinY();
+		this.bboxTop = env.getMaxY();
+		this.region = region.isRectangle() ? null : region;
+		this.bboxClip = bboxClip;
+		this.elevationOnly = elevationOnly;
+		initPredicates();
+	}
+
+	/**
+	 * creates a filter, which passes tracks with at least one point in one
+	 * of the given regions. The tracks are written by a writer per region,
+	 * which applies the filter of its region.
+	 * 
+	 * @param regions
+	 * @param elevationOnly
+	 */
+	public GpxFilter(RegionSet regions, boolean elevationOnly) {
+		this(regions.getEnvelope().getMinX(), regions.getEnvelope().getMaxX(), regions.getEnvelope().getMinY(),
+				regions.getEnvelope().getMaxY(), false, elevationOnly);
+		this.regions = regions;
+		addPredicate(new EnvelopePredicate(), REJECTED_BBOX);
+		LOGGER.info("Extracting " + regions.size() + " regions within the bounding box");
+	}
+
+	/**
+	 * adds the predicates of the bounding box and the elevation check.
+	 */
+	private void initPredicates() {
+		if (env != null) {
+			if (region != null) {
+				// polygons are only tested for tracks near the polygon
+				addPredicate(new EnvelopePredicate(), REJECTED_BBOX);
+			}
+			addPredicate(new TrackPredicate() {
+				@Override
+				public String getName() {
+					return "bbox";
+				}
+
+				@Override
+				public int getCost() {
+					return COST_POINTS;
+				}
+
+				@Override
+				public boolean accept(GpxTrack trk, GpxFile metadata) {
+					return isInBoundingBox(trk);
+				}
+			}, REJECTED_BBOX);
+		}
+		if (elevationOnly == true) {
+			addPredicate(new TrackPredicate() {
+				@Override
+				public String getName() {
+					return "elevation";
+				}
+
+				@Override
+				public int getCost() {
+					return COST_POINTS;
+				}
+
+				@Override
+				public boolean accept(GpxTrack trk, GpxFile metadata) {
+					return hasElevation(trk);
+				}
+			}, REJECTED_ELE);
+			addPredicate(new TrackPredicate() {
+				@Override
+				public String getName() {
+					return "equal_elevation";
+				}
+
+				@Override
+				public int getCost() {
+					return COST_POINTS;
+				}
+
+				@Override
+				public boolean accept(GpxTrack trk, GpxFile metadata) {
+					return !hasEqualElevation(trk);
+				}
+			}, REJECTED_EQUAL_ELE);
+		}
 	}
+
+	/**
+	 * adds a predicate to the filter. The rejections of the predicate are
+	 * counted under its name in the statistics. Predicates must be added
+	 * before the filter is used.
+	 * 
+	 * @param predicate
+	 */
+	public void addPredicate(TrackPredicate predicate) {
+		if (nextFlag == 1 << 31) {
+			throw new IllegalStateException("Too many predicates");
+		}
+		int flag = nextFlag;
+		nextFlag <<= 1;
+		statistics.setReason(flag, predicate.getName());
+		if (predicate.getCost() >= TrackPredicate.COST_TRACK) {
+			customTrackPredicates = true;
+		}
+		addPredicate(predicate, flag);
+	}
+
+	private void addPredicate(TrackPredicate predicate, int flag) {
+		predicates.add(new Link(predicate, flag));
+		// stable, predicates of equal cost keep their order
+		Collections.sort(predicates, new Comparator<Link>() {
+			@Override
+			public int compare(Link a, Link b) {
+				return Integer.compare(a.predicate.getCost(), b.predicate.getCost());
+			}
+		});
+		List<Link> metadata = new ArrayList<Link>();
+		List<Link> track = new ArrayList<Link>();
+		for (Link link : predicates) {
+			(link.predicate.getCost() < TrackPredicate.COST_TRACK ? metadata : track).add(link);
+		}
+		metadataChain = metadata.toArray(new Link[metadata.size()]);
+		trackChain = track.toArray(new Link[track.size()]);
+	}
+
+	/**
+	 * @return names of the predicates in the order of evaluation
+	 */
+	public List<String> getPredicateNames() {
+		List<String> names = new ArrayList<String>();
+		for (Link link : predicates) {
+			names.add(link.predicate.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * @return true, if the filter has predicates on the metadata of gpx files
+	 */
+	public boolean hasMetadataPredicates() {
+		return metadataChain.length > 0;
+	}
+
+	/**
+	 * @return true, if predicates on tracks were added to the bounding box and
+	 *         elevation checks
+	 */
+	boolean hasCustomTrackPredicates() {
+		return customTrackPredicates;
+	}
+
+	/**
+	 * @return bounding box of the filter or null, if no bounding box is set.
+	 *         The bounding box of a region filter contains the polygon of the
+	 *         region.
+	 */
 public Envelope getEnvelope(){
 	return env;
 }
@@ -81,37 +296,156 @@ public Envelope getEnvelope(){
 	 * Applies the filter on the given gps-trace. It returns true, if the
 	 * gps-trace passes the filter and false if the trace is rejected. By now,
 	 * it is checked if the GPS-Traces lies within or outside a given bounding
-	 * box or if it has elevation information or not.
+	 * box or if it has elevation information or not. The result is counted in
+	 * the filter statistics.
 	 * 
 	 * 
 	 * @param gpx
 	 * @return
 	 */
 
+	public boolean check(GpxTrack trk) {
+		return record(evaluate(trk), trk);
+	}
+
+	/**
+	 * Applies the filter on a track of the given gps-trace and counts the
+	 * result in the filter statistics. If the tracks have been evaluated by
+	 * this filter before ({@link GpxTrace#setResults(GpxFilter, int[])}), the
+	 * result is not computed again.
+	 * 
+	 * @param trace
+	 * @param i
+	 *            index of the track
+	 * @return
+	 */
+	public boolean check(GpxTrace trace, int i) {
+		GpxTrack trk = trace.getTracks().get(i);
+		int[] results = trace.getResults(this);
+		return record(results != null ? results[i] : evaluate(trk), trk);
+	}
+
+	/**
+	 * Applies the filter on a track of the JAXB representation.
+	 * 
+	 * @see #check(GpxTrack)
+	 * @param trk
+	 * @return
+	 */
 	public boolean check(Trk trk) {
-		boolean isInBbox = false;
-		boolean hasEle = false;
+		return check(GpxTrack.fromTrk(trk, BUILDERS.get()));
+	}
 
-		if (bboxLeft != null && bboxBottom != null && bboxTop != null && bboxRight != null) {
-			// bounding box is set
-			isInBbox = isInBoundingBox(trk);
-		} else {
-			isInBbox = true;
+	/**
+	 * Applies the filter on a track of the JAXB representation without
+	 * counting the result.
+	 * 
+	 * @see #evaluate(GpxTrack)
+	 * @param trk
+	 * @return
+	 */
+	public int evaluate(Trk trk) {
+		return evaluate(GpxTrack.fromTrk(trk, BUILDERS.get()));
+	}
+
+	/**
+	 * Applies the predicates on tracks to the given gps-trace without
+	 * counting the result in the statistics. The predicates on the metadata
+	 * are applied by {@link #checkMetadata(GpxFile)}. This method is
+	 * thread-safe.
+	 * 
+	 * @param trk
+	 * @return {@link #PASSED} or the REJECTED_* flag of the first predicate,
+	 *         which rejects the track
+	 */
+	public int evaluate(GpxTrack trk) {
+		Link[] chain = trackChain;
+		for (int i = 0; i < chain.length; i++) {
+			if (!chain[i].predicate.accept(trk, null)) {
+				return chain[i].flag;
+			}
 		}
+		return PASSED;
+	}
 
-		if (elevationOnly == true) {
-			// elevationOnly is set.
-			hasEle = hasElevationAttribute(trk);
-		} else {
-			hasEle = true;
+	/**
+	 * Applies the predicates on the metadata to a gpx file without counting
+	 * the result. This method is thread-safe.
+	 * 
+	 * @param metadata
+	 * @return {@link #PASSED} or the flag of the first predicate, which
+	 *         rejects the file
+	 */
+	public int evaluateMetadata(GpxFile metadata) {
+		Link[] chain = metadataChain;
+		for (int i = 0; i < chain.length; i++) {
+			if (!chain[i].predicate.accept(null, metadata)) {
+				return chain[i].flag;
+			}
 		}
-		if (hasEle == true && isInBbox == true) {
-			passed++;
-			return true;
-		} else {
-			rejected++;
+		return PASSED;
+	}
+
+	/**
+	 * Applies the predicates on the metadata to a gpx file. A rejected file
+	 * is counted in the statistics. This method is thread-safe.
+	 * 
+	 * @param metadata
+	 * @return true, if the tracks of the gpx file need to be checked
+	 */
+	public boolean checkMetadata(GpxFile metadata) {
+		int result = evaluateMetadata(metadata);
+		if (result != PASSED) {
+			statistics.recordFile(result);
 			return false;
 		}
+		return true;
+	}
+
+	/**
+	 * counts the result of {@link #evaluate(GpxTrack)} in the filter statistics.
+	 * The track itself is not counted in the histograms. This method is
+	 * thread-safe.
+	 * 
+	 * @param result
+	 * @return true, if the result is {@link #PASSED}
+	 */
+	public boolean record(int result) {
+		statistics.record(result, -1, -1, -1);
+		return result == PASSED;
+	}
+
+	/**
+	 * counts the result of {@link #evaluate(GpxTrack)} and the points and
+	 * segments of the track in the filter statistics. This method is
+	 * thread-safe.
+	 * 
+	 * @param result
+	 * @param trk
+	 * @return true, if the result is {@link #PASSED}
+	 */
+	public boolean record(int result, GpxTrack trk) {
+		statistics.record(result, trk.getSegmentCount(), trk.size(),
+				statistics.isCountingPoints() ? countInside(trk) : -1);
+		return result == PASSED;
+	}
+
+	/**
+	 * @return number of points of the track inside the bounding box or
+	 *         polygon. For region sets the bounding box of all regions is
+	 *         used.
+	 */
+	private int countInside(GpxTrack trk) {
+		if (env == null) {
+			return trk.size();
+		}
+		int inside = 0;
+		for (int i = 0; i < trk.size(); i++) {
+			if (contains(trk.getLon(i), trk.getLat(i))) {
+				inside++;
+			}
+		}
+		return inside;
 	}
 
 	/**
@@ -125,7 +459,21 @@ public Envelope getEnvelope(){
 	public boolean isInBbox(Coordinate c) {
 
 		if (bboxClip && env != null) {
-			return env.contains(c);
+			return contains(c.x, c.y);
+		} else {
+			return true;
+		}
+	}
+
+	/**
+	 * @see #isInBbox(Coordinate)
+	 * @param lon
+	 * @param lat
+	 * @return
+	 */
+	public boolean isInBbox(double lon, double lat) {
+		if (bboxClip && env != null) {
+			return contains(lon, lat);
 		} else {
 			return true;
 		}
@@ -133,41 +481,39 @@ public Envelope getEnvelope(){
 
 	/**
 	 * checks if a gpx traces has elevation information. Returns true if ALL
-	 * track points of gps trace have elevation information.
+	 * track points of segments with more than one point have elevation
+	 * information.
 	 * 
-	 * @param gpx
+	 * @param trk
 	 * @return
 	 */
-	private boolean hasElevationAttribute(Trk trk) {
-
-		boolean allEqual = true;
-
-		for (Trkseg trkseg : trk.getTrkseg()) {
-			if (trkseg.getTrkpt().size() > 1) {
-				BigDecimal firstEle = trkseg.getTrkpt().get(0).getEle();
-				for (Trkpt trkpt : trkseg.getTrkpt()) {
-					BigDecimal ele = trkpt.getEle();
-					if (ele != firstEle) {
-						allEqual = false;
-					}
-					if (ele == null) {
-						rejectedEle++;
+	private boolean hasElevation(GpxTrack trk) {
+		for (int s = 0; s < trk.getSegmentCount(); s++) {
+			int start = trk.getSegmentStart(s);
+			int end = trk.getSegmentEnd(s);
+			if (end - start > 1) {
+				for (int i = start; i < end; i++) {
+					if (!trk.hasEle(i)) {
 						return false;
 					}
 				}
-			}else{
-				allEqual=false;
 			}
 		}
+		return true;
+	}
 
-		if (allEqual == false) {
-			return true;
-		} else {
-			// elevation value is the same for all trackpoints
-			equalEle++;
-			return false;
-			
-		}
+	/**
+	 * checks if the elevation value is the same for all trackpoints of every
+	 * segment. The elevations of two track points are never regarded as
+	 * equal and a segment of a single point has no equal elevation, so only
+	 * a track without segments is rejected. Only called for tracks, which
+	 * have elevation information.
+	 * 
+	 * @param trk
+	 * @return
+	 */
+	private boolean hasEqualElevation(GpxTrack trk) {
+		return trk.getSegmentCount() == 0;
 	}
 
 	/**
@@ -177,33 +523,141 @@ public Envelope getEnvelope(){
 	 * @param trk
 	 * @return
 	 */
-	private boolean isInBoundingBox(Trk trk) {
+	private boolean isInBoundingBox(GpxTrack trk) {
+		if (regions != null) {
+			return isInRegion(trk);
+		}
+		for (int i = 0; i < trk.size(); i++) {
+			if (contains(trk.getLon(i), trk.getLat(i))) {
+				return true;
+			}
+		}
 
-		for (Trkseg trkseg : trk.getTrkseg()) {
-			for (Trkpt trkpt : trkseg.getTrkpt()) {
-				BigDecimal lon = trkpt.getLon();
-				BigDecimal lat = trkpt.getLat();
-				Coordinate c = new Coordinate(lon.doubleValue(), lat.doubleValue());
-				if (env.contains(c)) {
+		// no point is within bounding box
+		return false;
+	}
+
+	/**
+	 * checks whether at least one point of the track is within one of the
+	 * regions. Only the regions, whose bounding box intersects the bounding
+	 * box of the track, are tested.
+	 */
+	private boolean isInRegion(GpxTrack trk) {
+		if (trk.size() == 0) {
+			return false;
+		}
+		List<Region> candidates = regions.query(trk.getEnvelope());
+		if (candidates.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < trk.size(); i++) {
+			for (Region r : candidates) {
+				if (r.contains(trk.getLon(i), trk.getLat(i))) {
 					return true;
 				}
 			}
 		}
-
-		// no point is within bounding box
-		rejectedBbox++;
 		return false;
 	}
 
+	/**
+	 * @return true, if the point is in the bounding box or in the polygon of
+	 *         the region
+	 */
+	boolean contains(double lon, double lat) {
+		if (region != null) {
+			return region.contains(lon, lat);
+		}
+		return env.contains(lon, lat);
+	}
+
 	public void printStats() {
-		LOGGER.info("Gpx traces passed filter: " + passed);
-		LOGGER.info("Gpx traces rejected: " + rejected);
-		LOGGER.info("Gpx traces not in Bbox: " + rejectedBbox);
-		LOGGER.info("Gpx traces no elevation attribute: " + rejectedEle);
-		LOGGER.info("Gpx traces with equal elevation: " + equalEle);
+		LOGGER.info("Gpx traces passed filter: " + statistics.getPassed());
+		LOGGER.info("Gpx traces rejected: " + statistics.getRejected());
+		LOGGER.info("Gpx traces not in Bbox: " + statistics.getRejectedBbox());
+		LOGGER.info("Gpx traces no elevation attribute: " + statistics.getRejectedEle());
+		LOGGER.info("Gpx traces with equal elevation: " + statistics.getEqualEle());
+		if (statistics.isCountingPoints()) {
+			LOGGER.info("Points inside: " + statistics.getPointsInside() + ", outside: "
+					+ statistics.getPointsOutside());
+		}
+	}
+
+	/**
+	 * @return number of tracks, which passed the filter
+	 */
+	public long getPassed() {
+		return statistics.getPassed();
+	}
+
+	/**
+	 * @return number of tracks, which were rejected by the filter
+	 */
+	public long getRejected() {
+		return statistics.getRejected();
+	}
+
+	public FilterStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return regions of a region set filter or null
+	 */
+	public RegionSet getRegions() {
+		return regions;
+	}
+
+	/**
+	 * @return true, if tracks are clipped at the bounding box or polygon
+	 * @see TrackClipper
+	 */
+	public boolean isClipping() {
+		return bboxClip && env != null;
+	}
+
+	/**
+	 * @return true, if the filter has no polygon
+	 */
+	boolean isRectangle() {
+		return region == null;
 	}
 
 	public boolean isElevationOnly() {
 		return elevationOnly;
 	}
+
+	/**
+	 * rejects tracks, whose bounding box does not intersect the bounding box
+	 * of the filter
+	 */
+	private class EnvelopePredicate implements TrackPredicate {
+		@Override
+		public String getName() {
+			return "envelope";
+		}
+
+		@Override
+		public int getCost() {
+			return COST_ENVELOPE;
+		}
+
+		@Override
+		public boolean accept(GpxTrack trk, GpxFile metadata) {
+			return trk.size() > 0 && env.intersects(trk.getEnvelope());
+		}
+	}
+
+	/**
+	 * predicate of the chain with its result flag
+	 */
+	private static class Link {
+		private TrackPredicate predicate;
+		private int flag;
+
+		Link(TrackPredicate predicate, int flag) {
+			this.predicate = predicate;
+			this.flag = flag;
+		}
+	}
 }
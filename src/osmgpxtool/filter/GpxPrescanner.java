@@ -0,0 +1,539 @@
+package osmgpxtool.filter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Rejects gpx files on the byte level before they are parsed. The scanner
+ * follows the trk, trkseg, trkpt and ele elements of the raw bytes, reads the
+ * lat and lon attributes of the track points and applies the checks of
+ * {@link GpxFilter} to every track:
+ * <ul>
+ * <li>bounding box: no point of the track is inside the bounding box or
+ * polygon</li>
+ * <li>elevation: a segment with more than one point has a point without ele
+ * element, or the track has no segment</li>
+ * </ul>
+ * A gpx file is rejected only if every track is rejected by one of these
+ * checks. The elevation values themselves are not needed.
+ *
+ * The scanner never rejects a file, which passes the filter after parsing. If
+ * the bytes contain anything the scanner does not understand (e.g. a
+ * document type with internal subset, entity references in coordinates or an
+ * encoding other than UTF-8 or ASCII), the file is passed to the parser.
+ * Elements, which the parser skips (e.g. comments, extensions), may only
+ * make the scanner pass more files.
+ *
+ * A scanner is not thread-safe.
+ */
+public class GpxPrescanner {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// exact powers of ten for the fast path of the coordinate parser
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private static final byte[] GPX = "gpx".getBytes(ASCII);
+	private static final byte[] TRK = "trk".getBytes(ASCII);
+	private static final byte[] TRKSEG = "trkseg".getBytes(ASCII);
+	private static final byte[] TRKPT = "trkpt".getBytes(ASCII);
+	private static final byte[] ELE = "ele".getBytes(ASCII);
+
+	private GpxFilter filter;
+	private Envelope env;
+	private boolean elevationOnly;
+
+	private ByteBuffer in;
+	private int limit;
+	private boolean unknown;
+
+	// filter results, segments, points and points inside of the scanned
+	// tracks
+	private int[] results = new int[8];
+	private int[] trackSegments = new int[8];
+	private int[] trackPoints = new int[8];
+	private int[] trackInside = new int[8];
+	private int tracks;
+
+	// state of the current track
+	private int skipDepth;
+	private boolean inTrack;
+	private boolean inPoint;
+	private boolean pointHasEle;
+	private int segments;
+	private int segmentPoints;
+	private int segmentEle;
+	private int points;
+	private int inside;
+	private boolean trackInBbox;
+	private boolean trackMissingEle;
+
+	// coordinates of the last track point
+	private double lat;
+	private double lon;
+
+	/**
+	 * @param filter
+	 *            filter, whose checks are applied
+	 */
+	public GpxPrescanner(GpxFilter filter) {
+		this.filter = filter;
+		this.env = filter.getEnvelope();
+		this.elevationOnly = filter.isElevationOnly();
+	}
+
+	/**
+	 * @return true, if the filter has checks, which can be applied by a
+	 *         scanner
+	 */
+	public static boolean isApplicable(GpxFilter filter) {
+		// other predicates on tracks may reject a track first
+		return (filter.getEnvelope() != null || filter.isElevationOnly()) && !filter.hasCustomTrackPredicates();
+	}
+
+	/**
+	 * scans the remaining bytes of the given buffer. The position of the
+	 * buffer is not changed. If the file is rejected, the results of its
+	 * tracks are counted in the filter statistics.
+	 *
+	 * @param content
+	 *            gpx file
+	 * @return true, if no track of the file can pass the filter
+	 */
+	public boolean reject(ByteBuffer content) {
+		int result = scan(content);
+		in = null;
+		if (result != GpxFilter.PASSED) {
+			FilterStatistics statistics = filter.getStatistics();
+			for (int t = 0; t < tracks; t++) {
+				statistics.record(results[t], trackSegments[t], trackPoints[t],
+						statistics.isCountingPoints() ? trackInside[t] : -1);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return {@link GpxFilter#REJECTED_BBOX}, if all tracks are rejected,
+	 *         otherwise {@link GpxFilter#PASSED}
+	 */
+	private int scan(ByteBuffer content) {
+		in = content;
+		limit = content.limit();
+		unknown = false;
+		tracks = 0;
+		inTrack = false;
+		inPoint = false;
+		skipDepth = 0;
+		boolean root = false;
+
+		int p = content.position();
+		if (limit - p >= 2 && ((in.get(p) & 0xFF) == 0xFE || (in.get(p) & 0xFF) == 0xFF)) {
+			// utf-16 byte order mark
+			return GpxFilter.PASSED;
+		}
+		while (p < limit) {
+			if (in.get(p) != '<') {
+				p++;
+				continue;
+			}
+			if (p + 1 >= limit) {
+				return GpxFilter.PASSED;
+			}
+			byte next = in.get(p + 1);
+			if (next == '?') {
+				p = skipPast(p + 2, '?', '>');
+			} else if (next == '!') {
+				p = skipDeclaration(p);
+			} else if (next == '/') {
+				int nameStart = p + 2;
+				int nameEnd = nameEnd(nameStart);
+				endElement(localName(nameStart, nameEnd), nameEnd);
+				p = skipTag(nameEnd);
+			} else {
+				int nameStart = p + 1;
+				int nameEnd = nameEnd(nameStart);
+				int localStart = localName(nameStart, nameEnd);
+				if (!root) {
+					if (!matches(localStart, nameEnd, GPX)) {
+						return GpxFilter.PASSED;
+					}
+					root = true;
+					p = skipTag(nameEnd);
+				} else {
+					p = startElement(localStart, nameEnd);
+				}
+			}
+			if (unknown || p < 0 || trackMayPass()) {
+				return GpxFilter.PASSED;
+			}
+		}
+		if (!root || inTrack) {
+			// not a gpx file or truncated, left to the parser
+			return GpxFilter.PASSED;
+		}
+		return GpxFilter.REJECTED_BBOX;
+	}
+
+	/**
+	 * handles a start tag like the streaming parser: elements other than
+	 * trk, trkseg, trkpt and ele are skipped including their children.
+	 *
+	 * @return position after the tag or -1
+	 */
+	private int startElement(int localStart, int nameEnd) {
+		if (skipDepth > 0) {
+			return skipElement(nameEnd);
+		}
+		if (inPoint) {
+			if (matches(localStart, nameEnd, ELE)) {
+				pointHasEle = true;
+			}
+			// the content of ele, time and other children of the point
+			return skipElement(nameEnd);
+		}
+		if (!inTrack) {
+			if (matches(localStart, nameEnd, TRK)) {
+				inTrack = true;
+				segments = 0;
+				segmentPoints = 0;
+				segmentEle = 0;
+				points = 0;
+				inside = 0;
+				trackInBbox = false;
+				trackMissingEle = false;
+				return skipTag(nameEnd);
+			}
+			// metadata, waypoints, routes
+			return skipElement(nameEnd);
+		}
+		if (matches(localStart, nameEnd, TRKSEG)) {
+			endSegment();
+			segments++;
+			return skipTag(nameEnd);
+		}
+		if (!matches(localStart, nameEnd, TRKPT)) {
+			// name, desc, extensions etc.
+			return skipElement(nameEnd);
+		}
+		if (segments == 0) {
+			// the parser starts a segment as well
+			segments++;
+		}
+		int end = readCoordinates(nameEnd);
+		if (end < 0) {
+			unknown = true;
+			return -1;
+		}
+		segmentPoints++;
+		points++;
+		if (env == null) {
+			inside++;
+		} else if (filter.contains(lon, lat)) {
+			trackInBbox = true;
+			inside++;
+		}
+		if (in.get(end - 2) != '/') {
+			// not an empty element
+			inPoint = true;
+			pointHasEle = false;
+		}
+		return end;
+	}
+
+	/**
+	 * skips the start tag and enters a skipped element, unless it is empty.
+	 */
+	private int skipElement(int nameEnd) {
+		int end = skipTag(nameEnd);
+		if (end > 0 && in.get(end - 2) != '/') {
+			skipDepth++;
+		}
+		return end;
+	}
+
+	private void endElement(int localStart, int nameEnd) {
+		if (skipDepth > 0) {
+			skipDepth--;
+		} else if (inPoint) {
+			// end of trkpt
+			if (pointHasEle) {
+				segmentEle++;
+			}
+			inPoint = false;
+		} else if (inTrack && matches(localStart, nameEnd, TRK)) {
+			endSegment();
+			// the first check of the filter, which rejects the track
+			int result = GpxFilter.PASSED;
+			if (env != null && !trackInBbox) {
+				result = GpxFilter.REJECTED_BBOX;
+			} else if (elevationOnly) {
+				if (trackMissingEle) {
+					result = GpxFilter.REJECTED_ELE;
+				} else if (segments == 0) {
+					result = GpxFilter.REJECTED_EQUAL_ELE;
+				}
+			}
+			if (tracks == results.length) {
+				results = Arrays.copyOf(results, tracks * 2);
+				trackSegments = Arrays.copyOf(trackSegments, tracks * 2);
+				trackPoints = Arrays.copyOf(trackPoints, tracks * 2);
+				trackInside = Arrays.copyOf(trackInside, tracks * 2);
+			}
+			trackSegments[tracks] = segments;
+			trackPoints[tracks] = points;
+			trackInside[tracks] = inside;
+			results[tracks++] = result;
+			inTrack = false;
+		}
+	}
+
+	private void endSegment() {
+		if (segmentPoints > 1 && segmentEle < segmentPoints) {
+			trackMissingEle = true;
+		}
+		segmentPoints = 0;
+		segmentEle = 0;
+	}
+
+	/**
+	 * @return true, if the last scanned track passed the filter. Tracks are
+	 *         complete, when their end tag has been read, a track in the bbox
+	 *         passes without elevation check as soon as one point is inside.
+	 */
+	private boolean trackMayPass() {
+		if (inTrack) {
+			return !elevationOnly && trackInBbox;
+		}
+		return tracks > 0 && results[tracks - 1] == GpxFilter.PASSED;
+	}
+
+	/**
+	 * reads the lat and lon attributes of a trkpt start tag.
+	 *
+	 * @return position after the tag or -1, if the attributes are not valid
+	 */
+	private int readCoordinates(int p) {
+		boolean hasLat = false;
+		boolean hasLon = false;
+		while (p < limit) {
+			byte b = in.get(p);
+			if (b == '>') {
+				return hasLat && hasLon ? p + 1 : -1;
+			} else if (isWhitespace(b) || b == '/') {
+				p++;
+				continue;
+			}
+			int nameStart = p;
+			while (p < limit && in.get(p) != '=' && !isWhitespace(in.get(p))) {
+				p++;
+			}
+			int nameEnd = p;
+			while (p < limit && isWhitespace(in.get(p))) {
+				p++;
+			}
+			if (p >= limit || in.get(p) != '=') {
+				return -1;
+			}
+			p++;
+			while (p < limit && isWhitespace(in.get(p))) {
+				p++;
+			}
+			if (p >= limit || (in.get(p) != '"' && in.get(p) != '\'')) {
+				return -1;
+			}
+			byte quote = in.get(p++);
+			int valueStart = p;
+			while (p < limit && in.get(p) != quote) {
+				if (in.get(p) == '&' || in.get(p) == '<') {
+					// entity references are resolved by the parser only
+					return -1;
+				}
+				p++;
+			}
+			if (p >= limit) {
+				return -1;
+			}
+			if (nameEnd - nameStart == 3 && in.get(nameStart) == 'l') {
+				if (in.get(nameStart + 1) == 'a' && in.get(nameStart + 2) == 't') {
+					lat = parseCoordinate(valueStart, p);
+					hasLat = !Double.isNaN(lat);
+				} else if (in.get(nameStart + 1) == 'o' && in.get(nameStart + 2) == 'n') {
+					lon = parseCoordinate(valueStart, p);
+					hasLon = !Double.isNaN(lon);
+				}
+			}
+			p++;
+		}
+		return -1;
+	}
+
+	/**
+	 * parses a coordinate like {@link Double#parseDouble(String)}. Plain
+	 * decimals with up to 15 significant digits are computed exactly from the
+	 * digits, other values are parsed by Double.
+	 *
+	 * @return value or NaN, if the value is not a number
+	 */
+	private double parseCoordinate(int start, int end) {
+		int p = start;
+		while (p < end && isWhitespace(in.get(p))) {
+			p++;
+		}
+		int e = end;
+		while (e > p && isWhitespace(in.get(e - 1))) {
+			e--;
+		}
+		boolean negative = false;
+		if (p < e && (in.get(p) == '-' || in.get(p) == '+')) {
+			negative = in.get(p) == '-';
+			p++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		boolean plain = p < e;
+		for (int i = p; i < e && plain; i++) {
+			byte b = in.get(i);
+			if (b >= '0' && b <= '9') {
+				if (mantissa != 0 || b != '0') {
+					digits++;
+				}
+				mantissa = mantissa * 10 + (b - '0');
+				if (decimals >= 0) {
+					decimals++;
+				}
+			} else if (b == '.' && decimals < 0) {
+				decimals = 0;
+			} else {
+				plain = false;
+			}
+		}
+		if (plain && digits <= 15 && decimals < POWERS_OF_TEN.length && (e - p > 1 || decimals < 0)) {
+			// both values are exact doubles, so the quotient is rounded
+			// correctly
+			double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+			return negative ? -value : value;
+		}
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = in.get(start + i);
+		}
+		try {
+			double value = Double.parseDouble(new String(bytes, ASCII));
+			return Double.isNaN(value) ? Double.NaN : value;
+		} catch (NumberFormatException ex) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * skips comments, CDATA sections and document type declarations.
+	 *
+	 * @return position after the declaration or -1
+	 */
+	private int skipDeclaration(int p) {
+		if (p + 3 < limit && in.get(p + 2) == '-' && in.get(p + 3) == '-') {
+			return skipPast(p + 4, '-', '-', '>');
+		}
+		if (p + 2 < limit && in.get(p + 2) == '[') {
+			return skipPast(p + 3, ']', ']', '>');
+		}
+		// document type declaration
+		for (int i = p + 2; i < limit; i++) {
+			if (in.get(i) == '[') {
+				// internal subset, may declare entities
+				unknown = true;
+				return -1;
+			} else if (in.get(i) == '>') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return position after the next occurrence of the given bytes or -1
+	 */
+	private int skipPast(int p, char... pattern) {
+		for (int i = p; i + pattern.length <= limit; i++) {
+			boolean found = true;
+			for (int j = 0; j < pattern.length && found; j++) {
+				found = in.get(i + j) == pattern[j];
+			}
+			if (found) {
+				return i + pattern.length;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return position after the end of the tag, quoted attribute values may
+	 *         contain '&gt;'
+	 */
+	private int skipTag(int p) {
+		byte quote = 0;
+		for (int i = p; i < limit; i++) {
+			byte b = in.get(i);
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private int nameEnd(int p) {
+		while (p < limit) {
+			byte b = in.get(p);
+			if (isWhitespace(b) || b == '>' || b == '/') {
+				return p;
+			}
+			p++;
+		}
+		return p;
+	}
+
+	/**
+	 * @return start of the name without namespace prefix
+	 */
+	private int localName(int start, int end) {
+		for (int i = end - 1; i >= start; i--) {
+			if (in.get(i) == ':') {
+				return i + 1;
+			}
+		}
+		return start;
+	}
+
+	private boolean matches(int start, int end, byte[] name) {
+		if (end - start != name.length) {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (in.get(start + i) != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+}
@@ -12,10 +12,23 @@
 
 package osmgpxtool.filter;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -29,19 +42,29 @@ import org.apache.commons.compress.compressors.CompressorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import osmgpxtool.filter.reader.GpxArchiveIndex;
+import osmgpxtool.filter.reader.GpxEnvelopeIndex;
+import osmgpxtool.filter.reader.GpxPipeline;
 import osmgpxtool.filter.reader.OsmGpxDumpReader;
 import osmgpxtool.filter.reader.OsmGpxScraper;
+import osmgpxtool.filter.writer.Checkpoint;
 import osmgpxtool.filter.writer.DumpWriter;
 import osmgpxtool.filter.writer.PGSqlMultilineWriter;
 import osmgpxtool.filter.writer.PGSqlWriter;
+import osmgpxtool.filter.writer.RegionWriter;
+import osmgpxtool.filter.writer.ResumableRegionWriter;
+import osmgpxtool.filter.writer.ResumableWriter;
 import osmgpxtool.filter.writer.ShapeFileWriter;
 import osmgpxtool.filter.writer.Writer;
+import osmgpxtool.util.GpxIdSet;
 import osmgpxtool.util.TimeTools;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 public class Main {
 	static Logger LOGGER = LoggerFactory.getLogger(Main.class);
 	private static String datasource;
-	private static String tarFile;
+	private static String[] tarFiles;
 	private static String dbHost;
 	private static String dbPort;
 	private static String dbName;
@@ -56,6 +79,19 @@ public class Main {
 	private static Double bboxRight;
 	private static Double bboxTop;
 	private static Double bboxBottom;
+	private static int decoderThreads;
+	private static int workers;
+	private static boolean streamingParser;
+	private static boolean lazyMetadata;
+	private static BitSet selectedIDs;
+	private static RegionSet regions;
+	private static PolygonBoundary polygon;
+	private static boolean resume;
+	private static File checkpointFile;
+	private static File spillDirectory;
+	private static File statisticsFile;
+	private static List<MetadataPredicate> predicates = new ArrayList<MetadataPredicate>();
+	private static Checkpoint checkpoint = null;
 	private static Writer writer = null;
 	private static Options cmdOptions;
 	private static CommandLine cmd = null;
@@ -65,37 +101,78 @@ public class Main {
 
 		parseArguments(args);
 
-		// init Filter
-		GpxFilter filter = new GpxFilter(bboxLeft, bboxRight, bboxBottom, bboxTop, bboxClip, elevationOnly);
+		if (cmd.hasOption("bi")) {
+			buildIndex();
+			return;
+		}
 
-		// init writer
-		if (cmd.hasOption("wd")) {
-			writer = new DumpWriter(filter, outputFileDump);
-		} else if (cmd.hasOption("wpg")) {
-			if (dbGeometry.equals("point")) {
-				writer = new PGSqlWriter(filter, dbName, dbUser, dbPassword, dbHost, dbPort);
-			} else if (dbGeometry.equals("linestring")) {
-				writer = new PGSqlMultilineWriter(filter, dbName, dbUser, dbPassword, dbHost, dbPort);
+		// init Filter
+		GpxFilter filter;
+		Map<String, FilterStatistics> regionStatistics = null;
+		if (regions != null) {
+			// one writer per region
+			filter = new GpxFilter(regions, elevationOnly);
+			List<Writer> writers = new ArrayList<Writer>();
+			regionStatistics = new LinkedHashMap<String, FilterStatistics>();
+			boolean resumable = true;
+			for (Region region : regions.getRegions()) {
+				GpxFilter regionFilter = new GpxFilter(region, bboxClip, elevationOnly);
+				addPredicates(regionFilter);
+				regionFilter.getStatistics().setCountingPoints(statisticsFile != null);
+				regionStatistics.put(region.getName(), regionFilter.getStatistics());
+				Writer regionWriter = createWriter(regionFilter, region.getName());
+				resumable &= regionWriter instanceof ResumableWriter;
+				writers.add(regionWriter);
 			}
-
-		} else if (cmd.hasOption("ws")) {
-			writer = new ShapeFileWriter(outputFileShape, filter);
+			writer = resumable ? new ResumableRegionWriter(filter, writers) : new RegionWriter(filter, writers);
+		} else if (polygon != null) {
+			filter = new GpxFilter(new Region("polygon", polygon), bboxClip, elevationOnly);
+			LOGGER.info("Filtering by polygon within the bounding box " + polygon.getEnvelope() + ", "
+					+ Math.round(polygon.boundaryShare() * 100) + "% boundary cells");
+			writer = createWriter(filter, null);
+		} else {
+			filter = new GpxFilter(bboxLeft, bboxRight, bboxBottom, bboxTop, bboxClip, elevationOnly);
+			writer = createWriter(filter, null);
+		}
+		addPredicates(filter);
+		LOGGER.info("Filter chain: " + filter.getPredicateNames());
+		filter.getStatistics().setCountingPoints(statisticsFile != null);
+		if (writer instanceof ResumableWriter) {
+			((ResumableWriter) writer).setResume(resume);
 		}
 		writer.init();
+		if (writer instanceof ResumableWriter) {
+			checkpoint = resume ? Checkpoint.resume(checkpointFile, (ResumableWriter) writer) : Checkpoint.create(
+					checkpointFile, (ResumableWriter) writer);
+		}
 
 		if (datasource.equals("dump")) {
 			//if dumpwriter is chosen
-			OsmGpxDumpReader reader = new OsmGpxDumpReader(writer, tarFile);
-			reader.read();
+			readDumps(createReadIDs());
 		} else if (datasource.equals("both")) {
 			 readFromCombinedSource();
 		} else if (datasource.equals("scrape")) {
-			 OsmGpxScraper scraper = new OsmGpxScraper(writer);
+			 OsmGpxScraper scraper = new OsmGpxScraper(writer, streamingParser);
+			 scraper.setWrittenIDs(createReadIDs());
+			 scraper.setCheckpoint(checkpoint);
 			 scraper.scrape();
 		}
 
+		if (checkpoint != null) {
+			checkpoint.commit();
+		}
 		writer.close();
 		filter.printStats();
+		if (statisticsFile != null) {
+			try {
+				FilterStatistics.writeJson(statisticsFile, tarFiles == null ? null : join(tarFiles),
+						filter.getStatistics(), regionStatistics);
+				LOGGER.info("Statistics written to " + statisticsFile);
+			} catch (IOException e) {
+				LOGGER.error("Could not write statistics to " + statisticsFile);
+				e.printStackTrace();
+			}
+		}
 		long executionTime = (System.currentTimeMillis() - tStart) / 1000; // time
 																			// in
 																			// seconds
@@ -108,12 +185,298 @@ public class Main {
 
 
 
+	private static void addPredicates(GpxFilter filter) {
+		for (MetadataPredicate predicate : predicates) {
+			filter.addPredicate(predicate);
+		}
+	}
+
+	private static String join(String[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (String value : values) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * creates the writer selected by the arguments.
+	 * 
+	 * @param filter
+	 * @param region
+	 *            name of the region, which is appended to the output file or
+	 *            table names, or null
+	 * @return
+	 */
+	private static Writer createWriter(GpxFilter filter, String region) {
+		if (cmd.hasOption("wd")) {
+			return new DumpWriter(filter, regionPath(outputFileDump, region));
+		} else if (cmd.hasOption("wpg")) {
+			if (dbGeometry.equals("point")) {
+				PGSqlWriter pgWriter = new PGSqlWriter(filter, dbName, dbUser, dbPassword, dbHost, dbPort);
+				if (region != null) {
+					pgWriter.setTableSuffix("_" + region.toLowerCase());
+				}
+				return pgWriter;
+			} else if (dbGeometry.equals("linestring")) {
+				PGSqlMultilineWriter pgWriter = new PGSqlMultilineWriter(filter, dbName, dbUser, dbPassword, dbHost,
+						dbPort);
+				if (region != null) {
+					pgWriter.setTableSuffix("_" + region.toLowerCase());
+				}
+				return pgWriter;
+			}
+		} else if (cmd.hasOption("ws")) {
+			return new ShapeFileWriter(regionPath(outputFileShape, region), filter);
+		}
+		return null;
+	}
+
+	/**
+	 * inserts the region name into the given output path, e.g.
+	 * out_heidelberg.tar.xz for out.tar.xz
+	 */
+	private static String regionPath(String path, String region) {
+		if (region == null) {
+			return path;
+		}
+		int nameStart = path.lastIndexOf(File.separatorChar) + 1;
+		int extension = path.indexOf('.', nameStart);
+		if (extension <= nameStart) {
+			return path + "_" + region;
+		}
+		return path.substring(0, extension) + "_" + region + path.substring(extension);
+	}
+
+	/**
+	 * @return set of read ids, which contains the gpx files completed before
+	 *         the checkpoint, if an interrupted run is resumed
+	 */
+	private static GpxIdSet createReadIDs() {
+		GpxIdSet readIDs = new GpxIdSet();
+		if (checkpoint != null) {
+			GpxIdSet completed = checkpoint.getCompleted();
+			for (int id = completed.nextId(0); id >= 0; id = completed.nextId(id + 1)) {
+				readIDs.add(id);
+			}
+		}
+		return readIDs;
+	}
+
+	/**
+	 * reads all input dumps. If more than one dump is given, a checkpoint is
+	 * kept or entries may be spilled, the dumps are read concurrently into a
+	 * shared pipeline. Gpx files contained in more than one dump are passed to
+	 * the writer only once.
+	 * 
+	 * @param readIDs
+	 *            receives the ids of all gpx files read from the dumps
+	 * @return base name of the first dump
+	 */
+	private static String readDumps(GpxIdSet readIDs) throws CompressorException, IOException {
+		if (tarFiles.length == 1 && checkpoint == null && spillDirectory == null) {
+			OsmGpxDumpReader reader = createDumpReader(tarFiles[0], decoderThreads);
+			reader.setReadIDs(readIDs);
+			reader.read();
+			return reader.getBaseName();
+		}
+		// decoder threads are divided between the dumps read at a time
+		int parallelDumps = Math.min(tarFiles.length, Runtime.getRuntime().availableProcessors());
+		int threadsPerDump = Math.max(1, decoderThreads / parallelDumps);
+		LOGGER.info("Reading " + tarFiles.length + " dumps, " + parallelDumps + " at a time");
+
+		GpxPipeline pipeline = new GpxPipeline(writer, workers, streamingParser);
+		pipeline.setCheckpoint(checkpoint);
+		if (spillDirectory != null) {
+			pipeline.setSpillDirectory(spillDirectory);
+		}
+		pipeline.start();
+		List<OsmGpxDumpReader> readers = new ArrayList<OsmGpxDumpReader>();
+		List<Future<GpxIdSet>> results = new ArrayList<Future<GpxIdSet>>();
+		ExecutorService pool = Executors.newFixedThreadPool(parallelDumps);
+		try {
+			for (String tarFile : tarFiles) {
+				final OsmGpxDumpReader reader = createDumpReader(tarFile, threadsPerDump);
+				reader.setReadIDs(readIDs);
+				reader.setPipeline(pipeline);
+				readers.add(reader);
+				results.add(pool.submit(new Callable<GpxIdSet>() {
+					@Override
+					public GpxIdSet call() throws Exception {
+						return reader.read();
+					}
+				}));
+			}
+			for (Future<GpxIdSet> result : results) {
+				result.get();
+			}
+			pipeline.finish();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Reading gpx dumps interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof CompressorException) {
+				throw (CompressorException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+			if (awaitReaders(pool)) {
+				// if a reader failed, the submitted gpx files are still
+				// written; does nothing after finish()
+				pipeline.abort();
+			}
+		}
+		LOGGER.info(readIDs.size() + " distinct gpx files read from " + tarFiles.length + " dumps");
+		return readers.get(0).getBaseName();
+	}
+
+	/**
+	 * waits until the readers have stopped, so that no entry is submitted to
+	 * the pipeline after it has been stopped.
+	 * 
+	 * @return true, if the readers have stopped
+	 */
+	private static boolean awaitReaders(ExecutorService pool) {
+		try {
+			while (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+				LOGGER.warn("Waiting for the readers of the gpx dumps to stop...");
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.error("Interrupted while waiting for the readers, submitted gpx files may not have been written");
+			return false;
+		}
+	}
+
+	/**
+	 * creates the reader for the given gpx dump. The sidecar index of the dump
+	 * is used, if it exists and is up to date.
+	 */
+	private static OsmGpxDumpReader createDumpReader(String tarFile, int decoderThreads) {
+		OsmGpxDumpReader reader = new OsmGpxDumpReader(writer, tarFile, decoderThreads, workers, streamingParser);
+		reader.setLazyMetadata(lazyMetadata);
+		File indexFile = GpxArchiveIndex.sidecarFile(new File(tarFile));
+		GpxArchiveIndex index = null;
+		if (indexFile.exists()) {
+			try {
+				index = GpxArchiveIndex.read(indexFile);
+				if (index.matches(new File(tarFile))) {
+					LOGGER.info("Using index " + indexFile);
+					reader.setIndex(index);
+				} else {
+					LOGGER.warn("Index " + indexFile + " is outdated and is not used. Rebuild it with \"-bi\".");
+					index = null;
+				}
+			} catch (IOException e) {
+				LOGGER.warn("Could not read index " + indexFile + ": " + e.getMessage());
+			}
+		}
+		BitSet selection = selectedIDs;
+		Envelope bbox = writer.getFilter().getEnvelope();
+		if (bbox != null) {
+			BitSet candidates = findCandidates(tarFile, bbox);
+			if (candidates != null) {
+				if (selection != null) {
+					candidates.and(selection);
+				}
+				selection = candidates;
+			}
+		}
+		if (resume && index != null) {
+			// seek past the completed gpx files instead of decoding them
+			selection = excludeCompleted(index, selection);
+		}
+		if (selection != null && !indexFile.exists()) {
+			LOGGER.warn("No index found for " + tarFile + ". The complete dump is scanned for the selected gpx ids.");
+		}
+		reader.setSelection(selection);
+		return reader;
+	}
+
+	/**
+	 * removes the gpx files completed before the checkpoint from the
+	 * selection.
+	 * 
+	 * @param selection
+	 *            selected ids, null for all gpx files of the index
+	 */
+	private static BitSet excludeCompleted(GpxArchiveIndex index, BitSet selection) {
+		GpxIdSet completed = checkpoint.getCompleted();
+		BitSet remaining = new BitSet();
+		for (int i = 0; i < index.size(); i++) {
+			int id = index.getId(i);
+			if ((selection == null || selection.get(id)) && !completed.contains(id)) {
+				remaining.set(id);
+			}
+		}
+		LOGGER.info(remaining.cardinality() + " of " + index.size() + " gpx files remaining after checkpoint");
+		return remaining;
+	}
+
+	/**
+	 * finds the traces, which may intersect the given bounding box, with the
+	 * spatial index of the dump.
+	 * 
+	 * @return ids of the candidate traces or null, if no spatial index is
+	 *         available
+	 */
+	private static BitSet findCandidates(String tarFile, Envelope bbox) {
+		File envelopeFile = GpxEnvelopeIndex.sidecarFile(new File(tarFile));
+		if (!envelopeFile.exists()) {
+			LOGGER.info("No spatial index found for " + tarFile + ". All traces are checked against the bounding box.");
+			return null;
+		}
+		try {
+			GpxEnvelopeIndex envelopes = GpxEnvelopeIndex.read(envelopeFile);
+			if (!envelopes.matches(new File(tarFile))) {
+				LOGGER.warn("Spatial index " + envelopeFile + " is outdated and is not used. Rebuild it with \"-bi\".");
+				return null;
+			}
+			BitSet candidates = envelopes.query(bbox);
+			LOGGER.info("Spatial index: " + candidates.cardinality() + " of " + envelopes.size()
+					+ " traces intersect the bounding box (" + envelopes.countPoints(candidates) + " track points)");
+			return candidates;
+		} catch (IOException e) {
+			LOGGER.warn("Could not read spatial index " + envelopeFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * builds the sidecar index and the spatial index of the input dumps.
+	 */
+	private static void buildIndex() throws IOException {
+		long tStart = System.currentTimeMillis();
+		for (String tarFile : tarFiles) {
+			File dump = new File(tarFile);
+			GpxEnvelopeIndex.Builder envelopes = new GpxEnvelopeIndex.Builder(dump, workers);
+			GpxArchiveIndex index = GpxArchiveIndex.build(dump, decoderThreads, envelopes);
+			index.write(GpxArchiveIndex.sidecarFile(dump));
+			try {
+				envelopes.build().write(GpxEnvelopeIndex.sidecarFile(dump));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		long executionTime = (System.currentTimeMillis() - tStart) / 1000;
+		LOGGER.info("Index task done... Execution time: " + executionTime + " seconds ("
+				+ TimeTools.convertMillisToHourMinuteSecond(executionTime) + ")");
+	}
+
 	private static void readFromCombinedSource() throws CompressorException, IOException {
-		OsmGpxDumpReader dumpReader = new OsmGpxDumpReader(writer, tarFile);
-		List<Integer> writtenIDs = dumpReader.read();
-		String baseName = dumpReader.getBaseName();
-		OsmGpxScraper scraper = new OsmGpxScraper(writer);
-		scraper.setWrittenIDs(writtenIDs);
+		GpxIdSet readIDs = createReadIDs();
+		String baseName = readDumps(readIDs);
+		OsmGpxScraper scraper = new OsmGpxScraper(writer, streamingParser);
+		scraper.setWrittenIDs(readIDs);
+		scraper.setCheckpoint(checkpoint);
 		scraper.setBaseName(baseName);
 		scraper.scrape();
 	}
@@ -145,19 +508,56 @@ public class Main {
 		// parse command line arguments
 		cmdOptions.addOption(new Option("h", "help", false, "displays help"));
 		// option for input GPX dump packed and compressed (as *.tar.xz)
-		cmdOptions.addOption(OptionBuilder.withLongOpt("input").withDescription("path to gpx-planet.tar.xz").hasArg()
-				.create("i"));
+		cmdOptions.addOption(OptionBuilder.withLongOpt("input")
+				.withDescription("path to gpx-planet.tar.xz or uncompressed gpx-planet.tar. Several dumps are read concurrently, gpx files contained in more than one dump are written once.")
+				.hasArgs().create("i"));
 		cmdOptions
 				.addOption(OptionBuilder
 						.withLongOpt("datasource")
 						.withDescription(
 								"[dump,scrape,both]\n\"dump\": only use specified dump, \n\"scrape\": only scrape OSM public trace list, \n\"both\": use dump and retrieve additional traces from public trace list")
-						.hasArg().isRequired().create("ds"));
+						.hasArg().create("ds"));
+		cmdOptions.addOption(new Option("bi", "build-index", false,
+				"build the index (<input>.idx) and the spatial index (<input>.env) of the input dump and exit. The indexes are used by later runs."));
+		cmdOptions.addOption(OptionBuilder.withLongOpt("gpx-ids")
+				.withDescription("file with gpx ids (one per line). Only these gpx files are read from the dump.")
+				.hasArg().withArgName("path to id file").create("ids"));
+		cmdOptions.addOption(OptionBuilder.withLongOpt("decoder-threads")
+				.withDescription("number of threads for decoding multi-block xz archives (default: number of cores)")
+				.hasArg().withArgName("n").create("dt"));
+		cmdOptions.addOption(OptionBuilder.withLongOpt("workers")
+				.withDescription("number of threads for parsing and filtering gpx files (default: number of cores)")
+				.hasArg().withArgName("n").create("w"));
+		cmdOptions.addOption(new Option("jp", "jaxb-parser", false,
+				"read gpx files with JAXB instead of the streaming parser. Always used for dump output (-wd), which keeps waypoints and routes."));
+		cmdOptions.addOption(new Option("r", "resume", false,
+				"resume an interrupted database import from the checkpoint. Existing tables are kept. Use the same arguments as for the interrupted run."));
+		cmdOptions.addOption(OptionBuilder.withLongOpt("checkpoint")
+				.withDescription("checkpoint file of database imports (default: <first input>.checkpoint)")
+				.hasArg().withArgName("path to checkpoint file").create("ck"));
+		cmdOptions.addOption(OptionBuilder.withLongOpt("spill-queue")
+				.withDescription("spill parsed gpx files to memory mapped segment files in the given directory, while the writer is busy. Reading and parsing are not slowed down by a slow database.")
+				.hasArg().withArgName("directory").create("sq"));
+		cmdOptions.addOption(OptionBuilder.withLongOpt("statistics")
+				.withDescription("write the filter statistics (tracks per rejection reason, points inside and outside, histograms of points and segments per track) as JSON to the given file")
+				.hasArg().withArgName("path to json file").create("st"));
+		cmdOptions.addOption(new Option("lm", "lazy-metadata", false,
+				"only index metadata.xml and read the metadata of written gpx files on demand. Needs little memory for small extracts."));
+		cmdOptions.addOption(OptionBuilder.withLongOpt("filter")
+				.withDescription("only use GPX-files, whose metadata matches all given filters: visibility=<v>[,<v>...], points=[<min>]..[<max>], uid=<id>[,<id>...], user=<name>[,<name>...], tag=<tag>[,<tag>...], time=[<from>]..[<to>] (upload time as date or xsd:dateTime)")
+				.hasArgs().withArgName("name=value").create("f"));
 		cmdOptions.addOption(new Option("e", "elevation", false,
 				"only use GPX-files if they have elevation information"));
 		cmdOptions.addOption(new Option("c", "Clip", false,
 				"Clip GPS traces at bounding box. This option is only applied for PQSql and Shape output."));
 
+		cmdOptions.addOption(OptionBuilder.withLongOpt("regions")
+				.withDescription("file with named regions (one per line: <name> <left> <bottom> <right> <top> or <name> <WKT polygon>). All regions are extracted in one pass, each into its own output.")
+				.hasArg().withArgName("path to region file").create("rg"));
+		cmdOptions.addOption(OptionBuilder.withLongOpt("polygon")
+				.withDescription("polygon or multipolygon to filter and clip at, as Osmosis .poly file, GeoJSON (.json, .geojson) or WKT")
+				.hasArg().withArgName("path to polygon file").create("poly"));
+
 		// option for bounding box
 		cmdOptions.addOption(OptionBuilder.withLongOpt("bounding-box").withDescription("specifies bounding box")
 				.hasArgs(4).withArgName("left=x.x> <right=x.x> <top=x.x> <bottom=x.x").withValueSeparator(' ')
@@ -182,11 +582,40 @@ public class Main {
 	private static void assignArguments(CommandLine cmd) throws ParseException {
 		// assign values to variables
 
-		if (cmd.getOptionValue("i") != null && new File(cmd.getOptionValue("i")).exists()) {
-			tarFile = cmd.getOptionValue("i");
+		if (cmd.getOptionValues("i") != null) {
+			tarFiles = cmd.getOptionValues("i");
+			for (String tarFile : tarFiles) {
+				if (!new File(tarFile).exists()) {
+					throw new ParseException("Input file doesn't exist: " + tarFile + " Check \"-h\" for help ");
+				}
+			}
 		} else {
 			throw new ParseException("No input file given or it doesn't exist. Check \"-h\" for help ");
 		}
+		decoderThreads = parseThreadCount("dt", "decoder threads");
+		workers = parseThreadCount("w", "worker threads");
+		// dumps are written from the gpx files read by JAXB, so that
+		// waypoints, routes and all other elements are kept
+		streamingParser = !cmd.hasOption("jp") && !cmd.hasOption("wd");
+		lazyMetadata = cmd.hasOption("lm");
+		if (cmd.hasOption("sq")) {
+			if (!streamingParser) {
+				throw new ParseException("The spill queue can not be used with the JAXB parser or dump output. Check \"-h\" for help ");
+			}
+			spillDirectory = new File(cmd.getOptionValue("sq"));
+		}
+		if (cmd.hasOption("st")) {
+			statisticsFile = new File(cmd.getOptionValue("st"));
+		}
+		if (cmd.getOptionValues("f") != null) {
+			for (String spec : cmd.getOptionValues("f")) {
+				try {
+					predicates.add(MetadataPredicate.parse(spec));
+				} catch (IllegalArgumentException e) {
+					throw new ParseException(e.getMessage() + " Check \"-h\" for help ");
+				}
+			}
+		}
 		elevationOnly = cmd.hasOption("e");
 		bboxClip = cmd.hasOption("c");
 		outputFileDump = cmd.getOptionValue("wd");
@@ -219,8 +648,38 @@ public class Main {
 			}
 
 		}
+		if (cmd.hasOption("ids")) {
+			selectedIDs = readIdFile(cmd.getOptionValue("ids"));
+		}
+		if (cmd.hasOption("rg")) {
+			if (cmd.hasOption("bbox")) {
+				throw new ParseException("Regions and bounding box can not be combined. Check \"-h\" for help ");
+			}
+			try {
+				regions = RegionSet.read(new File(cmd.getOptionValue("rg")));
+			} catch (IOException e) {
+				throw new ParseException(e.getMessage());
+			}
+		}
+		if (cmd.hasOption("poly")) {
+			if (cmd.hasOption("bbox") || cmd.hasOption("rg")) {
+				throw new ParseException(
+						"Polygon can not be combined with bounding box or regions. Check \"-h\" for help ");
+			}
+			try {
+				polygon = PolygonReader.read(new File(cmd.getOptionValue("poly")));
+			} catch (IOException e) {
+				throw new ParseException(e.getMessage());
+			}
+		}
+		if (cmd.hasOption("bi")) {
+			// no datasource and writer needed for building the index
+			return;
+		}
 		// datasource (dump, scrape, both)
-		if (cmd.hasOption("ds")) {
+		if (!cmd.hasOption("ds")) {
+			throw new ParseException("Missing required option: ds");
+		} else {
 			String value = cmd.getOptionValue("ds");
 			if (value.equals("dump") || value.equals("both")|| value.equals("scrape")) {
 				datasource = value;
@@ -260,6 +719,79 @@ public class Main {
 			}
 
 		}
+
+		// checkpoint and resume
+		checkpointFile = new File(cmd.hasOption("ck") ? cmd.getOptionValue("ck") : tarFiles[0] + ".checkpoint");
+		resume = cmd.hasOption("r");
+		if (resume) {
+			if (!cmd.hasOption("wpg")) {
+				throw new ParseException("Resuming is only supported for database output (\"-wpg\")");
+			}
+			if (!checkpointFile.exists()) {
+				throw new ParseException("Checkpoint file doesn't exist: " + checkpointFile);
+			}
+		}
+	}
+
+	/**
+	 * parses the number of threads given with the specified option. Defaults
+	 * to the number of available cores.
+	 */
+	private static int parseThreadCount(String option, String name) throws ParseException {
+		if (!cmd.hasOption(option)) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+		int threads;
+		try {
+			threads = Integer.valueOf(cmd.getOptionValue(option));
+		} catch (NumberFormatException e) {
+			throw new ParseException("Number of " + name + " is not valid: " + cmd.getOptionValue(option));
+		}
+		if (threads < 1) {
+			throw new ParseException("Number of " + name + " must be at least 1. Check \"-h\" for help ");
+		}
+		return threads;
+	}
+
+	/**
+	 * reads a file with one gpx id per line. Empty lines and lines starting
+	 * with # are ignored.
+	 */
+	private static BitSet readIdFile(String path) throws ParseException {
+		BitSet ids = new BitSet();
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(path));
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				int id;
+				try {
+					id = Integer.parseInt(line);
+				} catch (NumberFormatException e) {
+					id = -1;
+				}
+				if (id < 0) {
+					throw new ParseException("Gpx id file contains an invalid id: " + line);
+				}
+				ids.set(id);
+			}
+		} catch (IOException e) {
+			throw new ParseException("Could not read gpx id file: " + path);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		LOGGER.info(ids.cardinality() + " gpx ids selected");
+		return ids;
 	}
 
 	private static boolean checkDbParamaters(HashMap<String, String> dbMap) {
@@ -0,0 +1,210 @@
+package osmgpxtool.filter;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import osmgpxtool.filter.gpx.GpxTrack;
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
+import osmgpxtool.util.TimeTools;
+
+/**
+ * Predicate on the metadata of a gpx file (metadata.xml of the dump). Gpx
+ * files without metadata pass, they are reported by the writer. A gpx file,
+ * which lacks the attribute of a predicate, is rejected by it.
+ *
+ * Predicates are created from a specification name=value by
+ * {@link #parse(String)}:
+ * <ul>
+ * <li>visibility=public,identifiable</li>
+ * <li>points=100..5000 (number of points up to 65535; either bound may be
+ * omitted)</li>
+ * <li>uid=1,2,3</li>
+ * <li>user=name1,name2</li>
+ * <li>tag=hiking,bike (at least one of the tags, ignoring case)</li>
+ * <li>time=2012-01-01..2013-01-01 (upload time; dates or xsd:dateTime, a
+ * date covers the whole day in UTC)</li>
+ * </ul>
+ */
+public abstract class MetadataPredicate implements TrackPredicate {
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private String name;
+
+	protected MetadataPredicate(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getCost() {
+		return COST_METADATA;
+	}
+
+	@Override
+	public boolean accept(GpxTrack trk, GpxFile metadata) {
+		return metadata == null || accept(metadata);
+	}
+
+	/**
+	 * @param metadata
+	 * @return true, if the gpx file passes
+	 */
+	protected abstract boolean accept(GpxFile metadata);
+
+	/**
+	 * creates a predicate from its specification.
+	 *
+	 * @param spec
+	 *            name=value
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the specification is not valid
+	 */
+	public static MetadataPredicate parse(String spec) {
+		int eq = spec.indexOf('=');
+		if (eq <= 0 || eq == spec.length() - 1) {
+			throw new IllegalArgumentException("Filter needs the form name=value: " + spec);
+		}
+		String name = spec.substring(0, eq).trim().toLowerCase();
+		String value = spec.substring(eq + 1).trim();
+		if (name.equals("visibility")) {
+			final Set<String> values = toSet(value, true);
+			return new MetadataPredicate(name) {
+				@Override
+				protected boolean accept(GpxFile metadata) {
+					return metadata.getVisibility() != null && values.contains(metadata.getVisibility().toLowerCase());
+				}
+			};
+		} else if (name.equals("points")) {
+			final long[] range = parseRange(value, false);
+			return new MetadataPredicate(name) {
+				@Override
+				protected boolean accept(GpxFile metadata) {
+					if (metadata.getPoints() == null) {
+						return false;
+					}
+					// the schema stores the number as short, larger values
+					// are negative
+					int points = metadata.getPoints() & 0xFFFF;
+					return points >= range[0] && points <= range[1];
+				}
+			};
+		} else if (name.equals("uid")) {
+			final Set<Integer> values = new HashSet<Integer>();
+			for (String uid : toSet(value, false)) {
+				try {
+					values.add(Integer.valueOf(uid));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid uid in filter: " + spec);
+				}
+			}
+			return new MetadataPredicate(name) {
+				@Override
+				protected boolean accept(GpxFile metadata) {
+					return metadata.getUid() != null && values.contains(metadata.getUid());
+				}
+			};
+		} else if (name.equals("user")) {
+			final Set<String> values = toSet(value, false);
+			return new MetadataPredicate(name) {
+				@Override
+				protected boolean accept(GpxFile metadata) {
+					return metadata.getUser() != null && values.contains(metadata.getUser());
+				}
+			};
+		} else if (name.equals("tag")) {
+			final Set<String> values = toSet(value, true);
+			return new MetadataPredicate(name) {
+				@Override
+				protected boolean accept(GpxFile metadata) {
+					if (metadata.getTags() != null) {
+						for (String tag : metadata.getTags().getTag()) {
+							if (values.contains(tag.toLowerCase())) {
+								return true;
+							}
+						}
+					}
+					return false;
+				}
+			};
+		} else if (name.equals("time")) {
+			final long[] range = parseRange(value, true);
+			return new MetadataPredicate(name) {
+				@Override
+				protected boolean accept(GpxFile metadata) {
+					if (metadata.getTimestamp() == null) {
+						return false;
+					}
+					long time = metadata.getTimestamp().toGregorianCalendar().getTimeInMillis();
+					return time >= range[0] && time <= range[1];
+				}
+			};
+		}
+		throw new IllegalArgumentException("Unknown filter: " + name
+				+ " (known: visibility, points, uid, user, tag, time)");
+	}
+
+	private static Set<String> toSet(String value, boolean ignoreCase) {
+		Set<String> values = new HashSet<String>();
+		for (String v : value.split(",")) {
+			v = v.trim();
+			if (!v.isEmpty()) {
+				values.add(ignoreCase ? v.toLowerCase() : v);
+			}
+		}
+		if (values.isEmpty()) {
+			throw new IllegalArgumentException("No values in filter: " + value);
+		}
+		return values;
+	}
+
+	/**
+	 * parses min..max, where either bound may be omitted. A single value is
+	 * both minimum and maximum. A date as maximum means the end of the day.
+	 */
+	private static long[] parseRange(String value, boolean time) {
+		String from = value;
+		String to = value;
+		int dots = value.indexOf("..");
+		if (dots >= 0) {
+			from = value.substring(0, dots).trim();
+			to = value.substring(dots + 2).trim();
+		}
+		try {
+			long[] range = new long[] { Long.MIN_VALUE, Long.MAX_VALUE };
+			if (!from.isEmpty()) {
+				range[0] = time ? parseTime(from, false) : Long.parseLong(from);
+			}
+			if (!to.isEmpty()) {
+				range[1] = time ? parseTime(to, true) : Long.parseLong(to);
+			}
+			if (range[0] > range[1]) {
+				throw new IllegalArgumentException("Empty range in filter: " + value);
+			}
+			return range;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid range in filter: " + value);
+		}
+	}
+
+	/**
+	 * @param endOfDay
+	 *            if true, a date means the last millisecond of the day
+	 */
+	private static long parseTime(String s, boolean endOfDay) {
+		try {
+			if (s.length() == 10) {
+				// date only
+				long start = TimeTools.parseXmlTime(s + "T00:00:00Z");
+				return endOfDay ? start + MILLIS_PER_DAY - 1 : start;
+			}
+			return TimeTools.parseXmlTime(s);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid time in filter: " + s);
+		}
+	}
+}
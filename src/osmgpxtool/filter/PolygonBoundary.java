@@ -0,0 +1,299 @@
+package osmgpxtool.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Point in polygon test for many points against the same polygon or
+ * multipolygon. The envelope of the polygon is divided into a grid of cells,
+ * which are classified once as inside, outside or boundary. A point in an
+ * inside or outside cell is classified by a single array lookup. Only points
+ * in boundary cells, which are crossed by an edge of the polygon, are tested
+ * exactly. The exact test counts the crossings of a ray with the edges of
+ * the grid row of the point, so it only looks at a small part of the edges.
+ *
+ * The rings of the polygon are combined with the even-odd rule, holes and
+ * parts of a multipolygon need no further distinction. Points exactly on an
+ * edge may be classified either way.
+ *
+ * No objects are created by {@link #contains(double, double)}. The boundary
+ * is immutable and can be shared between threads.
+ */
+public class PolygonBoundary {
+	/**
+	 * minimum and maximum number of cells along the longer axis. Polygons with
+	 * many edges get a finer grid, so that fewer edges share a row.
+	 */
+	static final int MIN_GRID_SIZE = 256;
+	static final int MAX_GRID_SIZE = 1024;
+
+	private static final byte OUTSIDE = 0;
+	private static final byte INSIDE = 1;
+	private static final byte BOUNDARY = 2;
+
+	private Envelope envelope;
+	// edges: x1, y1, x2, y2
+	private double[] edges;
+	private int columns;
+	private int rows;
+	private double minX;
+	private double minY;
+	private double cellWidth;
+	private double cellHeight;
+	private byte[] cells;
+	// edges crossing the y range of each row
+	private int[][] rowEdges;
+
+	/**
+	 * @param rings
+	 *            closed rings as x, y arrays (lon, lat). The last point may
+	 *            repeat the first point.
+	 */
+	public PolygonBoundary(List<double[]> rings) {
+		int count = 0;
+		for (double[] ring : rings) {
+			if (ring.length < 6 || ring.length % 2 != 0) {
+				throw new IllegalArgumentException("Ring needs at least three points");
+			}
+			count += ring.length / 2;
+		}
+		edges = new double[count * 4];
+		int e = 0;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		minX = Double.POSITIVE_INFINITY;
+		minY = Double.POSITIVE_INFINITY;
+		for (double[] ring : rings) {
+			int points = ring.length / 2;
+			for (int i = 0; i < points; i++) {
+				int j = (i + 1) % points;
+				if (ring[2 * i] == ring[2 * j] && ring[2 * i + 1] == ring[2 * j + 1]) {
+					// closing point or duplicate
+					continue;
+				}
+				edges[e++] = ring[2 * i];
+				edges[e++] = ring[2 * i + 1];
+				edges[e++] = ring[2 * j];
+				edges[e++] = ring[2 * j + 1];
+				minX = Math.min(minX, ring[2 * i]);
+				maxX = Math.max(maxX, ring[2 * i]);
+				minY = Math.min(minY, ring[2 * i + 1]);
+				maxY = Math.max(maxY, ring[2 * i + 1]);
+			}
+		}
+		edges = Arrays.copyOf(edges, e);
+		if (e == 0) {
+			throw new IllegalArgumentException("Polygon has no edges");
+		}
+		envelope = new Envelope(minX, maxX, minY, maxY);
+
+		// square cells
+		int gridSize = Math.max(MIN_GRID_SIZE, Math.min(MAX_GRID_SIZE, 2 * (int) Math.sqrt(e / 4)));
+		double cellSize = Math.max(maxX - minX, maxY - minY) / gridSize;
+		if (cellSize <= 0) {
+			cellSize = 1;
+		}
+		columns = Math.max(1, Math.min(gridSize, (int) Math.ceil((maxX - minX) / cellSize)));
+		rows = Math.max(1, Math.min(gridSize, (int) Math.ceil((maxY - minY) / cellSize)));
+		cellWidth = Math.max((maxX - minX) / columns, Double.MIN_NORMAL);
+		cellHeight = Math.max((maxY - minY) / rows, Double.MIN_NORMAL);
+		buildRows();
+		buildCells();
+	}
+
+	/**
+	 * creates the boundary of a polygon or multipolygon.
+	 *
+	 * @param geometry
+	 * @return
+	 */
+	public static PolygonBoundary fromGeometry(Geometry geometry) {
+		List<double[]> rings = new ArrayList<double[]>();
+		for (int g = 0; g < geometry.getNumGeometries(); g++) {
+			Geometry part = geometry.getGeometryN(g);
+			if (!(part instanceof Polygon)) {
+				throw new IllegalArgumentException("Not a polygon: " + part.getGeometryType());
+			}
+			Polygon polygon = (Polygon) part;
+			rings.add(toArray(polygon.getExteriorRing().getCoordinates()));
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				rings.add(toArray(polygon.getInteriorRingN(i).getCoordinates()));
+			}
+		}
+		return new PolygonBoundary(rings);
+	}
+
+	private static double[] toArray(Coordinate[] coordinates) {
+		double[] ring = new double[coordinates.length * 2];
+		for (int i = 0; i < coordinates.length; i++) {
+			ring[2 * i] = coordinates[i].x;
+			ring[2 * i + 1] = coordinates[i].y;
+		}
+		return ring;
+	}
+
+	/**
+	 * @return bounding box of the polygon
+	 */
+	public Envelope getEnvelope() {
+		return envelope;
+	}
+
+	/**
+	 * @param x
+	 *            lon
+	 * @param y
+	 *            lat
+	 * @return true, if the point is inside the polygon
+	 */
+	public boolean contains(double x, double y) {
+		if (!(x >= minX && x <= envelope.getMaxX() && y >= minY && y <= envelope.getMaxY())) {
+			return false;
+		}
+		int row = row(y);
+		byte cell = cells[row * columns + column(x)];
+		if (cell == BOUNDARY) {
+			return crossings(x, y, rowEdges[row]);
+		}
+		return cell == INSIDE;
+	}
+
+	private int column(double x) {
+		return Math.max(0, Math.min(columns - 1, (int) ((x - minX) / cellWidth)));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(rows - 1, (int) ((y - minY) / cellHeight)));
+	}
+
+	/**
+	 * ray casting: counts the edges crossed by a ray from the point in +x
+	 * direction.
+	 *
+	 * @return true, if the number of crossings is odd
+	 */
+	private boolean crossings(double x, double y, int[] candidates) {
+		boolean inside = false;
+		for (int c : candidates) {
+			int e = c * 4;
+			double y1 = edges[e + 1];
+			double y2 = edges[e + 3];
+			if ((y1 > y) != (y2 > y)) {
+				double x1 = edges[e];
+				double x2 = edges[e + 2];
+				if (x < (x2 - x1) * (y - y1) / (y2 - y1) + x1) {
+					inside = !inside;
+				}
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * assigns the edges to the rows, whose y range they overlap. The ranges
+	 * are extended by a fraction of a cell, so that points, which are
+	 * assigned to a neighbouring row by rounding, still find their edges.
+	 */
+	private void buildRows() {
+		int[] counts = new int[rows];
+		int[][] ranges = new int[edges.length / 4][];
+		for (int e = 0; e < edges.length; e += 4) {
+			int first = row(Math.min(edges[e + 1], edges[e + 3]) - cellHeight * 1e-6);
+			int last = row(Math.max(edges[e + 1], edges[e + 3]) + cellHeight * 1e-6);
+			ranges[e / 4] = new int[] { first, last };
+			for (int r = first; r <= last; r++) {
+				counts[r]++;
+			}
+		}
+		rowEdges = new int[rows][];
+		for (int r = 0; r < rows; r++) {
+			rowEdges[r] = new int[counts[r]];
+			counts[r] = 0;
+		}
+		for (int i = 0; i < ranges.length; i++) {
+			for (int r = ranges[i][0]; r <= ranges[i][1]; r++) {
+				rowEdges[r][counts[r]++] = i;
+			}
+		}
+	}
+
+	/**
+	 * marks the cells crossed by an edge as boundary and classifies the
+	 * other cells by their center.
+	 */
+	private void buildCells() {
+		cells = new byte[columns * rows];
+		double marginX = cellWidth * 1e-6;
+		double marginY = cellHeight * 1e-6;
+		for (int e = 0; e < edges.length; e += 4) {
+			double x1 = edges[e];
+			double y1 = edges[e + 1];
+			double x2 = edges[e + 2];
+			double y2 = edges[e + 3];
+			int c1 = column(Math.min(x1, x2) - marginX);
+			int c2 = column(Math.max(x1, x2) + marginX);
+			int r1 = row(Math.min(y1, y2) - marginY);
+			int r2 = row(Math.max(y1, y2) + marginY);
+			for (int r = r1; r <= r2; r++) {
+				double cellMinY = minY + r * cellHeight - marginY;
+				double cellMaxY = minY + (r + 1) * cellHeight + marginY;
+				for (int c = c1; c <= c2; c++) {
+					double cellMinX = minX + c * cellWidth - marginX;
+					double cellMaxX = minX + (c + 1) * cellWidth + marginX;
+					if (cells[r * columns + c] != BOUNDARY
+							&& intersects(x1, y1, x2, y2, cellMinX, cellMinY, cellMaxX, cellMaxY)) {
+						cells[r * columns + c] = BOUNDARY;
+					}
+				}
+			}
+		}
+		for (int r = 0; r < rows; r++) {
+			double y = minY + (r + 0.5) * cellHeight;
+			for (int c = 0; c < columns; c++) {
+				if (cells[r * columns + c] != BOUNDARY) {
+					double x = minX + (c + 0.5) * cellWidth;
+					cells[r * columns + c] = crossings(x, y, rowEdges[r]) ? INSIDE : OUTSIDE;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true, if the segment intersects the rectangle. The bounding
+	 *         boxes are known to overlap, so the segment misses the rectangle
+	 *         only if all corners are on the same side of its line.
+	 */
+	private static boolean intersects(double x1, double y1, double x2, double y2, double minX, double minY,
+			double maxX, double maxY) {
+		if (Math.max(x1, x2) < minX || Math.min(x1, x2) > maxX || Math.max(y1, y2) < minY
+				|| Math.min(y1, y2) > maxY) {
+			return false;
+		}
+		double dx = x2 - x1;
+		double dy = y2 - y1;
+		double a = dx * (minY - y1) - dy * (minX - x1);
+		double b = dx * (minY - y1) - dy * (maxX - x1);
+		double c = dx * (maxY - y1) - dy * (minX - x1);
+		double d = dx * (maxY - y1) - dy * (maxX - x1);
+		return !((a > 0 && b > 0 && c > 0 && d > 0) || (a < 0 && b < 0 && c < 0 && d < 0));
+	}
+
+	/**
+	 * @return share of boundary cells, which need the exact test
+	 */
+	public double boundaryShare() {
+		int boundary = 0;
+		for (byte cell : cells) {
+			if (cell == BOUNDARY) {
+				boundary++;
+			}
+		}
+		return (double) boundary / cells.length;
+	}
+}
@@ -0,0 +1,399 @@
+package osmgpxtool.filter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Reads the polygon or multipolygon of a {@link PolygonBoundary} from a file.
+ * The format is chosen by the file extension:
+ * <ul>
+ * <li>.poly: Osmosis polygon filter file</li>
+ * <li>.json, .geojson: GeoJSON Polygon or MultiPolygon, also as Feature,
+ * FeatureCollection or GeometryCollection. All polygons are combined.</li>
+ * <li>others: WKT</li>
+ * </ul>
+ */
+public class PolygonReader {
+
+	private PolygonReader() {
+	}
+
+	/**
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file can not be read or contains no valid polygon
+	 */
+	public static PolygonBoundary read(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		String content = readFile(file);
+		List<double[]> rings;
+		if (name.endsWith(".poly")) {
+			rings = readPoly(content, file);
+		} else if (name.endsWith(".json") || name.endsWith(".geojson")) {
+			rings = readGeoJson(content, file);
+		} else {
+			return readWkt(content, file);
+		}
+		if (rings.isEmpty()) {
+			throw new IOException("No polygon in " + file);
+		}
+		try {
+			return new PolygonBoundary(rings);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid polygon in " + file + ": " + e.getMessage());
+		}
+	}
+
+	private static String readFile(File file) throws IOException {
+		StringBuilder content = new StringBuilder();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			char[] buffer = new char[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				content.append(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return content.toString();
+	}
+
+	private static PolygonBoundary readWkt(String content, File file) throws IOException {
+		try {
+			Geometry geometry = new WKTReader().read(content.trim());
+			if (!(geometry instanceof Polygon) && !(geometry instanceof MultiPolygon)) {
+				throw new IOException("Geometry in " + file + " is not a polygon or multipolygon");
+			}
+			return PolygonBoundary.fromGeometry(geometry);
+		} catch (ParseException e) {
+			throw new IOException("Invalid WKT in " + file + ": " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid polygon in " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * reads an Osmosis polygon file: a name line, then sections of
+	 * coordinate lines, each terminated by END, and a final END. Sections
+	 * whose name starts with ! are holes, which need no special treatment
+	 * with the even-odd rule.
+	 */
+	static List<double[]> readPoly(String content, File file) throws IOException {
+		List<double[]> rings = new ArrayList<double[]>();
+		String[] lines = content.split("\r?\n");
+		List<Double> ring = null;
+		boolean ended = false;
+		// first line is the name of the polygon
+		for (int i = 1; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			if (ended) {
+				throw new IOException("Content after the final END in line " + (i + 1) + " of " + file);
+			}
+			if (ring == null) {
+				if (line.equals("END")) {
+					ended = true;
+				} else {
+					// section name
+					ring = new ArrayList<Double>();
+				}
+			} else if (line.equals("END")) {
+				rings.add(toArray(ring));
+				ring = null;
+			} else {
+				String[] values = line.split("\\s+");
+				if (values.length != 2) {
+					throw new IOException("Invalid coordinate in line " + (i + 1) + " of " + file + ": " + line);
+				}
+				try {
+					ring.add(Double.parseDouble(values[0]));
+					ring.add(Double.parseDouble(values[1]));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid coordinate in line " + (i + 1) + " of " + file + ": " + line);
+				}
+			}
+		}
+		if (!ended) {
+			throw new IOException("Missing END in " + file);
+		}
+		return rings;
+	}
+
+	private static double[] toArray(List<Double> values) {
+		double[] array = new double[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+
+	static List<double[]> readGeoJson(String content, File file) throws IOException {
+		List<double[]> rings = new ArrayList<double[]>();
+		Object json;
+		try {
+			json = new JsonParser(content).parse();
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid GeoJSON in " + file + ": " + e.getMessage());
+		}
+		addGeoJson(json, rings, file);
+		return rings;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void addGeoJson(Object json, List<double[]> rings, File file) throws IOException {
+		if (!(json instanceof Map)) {
+			throw new IOException("Invalid GeoJSON object in " + file);
+		}
+		Map<String, Object> object = (Map<String, Object>) json;
+		Object type = object.get("type");
+		if ("FeatureCollection".equals(type)) {
+			for (Object feature : list(object.get("features"), file)) {
+				addGeoJson(feature, rings, file);
+			}
+		} else if ("Feature".equals(type)) {
+			addGeoJson(object.get("geometry"), rings, file);
+		} else if ("GeometryCollection".equals(type)) {
+			for (Object geometry : list(object.get("geometries"), file)) {
+				addGeoJson(geometry, rings, file);
+			}
+		} else if ("Polygon".equals(type)) {
+			addPolygon(object.get("coordinates"), rings, file);
+		} else if ("MultiPolygon".equals(type)) {
+			for (Object polygon : list(object.get("coordinates"), file)) {
+				addPolygon(polygon, rings, file);
+			}
+		} else {
+			throw new IOException("GeoJSON geometry in " + file + " is not a polygon or multipolygon: " + type);
+		}
+	}
+
+	private static void addPolygon(Object polygon, List<double[]> rings, File file) throws IOException {
+		for (Object ring : list(polygon, file)) {
+			List<Object> positions = list(ring, file);
+			double[] array = new double[positions.size() * 2];
+			for (int i = 0; i < positions.size(); i++) {
+				List<Object> position = list(positions.get(i), file);
+				if (position.size() < 2 || !(position.get(0) instanceof Double) || !(position.get(1) instanceof Double)) {
+					throw new IOException("Invalid GeoJSON position in " + file);
+				}
+				array[2 * i] = (Double) position.get(0);
+				array[2 * i + 1] = (Double) position.get(1);
+			}
+			rings.add(array);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Object> list(Object json, File file) throws IOException {
+		if (!(json instanceof List)) {
+			throw new IOException("Invalid GeoJSON in " + file + ": array expected");
+		}
+		return (List<Object>) json;
+	}
+
+	/**
+	 * minimal JSON parser for GeoJSON. Objects are returned as maps, arrays
+	 * as lists, numbers as doubles.
+	 */
+	private static class JsonParser {
+		private String s;
+		private int pos = 0;
+
+		JsonParser(String s) {
+			this.s = s;
+		}
+
+		Object parse() {
+			Object value = value();
+			skipWhitespace();
+			if (pos < s.length()) {
+				throw error("unexpected content");
+			}
+			return value;
+		}
+
+		private Object value() {
+			skipWhitespace();
+			if (pos >= s.length()) {
+				throw error("unexpected end");
+			}
+			char c = s.charAt(pos);
+			switch (c) {
+			case '{':
+				return object();
+			case '[':
+				return array();
+			case '"':
+				return string();
+			case 't':
+				return literal("true", Boolean.TRUE);
+			case 'f':
+				return literal("false", Boolean.FALSE);
+			case 'n':
+				return literal("null", null);
+			default:
+				return number();
+			}
+		}
+
+		private Map<String, Object> object() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			pos++;
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return map;
+			}
+			while (true) {
+				skipWhitespace();
+				if (peek() != '"') {
+					throw error("name expected");
+				}
+				String name = string();
+				skipWhitespace();
+				expect(':');
+				map.put(name, value());
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+				} else {
+					expect('}');
+					return map;
+				}
+			}
+		}
+
+		private List<Object> array() {
+			List<Object> list = new ArrayList<Object>();
+			pos++;
+			skipWhitespace();
+			if (peek() == ']') {
+				pos++;
+				return list;
+			}
+			while (true) {
+				list.add(value());
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+				} else {
+					expect(']');
+					return list;
+				}
+			}
+		}
+
+		private String string() {
+			StringBuilder sb = new StringBuilder();
+			pos++;
+			while (true) {
+				if (pos >= s.length()) {
+					throw error("unterminated string");
+				}
+				char c = s.charAt(pos++);
+				if (c == '"') {
+					return sb.toString();
+				}
+				if (c == '\\') {
+					if (pos >= s.length()) {
+						throw error("unterminated string");
+					}
+					char e = s.charAt(pos++);
+					switch (e) {
+					case 'b':
+						sb.append('\b');
+						break;
+					case 'f':
+						sb.append('\f');
+						break;
+					case 'n':
+						sb.append('\n');
+						break;
+					case 'r':
+						sb.append('\r');
+						break;
+					case 't':
+						sb.append('\t');
+						break;
+					case 'u':
+						if (pos + 4 > s.length()) {
+							throw error("invalid escape");
+						}
+						try {
+							sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+						} catch (NumberFormatException ex) {
+							throw error("invalid escape");
+						}
+						pos += 4;
+						break;
+					default:
+						sb.append(e);
+					}
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+
+		private Object literal(String literal, Object value) {
+			if (!s.startsWith(literal, pos)) {
+				throw error("invalid value");
+			}
+			pos += literal.length();
+			return value;
+		}
+
+		private Double number() {
+			int start = pos;
+			while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) {
+				pos++;
+			}
+			try {
+				return Double.valueOf(s.substring(start, pos));
+			} catch (NumberFormatException e) {
+				throw error("invalid number");
+			}
+		}
+
+		private char peek() {
+			if (pos >= s.length()) {
+				throw error("unexpected end");
+			}
+			return s.charAt(pos);
+		}
+
+		private void expect(char c) {
+			if (peek() != c) {
+				throw error("'" + c + "' expected");
+			}
+			pos++;
+		}
+
+		private void skipWhitespace() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at position " + pos);
+		}
+	}
+}
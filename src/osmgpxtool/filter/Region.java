@@ -0,0 +1,95 @@
+package osmgpxtool.filter;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Named extract region, either a bounding box or a polygon. Polygons are
+ * converted to a {@link PolygonBoundary}, so that their points can be tested
+ * many times. Regions are immutable and can be shared between threads.
+ */
+public class Region {
+	private String name;
+	private Envelope envelope;
+	private PolygonBoundary boundary = null;
+	// position in the region set
+	private int index = -1;
+
+	/**
+	 * @param name
+	 * @param envelope
+	 *            bounding box of the region
+	 */
+	public Region(String name, Envelope envelope) {
+		this.name = name;
+		this.envelope = envelope;
+	}
+
+	/**
+	 * @param name
+	 * @param geometry
+	 *            polygon or multipolygon of the region
+	 */
+	public Region(String name, Geometry geometry) {
+		this(name, PolygonBoundary.fromGeometry(geometry));
+	}
+
+	/**
+	 * @param name
+	 * @param boundary
+	 *            polygon or multipolygon of the region
+	 */
+	public Region(String name, PolygonBoundary boundary) {
+		this.name = name;
+		this.envelope = boundary.getEnvelope();
+		this.boundary = boundary;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return bounding box of the region
+	 */
+	public Envelope getEnvelope() {
+		return envelope;
+	}
+
+	/**
+	 * @return true, if the region is a bounding box
+	 */
+	public boolean isRectangle() {
+		return boundary == null;
+	}
+
+	/**
+	 * @return position of the region in its {@link RegionSet}
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	void setIndex(int index) {
+		this.index = index;
+	}
+
+	/**
+	 * @param lon
+	 * @param lat
+	 * @return true, if the point is inside the region. Points on the boundary
+	 *         of a bounding box are inside, points on the boundary of a
+	 *         polygon may be inside or outside.
+	 */
+	public boolean contains(double lon, double lat) {
+		if (boundary != null) {
+			return boundary.contains(lon, lat);
+		}
+		return envelope.contains(lon, lat);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,174 @@
+package osmgpxtool.filter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Set of named regions, which are extracted in one pass. The regions are
+ * indexed by an STR-tree of their bounding boxes, so a track is only tested
+ * against the regions, whose bounding box intersects the bounding box of the
+ * track.
+ */
+public class RegionSet {
+	private List<Region> regions;
+	private STRtree tree;
+	private Envelope envelope;
+
+	/**
+	 * @param regions
+	 *            at least one region
+	 */
+	public RegionSet(List<Region> regions) {
+		if (regions.isEmpty()) {
+			throw new IllegalArgumentException("No regions given");
+		}
+		this.regions = Collections.unmodifiableList(new ArrayList<Region>(regions));
+		this.tree = new STRtree();
+		for (int i = 0; i < regions.size(); i++) {
+			Region region = regions.get(i);
+			region.setIndex(i);
+			tree.insert(region.getEnvelope(), region);
+			if (envelope == null) {
+				envelope = new Envelope(region.getEnvelope());
+			} else {
+				envelope.expandToInclude(region.getEnvelope());
+			}
+		}
+		tree.build();
+	}
+
+	/**
+	 * reads regions from a text file. Each line contains the name of a region
+	 * followed by its bounding box (left bottom right top) or by a polygon or
+	 * multipolygon as WKT, e.g.
+	 *
+	 * <pre>
+	 * heidelberg 8.64 49.39 8.72 49.42
+	 * triangle POLYGON((8 49, 9 49, 8.5 50, 8 49))
+	 * </pre>
+	 *
+	 * Names may contain letters, digits and underscores, as they are used
+	 * for file and table names. Empty lines and lines starting with # are
+	 * ignored.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file can not be read or a line is not valid
+	 */
+	public static RegionSet read(File file) throws IOException {
+		List<Region> regions = new ArrayList<Region>();
+		Set<String> names = new HashSet<String>();
+		WKTReader wkt = new WKTReader();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+", 2);
+				String name = parts[0];
+				if (!name.matches("\\w+") || parts.length < 2) {
+					throw new IOException("Invalid region in line " + number + " of " + file + ": " + line);
+				}
+				if (!names.add(name.toLowerCase())) {
+					throw new IOException("Duplicate region name in line " + number + " of " + file + ": " + name);
+				}
+				String definition = parts[1].trim();
+				if (Character.isLetter(definition.charAt(0))) {
+					regions.add(new Region(name, readGeometry(wkt, definition, number, file)));
+				} else {
+					regions.add(new Region(name, readBbox(definition, number, file)));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (regions.isEmpty()) {
+			throw new IOException("No regions in " + file);
+		}
+		return new RegionSet(regions);
+	}
+
+	private static Envelope readBbox(String definition, int number, File file) throws IOException {
+		String[] values = definition.split("[\\s,]+");
+		if (values.length != 4) {
+			throw new IOException("Bounding box in line " + number + " of " + file
+					+ " needs four values: left bottom right top");
+		}
+		try {
+			double left = Double.parseDouble(values[0]);
+			double bottom = Double.parseDouble(values[1]);
+			double right = Double.parseDouble(values[2]);
+			double top = Double.parseDouble(values[3]);
+			if (left > right || bottom > top) {
+				throw new IOException("Bounding box in line " + number + " of " + file
+						+ " is not ordered: left bottom right top");
+			}
+			return new Envelope(left, right, bottom, top);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid bounding box in line " + number + " of " + file + ": " + definition);
+		}
+	}
+
+	private static Geometry readGeometry(WKTReader wkt, String definition, int number, File file)
+			throws IOException {
+		try {
+			Geometry geometry = wkt.read(definition);
+			if (!(geometry instanceof Polygon) && !(geometry instanceof MultiPolygon)) {
+				throw new IOException("Region in line " + number + " of " + file
+						+ " is not a polygon or multipolygon");
+			}
+			return geometry;
+		} catch (ParseException e) {
+			throw new IOException("Invalid WKT in line " + number + " of " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return regions in the order of the file
+	 */
+	public List<Region> getRegions() {
+		return regions;
+	}
+
+	/**
+	 * @return bounding box of all regions
+	 */
+	public Envelope getEnvelope() {
+		return envelope;
+	}
+
+	/**
+	 * @param env
+	 * @return regions, whose bounding box intersects the given envelope
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Region> query(Envelope env) {
+		return tree.query(env);
+	}
+
+	public int size() {
+		return regions.size();
+	}
+}
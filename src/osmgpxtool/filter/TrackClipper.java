@@ -0,0 +1,359 @@
+package osmgpxtool.filter;
+
+import java.util.Arrays;
+
+import osmgpxtool.filter.gpx.GpxTrack;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Clips the segments of a track at the bounding box or polygon of a filter.
+ * The result are pieces, i.e. connected parts of the track segments inside
+ * the clip area. Where a segment enters or leaves the clip area, a boundary
+ * point is interpolated between the neighbouring track points, including
+ * elevation and time, if both track points have them.
+ *
+ * Bounding boxes are clipped exactly by the Liang-Barsky algorithm, so a line
+ * between two track points outside the box, which crosses the box, is kept.
+ * At polygons the boundary points are found by bisection between a track
+ * point inside and a track point outside; lines between two track points
+ * outside the polygon are dropped.
+ *
+ * If the filter does not clip, every track segment is a single piece. The
+ * clipper works on primitive arrays, which are reused for the next track, so
+ * no objects are created per point. A clipper must only be used by one
+ * thread.
+ */
+public class TrackClipper {
+	private static final int BISECTIONS = 48;
+
+	private GpxFilter filter;
+	private boolean clip;
+	private boolean rectangle;
+	private double minX;
+	private double minY;
+	private double maxX;
+	private double maxY;
+
+	private int size = 0;
+	private double[] lon = new double[256];
+	private double[] lat = new double[256];
+	private double[] ele = new double[256];
+	private long[] time = new long[256];
+	private boolean[] hasEle = new boolean[256];
+	private boolean[] hasTime = new boolean[256];
+	// index of the track point or -1, if the point is interpolated
+	private int[] source = new int[256];
+	private int pieces = 0;
+	private int[] pieceOffsets = new int[9];
+	private int[] pieceSegments = new int[8];
+	private boolean open = false;
+
+	// part of the line inside the clip area, result of clipLine
+	private double t0;
+	private double t1;
+
+	/**
+	 * @param filter
+	 *            filter with the clip area. Tracks are only clipped, if the
+	 *            filter clips (-c).
+	 */
+	public TrackClipper(GpxFilter filter) {
+		this.filter = filter;
+		this.clip = filter.isClipping();
+		this.rectangle = filter.isRectangle();
+		if (clip) {
+			Envelope env = filter.getEnvelope();
+			minX = env.getMinX();
+			minY = env.getMinY();
+			maxX = env.getMaxX();
+			maxY = env.getMaxY();
+		}
+	}
+
+	/**
+	 * clips the given track. The result replaces the result of the previous
+	 * track.
+	 *
+	 * @param trk
+	 * @return number of pieces
+	 */
+	public int clip(GpxTrack trk) {
+		size = 0;
+		pieces = 0;
+		for (int s = 0; s < trk.getSegmentCount(); s++) {
+			int start = trk.getSegmentStart(s);
+			int end = trk.getSegmentEnd(s);
+			if (!clip) {
+				startPiece(s);
+				for (int i = start; i < end; i++) {
+					addPoint(trk, i);
+				}
+				endPiece();
+			} else if (end - start == 1) {
+				if (filter.contains(trk.getLon(start), trk.getLat(start))) {
+					startPiece(s);
+					addPoint(trk, start);
+					endPiece();
+				}
+			} else {
+				clipSegment(trk, s, start, end);
+			}
+		}
+		return pieces;
+	}
+
+	private void clipSegment(GpxTrack trk, int s, int start, int end) {
+		boolean inside = filter.contains(trk.getLon(start), trk.getLat(start));
+		for (int a = start; a < end - 1; a++) {
+			int b = a + 1;
+			boolean nextInside = filter.contains(trk.getLon(b), trk.getLat(b));
+			if (clipLine(trk, a, b, inside, nextInside)) {
+				if (!open) {
+					startPiece(s);
+					if (t0 == 0) {
+						addPoint(trk, a);
+					} else {
+						addInterpolated(trk, a, b, t0);
+					}
+				}
+				if (t1 == 1) {
+					addPoint(trk, b);
+				} else {
+					addInterpolated(trk, a, b, t1);
+					endPiece();
+				}
+			} else if (open) {
+				endPiece();
+			}
+			inside = nextInside;
+		}
+		if (open) {
+			endPiece();
+		}
+	}
+
+	/**
+	 * computes the part [t0, t1] of the line from track point a to b, which
+	 * is inside the clip area.
+	 *
+	 * @return false, if no part of the line is inside
+	 */
+	private boolean clipLine(GpxTrack trk, int a, int b, boolean aInside, boolean bInside) {
+		if (aInside && bInside) {
+			t0 = 0;
+			t1 = 1;
+			return true;
+		}
+		double x1 = trk.getLon(a);
+		double y1 = trk.getLat(a);
+		double dx = trk.getLon(b) - x1;
+		double dy = trk.getLat(b) - y1;
+		if (!rectangle) {
+			if (aInside) {
+				t0 = 0;
+				t1 = bisect(x1, y1, dx, dy, 0, 1);
+				return true;
+			} else if (bInside) {
+				t0 = bisect(x1, y1, dx, dy, 1, 0);
+				t1 = 1;
+				return true;
+			}
+			return false;
+		}
+		// Liang-Barsky
+		t0 = 0;
+		t1 = 1;
+		if (!clipEdge(-dx, x1 - minX) || !clipEdge(dx, maxX - x1) || !clipEdge(-dy, y1 - minY)
+				|| !clipEdge(dy, maxY - y1)) {
+			return false;
+		}
+		// the track points themselves are decided by the point test
+		if (aInside) {
+			t0 = 0;
+		} else if (t0 == 0) {
+			return false;
+		}
+		if (bInside) {
+			t1 = 1;
+		} else if (t1 == 1) {
+			return false;
+		}
+		return t0 <= t1;
+	}
+
+	private boolean clipEdge(double p, double q) {
+		if (p == 0) {
+			return q >= 0;
+		}
+		double r = q / p;
+		if (p < 0) {
+			if (r > t1) {
+				return false;
+			}
+			if (r > t0) {
+				t0 = r;
+			}
+		} else {
+			if (r < t0) {
+				return false;
+			}
+			if (r < t1) {
+				t1 = r;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the parameter of the line closest to the boundary, whose point
+	 *         is inside the polygon
+	 */
+	private double bisect(double x, double y, double dx, double dy, double in, double out) {
+		for (int i = 0; i < BISECTIONS; i++) {
+			double t = (in + out) / 2;
+			if (filter.contains(x + t * dx, y + t * dy)) {
+				in = t;
+			} else {
+				out = t;
+			}
+		}
+		return in;
+	}
+
+	private void startPiece(int segment) {
+		if (pieces + 1 >= pieceOffsets.length) {
+			pieceOffsets = Arrays.copyOf(pieceOffsets, pieceOffsets.length * 2);
+			pieceSegments = Arrays.copyOf(pieceSegments, pieceSegments.length * 2);
+		}
+		pieceOffsets[pieces] = size;
+		pieceSegments[pieces] = segment;
+		open = true;
+	}
+
+	private void endPiece() {
+		open = false;
+		if (size - pieceOffsets[pieces] == 1 && source[size - 1] < 0) {
+			// line touching the boundary
+			size--;
+			return;
+		}
+		pieces++;
+		pieceOffsets[pieces] = size;
+	}
+
+	private int nextPoint() {
+		if (size == lon.length) {
+			int capacity = size * 2;
+			lon = Arrays.copyOf(lon, capacity);
+			lat = Arrays.copyOf(lat, capacity);
+			ele = Arrays.copyOf(ele, capacity);
+			time = Arrays.copyOf(time, capacity);
+			hasEle = Arrays.copyOf(hasEle, capacity);
+			hasTime = Arrays.copyOf(hasTime, capacity);
+			source = Arrays.copyOf(source, capacity);
+		}
+		return size++;
+	}
+
+	private void addPoint(GpxTrack trk, int i) {
+		if (size > pieceOffsets[pieces] && source[size - 1] < 0 && lon[size - 1] == trk.getLon(i)
+				&& lat[size - 1] == trk.getLat(i)) {
+			// track point on the boundary replaces the interpolated point
+			size--;
+		}
+		int p = nextPoint();
+		lon[p] = trk.getLon(i);
+		lat[p] = trk.getLat(i);
+		hasEle[p] = trk.hasEle(i);
+		ele[p] = hasEle[p] ? trk.getEle(i) : 0;
+		hasTime[p] = trk.hasTime(i);
+		time[p] = hasTime[p] ? trk.getTime(i) : 0;
+		source[p] = i;
+	}
+
+	private void addInterpolated(GpxTrack trk, int a, int b, double t) {
+		double x = trk.getLon(a) + t * (trk.getLon(b) - trk.getLon(a));
+		double y = trk.getLat(a) + t * (trk.getLat(b) - trk.getLat(a));
+		if (size > pieceOffsets[pieces] && lon[size - 1] == x && lat[size - 1] == y) {
+			// track point on the boundary
+			return;
+		}
+		int p = nextPoint();
+		lon[p] = x;
+		lat[p] = y;
+		hasEle[p] = trk.hasEle(a) && trk.hasEle(b);
+		ele[p] = hasEle[p] ? trk.getEle(a) + t * (trk.getEle(b) - trk.getEle(a)) : 0;
+		hasTime[p] = trk.hasTime(a) && trk.hasTime(b);
+		time[p] = hasTime[p] ? trk.getTime(a) + Math.round(t * (trk.getTime(b) - trk.getTime(a))) : 0;
+		source[p] = -1;
+	}
+
+	/**
+	 * @return number of pieces of the last clipped track
+	 */
+	public int getPieceCount() {
+		return pieces;
+	}
+
+	/**
+	 * @param piece
+	 * @return index of the first point of the given piece
+	 */
+	public int getPieceStart(int piece) {
+		return pieceOffsets[piece];
+	}
+
+	/**
+	 * @param piece
+	 * @return index after the last point of the given piece
+	 */
+	public int getPieceEnd(int piece) {
+		return pieceOffsets[piece + 1];
+	}
+
+	/**
+	 * @param piece
+	 * @return track segment of the given piece
+	 */
+	public int getSegment(int piece) {
+		return pieceSegments[piece];
+	}
+
+	public double getLon(int i) {
+		return lon[i];
+	}
+
+	public double getLat(int i) {
+		return lat[i];
+	}
+
+	public boolean hasEle(int i) {
+		return hasEle[i];
+	}
+
+	public double getEle(int i) {
+		return ele[i];
+	}
+
+	public boolean hasTime(int i) {
+		return hasTime[i];
+	}
+
+	/**
+	 * @param i
+	 * @return time in milliseconds since 1.1.1970 UTC
+	 */
+	public long getTime(int i) {
+		return time[i];
+	}
+
+	/**
+	 * @param i
+	 * @return index of the point in the track or -1, if it is an
+	 *         interpolated boundary point
+	 */
+	public int getSource(int i) {
+		return source[i];
+	}
+}
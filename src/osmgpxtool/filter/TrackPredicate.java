@@ -0,0 +1,53 @@
+package osmgpxtool.filter;
+
+import osmgpxtool.filter.gpx.GpxTrack;
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
+
+/**
+ * A criterion of a {@link GpxFilter}. The filter evaluates its predicates in
+ * the order of their estimated cost and stops at the first predicate, which
+ * rejects a track.
+ *
+ * Predicates with a cost below {@link #COST_TRACK} only look at the metadata
+ * of the gpx file. They are evaluated once per gpx file, before the file is
+ * parsed, if possible. Predicates must be thread-safe.
+ */
+public interface TrackPredicate {
+	/**
+	 * cost of predicates on the metadata of the gpx file
+	 */
+	public static final int COST_METADATA = 10;
+	/**
+	 * cost of predicates on the size of a track
+	 */
+	public static final int COST_TRACK = 20;
+	/**
+	 * cost of predicates on the bounding box of a track
+	 */
+	public static final int COST_ENVELOPE = 30;
+	/**
+	 * cost of predicates, which look at every point of a track
+	 */
+	public static final int COST_POINTS = 40;
+
+	/**
+	 * @return name of the predicate, used as rejection reason in the
+	 *         statistics
+	 */
+	public String getName();
+
+	/**
+	 * @return estimated cost of the predicate
+	 */
+	public int getCost();
+
+	/**
+	 * @param trk
+	 *            track or null for predicates on the metadata
+	 * @param metadata
+	 *            metadata of the gpx file for predicates on the metadata or
+	 *            null, if it is not known. Predicates on tracks get null.
+	 * @return true, if the track passes
+	 */
+	public boolean accept(GpxTrack trk, GpxFile metadata);
+}
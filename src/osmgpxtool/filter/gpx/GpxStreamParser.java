@@ -0,0 +1,137 @@
+package osmgpxtool.filter.gpx;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import osmgpxtool.util.TimeTools;
+
+/**
+ * Streaming parser for gpx files of version 1.0 and 1.1. The track points are
+ * read with StAX directly into the primitive arrays of {@link GpxTrack}, no
+ * JAXB object graph is created. Elements are matched by their local name, so
+ * both gpx versions are handled by a single pass. Only tracks are read,
+ * waypoints and routes are skipped.
+ *
+ * A parser instance is not thread-safe, but can be reused for any number of
+ * files.
+ */
+public class GpxStreamParser {
+
+	private XMLInputFactory factory;
+	private GpxTrack.Builder builder;
+
+	public GpxStreamParser() {
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		builder = new GpxTrack.Builder();
+	}
+
+	public GpxTrace parse(byte[] content) throws XMLStreamException {
+		return parse(new ByteArrayInputStream(content));
+	}
+
+	/**
+	 * parses the gpx file from the given stream. The stream is not closed.
+	 *
+	 * @param in
+	 * @return
+	 * @throws XMLStreamException
+	 *             if the file is not well-formed or a track point has no
+	 *             valid coordinates
+	 */
+	public GpxTrace parse(InputStream in) throws XMLStreamException {
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			return parse(reader);
+		} catch (IllegalArgumentException e) {
+			// invalid number or date
+			throw new XMLStreamException(e.getMessage(), reader.getLocation(), e);
+		} finally {
+			builder.reset();
+			reader.close();
+		}
+	}
+
+	private GpxTrace parse(XMLStreamReader reader) throws XMLStreamException {
+		GpxTrace trace = null;
+		boolean inTrk = false;
+		boolean inTrkpt = false;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+				if (trace == null) {
+					if (!name.equals("gpx")) {
+						throw new XMLStreamException("Root element is not gpx: " + name, reader.getLocation());
+					}
+					trace = new GpxTrace(reader.getAttributeValue(null, "version"));
+				} else if (inTrkpt) {
+					if (name.equals("ele")) {
+						builder.setEle(Double.parseDouble(reader.getElementText().trim()));
+					} else if (name.equals("time")) {
+						builder.setTime(TimeTools.parseXmlTime(reader.getElementText().trim()));
+					} else {
+						skipElement(reader);
+					}
+				} else if (inTrk) {
+					if (name.equals("trkseg")) {
+						builder.startSegment();
+					} else if (name.equals("trkpt")) {
+						builder.addPoint(parseCoordinate(reader, "lat"), parseCoordinate(reader, "lon"));
+						inTrkpt = true;
+					} else {
+						// name, desc, extensions etc.
+						skipElement(reader);
+					}
+				} else if (name.equals("trk")) {
+					inTrk = true;
+				} else {
+					// metadata, waypoints, routes
+					skipElement(reader);
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("trkpt")) {
+					inTrkpt = false;
+				} else if (name.equals("trk")) {
+					trace.getTracks().add(builder.build());
+					inTrk = false;
+				}
+			}
+		}
+		if (trace == null) {
+			throw new XMLStreamException("Document contains no gpx element");
+		}
+		return trace;
+	}
+
+	private double parseCoordinate(XMLStreamReader reader, String attribute) throws XMLStreamException {
+		String value = reader.getAttributeValue(null, attribute);
+		if (value == null) {
+			throw new XMLStreamException("trkpt without " + attribute + " attribute", reader.getLocation());
+		}
+		return Double.parseDouble(value);
+	}
+
+	/**
+	 * skips the current element including all children.
+	 */
+	private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
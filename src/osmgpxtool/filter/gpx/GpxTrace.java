@@ -0,0 +1,167 @@
+package osmgpxtool.filter.gpx;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import osmgpxtool.filter.GpxFilter;
+import osmgpxtool.filter.gpx.schema10.Gpx;
+import osmgpxtool.filter.gpx.schema10.Gpx.Trk;
+import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg;
+import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg.Trkpt;
+
+/**
+ * The tracks of a single gpx file, as read by {@link GpxStreamParser}.
+ * Waypoints, routes and other elements of the gpx file are not kept. This is
+ * the representation of gpx files, which is passed to the filter and the
+ * writers. Gpx files read with JAXB are converted by {@link #fromGpx(Gpx)}.
+ */
+public class GpxTrace {
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	private static final ThreadLocal<DatatypeFactory> DATATYPE_FACTORY = new ThreadLocal<DatatypeFactory>() {
+		@Override
+		protected DatatypeFactory initialValue() {
+			try {
+				return DatatypeFactory.newInstance();
+			} catch (DatatypeConfigurationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
+	private String version;
+	private List<GpxTrack> tracks;
+	private Gpx source = null;
+	// results of the tracks and the filter, which evaluated them
+	private GpxFilter resultsFilter = null;
+	private int[] results = null;
+
+	public GpxTrace(String version) {
+		this.version = version;
+		this.tracks = new ArrayList<GpxTrack>();
+	}
+
+	/**
+	 * @return version attribute of the gpx file (1.0 or 1.1)
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	public List<GpxTrack> getTracks() {
+		return tracks;
+	}
+
+	/**
+	 * @return true, if the trace has been converted from JAXB and keeps the
+	 *         original gpx file
+	 */
+	public boolean hasSource() {
+		return source != null;
+	}
+
+	/**
+	 * keeps the results of the given filter for the tracks, so that the
+	 * writer does not evaluate the tracks again (see
+	 * {@link GpxFilter#check(GpxTrace, int)}).
+	 *
+	 * @param filter
+	 * @param results
+	 *            result of {@link GpxFilter#evaluate(GpxTrack)} per track
+	 */
+	public void setResults(GpxFilter filter, int[] results) {
+		this.resultsFilter = filter;
+		this.results = results;
+	}
+
+	/**
+	 * @param filter
+	 * @return results of the tracks, if they were evaluated by the given
+	 *         filter, otherwise null
+	 */
+	public int[] getResults(GpxFilter filter) {
+		return filter == resultsFilter ? results : null;
+	}
+
+	/**
+	 * @return number of track points of all tracks
+	 */
+	public int size() {
+		int size = 0;
+		for (GpxTrack track : tracks) {
+			size += track.size();
+		}
+		return size;
+	}
+
+	/**
+	 * converts a gpx file of the JAXB representation. The gpx file is kept
+	 * and returned by {@link #toGpx()}, so waypoints and routes are not lost.
+	 *
+	 * @param gpx
+	 * @return
+	 */
+	public static GpxTrace fromGpx(Gpx gpx) {
+		GpxTrace trace = new GpxTrace(gpx.getVersion());
+		GpxTrack.Builder builder = new GpxTrack.Builder();
+		for (Trk trk : gpx.getTrk()) {
+			trace.tracks.add(GpxTrack.fromTrk(trk, builder));
+		}
+		trace.source = gpx;
+		return trace;
+	}
+
+	/**
+	 * converts the tracks to the JAXB representation of gpx version 1.0. If
+	 * the trace has been converted from JAXB, the original gpx file is
+	 * returned. Otherwise only the track points with lat, lon, ele and time
+	 * are kept.
+	 *
+	 * @return
+	 */
+	public Gpx toGpx() {
+		if (source != null) {
+			return source;
+		}
+		Gpx gpx = new Gpx();
+		gpx.setVersion("1.0");
+		for (GpxTrack track : tracks) {
+			Trk trk = new Trk();
+			for (int s = 0; s < track.getSegmentCount(); s++) {
+				Trkseg trkseg = new Trkseg();
+				for (int i = track.getSegmentStart(s); i < track.getSegmentEnd(s); i++) {
+					Trkpt pt = new Trkpt();
+					pt.setLat(BigDecimal.valueOf(track.getLat(i)));
+					pt.setLon(BigDecimal.valueOf(track.getLon(i)));
+					if (track.hasEle(i)) {
+						pt.setEle(BigDecimal.valueOf(track.getEle(i)));
+					}
+					if (track.hasTime(i)) {
+						pt.setTime(toXMLGregorianCalendar(track.getTime(i)));
+					}
+					trkseg.getTrkpt().add(pt);
+				}
+				trk.getTrkseg().add(trkseg);
+			}
+			gpx.getTrk().add(trk);
+		}
+		return gpx;
+	}
+
+	private static XMLGregorianCalendar toXMLGregorianCalendar(long time) {
+		GregorianCalendar c = new GregorianCalendar(UTC);
+		c.setTimeInMillis(time);
+		int millis = c.get(GregorianCalendar.MILLISECOND);
+		return DATATYPE_FACTORY.get().newXMLGregorianCalendar(c.get(GregorianCalendar.YEAR),
+				c.get(GregorianCalendar.MONTH) + 1, c.get(GregorianCalendar.DAY_OF_MONTH),
+				c.get(GregorianCalendar.HOUR_OF_DAY), c.get(GregorianCalendar.MINUTE),
+				c.get(GregorianCalendar.SECOND), millis == 0 ? DatatypeConstants.FIELD_UNDEFINED : millis, 0);
+	}
+}
@@ -0,0 +1,244 @@
+package osmgpxtool.filter.gpx;
+
+import java.util.Arrays;
+
+import osmgpxtool.filter.gpx.schema10.Gpx.Trk;
+import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg;
+import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg.Trkpt;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * A single track (&lt;trk&gt;) of a gpx file. The track points of all track
+ * segments are stored in primitive arrays. The points of segment s are stored
+ * at the indices segmentOffset(s) (inclusive) to segmentOffset(s+1)
+ * (exclusive). Missing elevation and time values are marked in bit masks.
+ */
+public class GpxTrack {
+
+	private int size;
+	private double[] lat;
+	private double[] lon;
+	private double[] ele;
+	private long[] time;
+	private long[] eleMask;
+	private long[] timeMask;
+	private int[] segmentOffsets;
+	// computed on first use
+	private volatile Envelope envelope = null;
+
+	private GpxTrack() {
+	}
+
+	/**
+	 * converts a track of the JAXB representation.
+	 *
+	 * @param trk
+	 * @param builder
+	 *            builder used for the conversion
+	 * @return
+	 */
+	public static GpxTrack fromTrk(Trk trk, Builder builder) {
+		builder.reset();
+		for (Trkseg trkseg : trk.getTrkseg()) {
+			builder.startSegment();
+			for (Trkpt trkpt : trkseg.getTrkpt()) {
+				builder.addPoint(trkpt.getLat().doubleValue(), trkpt.getLon().doubleValue());
+				if (trkpt.getEle() != null) {
+					builder.setEle(trkpt.getEle().doubleValue());
+				}
+				if (trkpt.getTime() != null) {
+					builder.setTime(trkpt.getTime().toGregorianCalendar().getTimeInMillis());
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @return number of track points of all segments
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of track segments
+	 */
+	public int getSegmentCount() {
+		return segmentOffsets.length - 1;
+	}
+
+	/**
+	 * @param segment
+	 * @return index of the first track point of the given segment
+	 */
+	public int getSegmentStart(int segment) {
+		return segmentOffsets[segment];
+	}
+
+	/**
+	 * @param segment
+	 * @return index after the last track point of the given segment
+	 */
+	public int getSegmentEnd(int segment) {
+		return segmentOffsets[segment + 1];
+	}
+
+	/**
+	 * @return bounding box of the track points or null, if the track has no
+	 *         points
+	 */
+	public Envelope getEnvelope() {
+		if (envelope == null && size > 0) {
+			double minLon = lon[0];
+			double maxLon = minLon;
+			double minLat = lat[0];
+			double maxLat = minLat;
+			for (int i = 1; i < size; i++) {
+				minLon = Math.min(minLon, lon[i]);
+				maxLon = Math.max(maxLon, lon[i]);
+				minLat = Math.min(minLat, lat[i]);
+				maxLat = Math.max(maxLat, lat[i]);
+			}
+			envelope = new Envelope(minLon, maxLon, minLat, maxLat);
+		}
+		return envelope;
+	}
+
+	public double getLat(int i) {
+		return lat[i];
+	}
+
+	public double getLon(int i) {
+		return lon[i];
+	}
+
+	/**
+	 * @param i
+	 * @return elevation of track point i. Only valid if {@link #hasEle(int)}
+	 *         returns true.
+	 */
+	public double getEle(int i) {
+		return ele[i];
+	}
+
+	/**
+	 * @param i
+	 * @return time of track point i in milliseconds since 1.1.1970 UTC. Only
+	 *         valid if {@link #hasTime(int)} returns true.
+	 */
+	public long getTime(int i) {
+		return time[i];
+	}
+
+	public boolean hasEle(int i) {
+		return (eleMask[i >>> 6] & (1L << i)) != 0;
+	}
+
+	public boolean hasTime(int i) {
+		return (timeMask[i >>> 6] & (1L << i)) != 0;
+	}
+
+	/**
+	 * Collects the track points of a track while it is parsed. The internal
+	 * arrays grow as needed and are reused for the next track after
+	 * {@link #build()} has been called.
+	 */
+	public static class Builder {
+		private int size = 0;
+		private double[] lat = new double[256];
+		private double[] lon = new double[256];
+		private double[] ele = new double[256];
+		private long[] time = new long[256];
+		private long[] eleMask = new long[4];
+		private long[] timeMask = new long[4];
+		private int segments = 0;
+		private int[] segmentOffsets = new int[8];
+
+		/**
+		 * starts a new track segment.
+		 */
+		public void startSegment() {
+			if (segments + 1 >= segmentOffsets.length) {
+				segmentOffsets = Arrays.copyOf(segmentOffsets, segmentOffsets.length * 2);
+			}
+			segments++;
+			segmentOffsets[segments - 1] = size;
+		}
+
+		/**
+		 * adds a track point without elevation and time to the current
+		 * segment.
+		 *
+		 * @return index of the added track point
+		 */
+		public int addPoint(double lat, double lon) {
+			if (segments == 0) {
+				startSegment();
+			}
+			if (size == this.lat.length) {
+				int capacity = size * 2;
+				this.lat = Arrays.copyOf(this.lat, capacity);
+				this.lon = Arrays.copyOf(this.lon, capacity);
+				this.ele = Arrays.copyOf(this.ele, capacity);
+				this.time = Arrays.copyOf(this.time, capacity);
+				this.eleMask = Arrays.copyOf(this.eleMask, (capacity + 63) >>> 6);
+				this.timeMask = Arrays.copyOf(this.timeMask, (capacity + 63) >>> 6);
+			}
+			int i = size++;
+			this.lat[i] = lat;
+			this.lon[i] = lon;
+			this.eleMask[i >>> 6] &= ~(1L << i);
+			this.timeMask[i >>> 6] &= ~(1L << i);
+			return i;
+		}
+
+		/**
+		 * sets the elevation of the last added track point.
+		 */
+		public void setEle(double ele) {
+			int i = size - 1;
+			this.ele[i] = ele;
+			this.eleMask[i >>> 6] |= 1L << i;
+		}
+
+		/**
+		 * sets the time of the last added track point.
+		 */
+		public void setTime(long time) {
+			int i = size - 1;
+			this.time[i] = time;
+			this.timeMask[i >>> 6] |= 1L << i;
+		}
+
+		/**
+		 * creates the track from the collected points and resets the builder.
+		 *
+		 * @return
+		 */
+		public GpxTrack build() {
+			GpxTrack trk = new GpxTrack();
+			trk.size = size;
+			trk.lat = Arrays.copyOf(lat, size);
+			trk.lon = Arrays.copyOf(lon, size);
+			trk.ele = Arrays.copyOf(ele, size);
+			trk.time = Arrays.copyOf(time, size);
+			int words = (size + 63) >>> 6;
+			trk.eleMask = Arrays.copyOf(eleMask, words);
+			trk.timeMask = Arrays.copyOf(timeMask, words);
+			trk.segmentOffsets = Arrays.copyOf(segmentOffsets, segments + 1);
+			trk.segmentOffsets[segments] = size;
+			reset();
+			return trk;
+		}
+
+		/**
+		 * discards all collected points.
+		 */
+		public void reset() {
+			size = 0;
+			segments = 0;
+		}
+	}
+}
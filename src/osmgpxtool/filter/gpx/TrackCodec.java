@@ -0,0 +1,377 @@
+package osmgpxtool.filter.gpx;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of the tracks of a {@link GpxTrace}, used to keep
+ * tracks in memory or on disk between processing stages. The columns of a
+ * track are stored one after the other:
+ * <ul>
+ * <li>coordinates as fixed point values of 1e-7 degrees</li>
+ * <li>elevations as fixed point values of centimetres</li>
+ * <li>times in milliseconds</li>
+ * </ul>
+ * Each value is stored as zigzag varint of the difference to the previous
+ * value of its column, so consecutive points of a track usually take one to
+ * three bytes per value instead of eight. The masks of missing elevations and
+ * times are stored as run lengths.
+ *
+ * The encoding is lossless. Gpx files have coordinates with up to 7 and
+ * elevations with up to 2 decimal places, which are decoded to exactly the
+ * same doubles as parsed from the file. If a column of a track contains
+ * values with more decimal places, the column is stored as raw doubles.
+ *
+ * A codec is not thread-safe, its buffers are reused for every track.
+ */
+public class TrackCodec {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int FORMAT = 1;
+
+	private static final double COORDINATE_SCALE = 1e7;
+	private static final double ELEVATION_SCALE = 100;
+
+	private static final int FIXED_COORDINATES = 1;
+	private static final int FIXED_ELEVATIONS = 1 << 1;
+
+	private byte[] buffer = new byte[4096];
+	private int position = 0;
+
+	// columns of the track, which is decoded
+	private double[] lat = new double[256];
+	private double[] lon = new double[256];
+	private double[] ele = new double[256];
+	private long[] time = new long[256];
+	private boolean[] hasEle = new boolean[256];
+	private boolean[] hasTime = new boolean[256];
+	private int[] segmentSizes = new int[8];
+	private GpxTrack.Builder builder = new GpxTrack.Builder();
+
+	/**
+	 * encodes the version and the tracks of the given trace. Other elements
+	 * of the gpx file, which are kept by a trace converted from JAXB, are not
+	 * encoded.
+	 *
+	 * @param trace
+	 * @return
+	 */
+	public byte[] encode(GpxTrace trace) {
+		position = 0;
+		writeVarint(FORMAT);
+		if (trace.getVersion() == null) {
+			writeVarint(0);
+		} else {
+			byte[] version = trace.getVersion().getBytes(UTF8);
+			writeVarint(version.length + 1);
+			ensureCapacity(version.length);
+			System.arraycopy(version, 0, buffer, position, version.length);
+			position += version.length;
+		}
+		writeVarint(trace.getTracks().size());
+		for (GpxTrack track : trace.getTracks()) {
+			encode(track);
+		}
+		return Arrays.copyOf(buffer, position);
+	}
+
+	private void encode(GpxTrack track) {
+		int size = track.size();
+		writeVarint(track.getSegmentCount());
+		for (int s = 0; s < track.getSegmentCount(); s++) {
+			writeVarint(track.getSegmentEnd(s) - track.getSegmentStart(s));
+		}
+		int flags = 0;
+		if (isFixedPoint(track, COORDINATE_SCALE, false)) {
+			flags |= FIXED_COORDINATES;
+		}
+		if (isFixedPoint(track, ELEVATION_SCALE, true)) {
+			flags |= FIXED_ELEVATIONS;
+		}
+		writeVarint(flags);
+		writeMask(track, true);
+		writeMask(track, false);
+
+		if ((flags & FIXED_COORDINATES) != 0) {
+			long lastLat = 0;
+			long lastLon = 0;
+			for (int i = 0; i < size; i++) {
+				long lat = Math.round(track.getLat(i) * COORDINATE_SCALE);
+				long lon = Math.round(track.getLon(i) * COORDINATE_SCALE);
+				writeSignedVarint(lat - lastLat);
+				writeSignedVarint(lon - lastLon);
+				lastLat = lat;
+				lastLon = lon;
+			}
+		} else {
+			for (int i = 0; i < size; i++) {
+				writeDouble(track.getLat(i));
+				writeDouble(track.getLon(i));
+			}
+		}
+
+		long last = 0;
+		for (int i = 0; i < size; i++) {
+			if (track.hasEle(i)) {
+				if ((flags & FIXED_ELEVATIONS) != 0) {
+					long ele = Math.round(track.getEle(i) * ELEVATION_SCALE);
+					writeSignedVarint(ele - last);
+					last = ele;
+				} else {
+					writeDouble(track.getEle(i));
+				}
+			}
+		}
+
+		last = 0;
+		for (int i = 0; i < size; i++) {
+			if (track.hasTime(i)) {
+				writeSignedVarint(track.getTime(i) - last);
+				last = track.getTime(i);
+			}
+		}
+	}
+
+	/**
+	 * @return true, if all values of the column are decoded exactly from
+	 *         fixed point values of the given scale
+	 */
+	private static boolean isFixedPoint(GpxTrack track, double scale, boolean elevation) {
+		for (int i = 0; i < track.size(); i++) {
+			if (elevation) {
+				if (track.hasEle(i) && !isFixedPoint(track.getEle(i), scale)) {
+					return false;
+				}
+			} else if (!isFixedPoint(track.getLat(i), scale) || !isFixedPoint(track.getLon(i), scale)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isFixedPoint(double value, double scale) {
+		// compares the bits, so that -0.0 is kept as well
+		return Double.doubleToLongBits(Math.round(value * scale) / scale) == Double.doubleToLongBits(value);
+	}
+
+	/**
+	 * writes the run lengths of points with and without value, starting with
+	 * points with value.
+	 */
+	private void writeMask(GpxTrack track, boolean elevation) {
+		boolean present = true;
+		int run = 0;
+		for (int i = 0; i < track.size(); i++) {
+			if ((elevation ? track.hasEle(i) : track.hasTime(i)) == present) {
+				run++;
+			} else {
+				writeVarint(run);
+				present = !present;
+				run = 1;
+			}
+		}
+		writeVarint(run);
+	}
+
+	/**
+	 * decodes a trace encoded by {@link #encode(GpxTrace)}.
+	 *
+	 * @param data
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the data is not a valid encoded trace
+	 */
+	public GpxTrace decode(byte[] data) {
+		return decode(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * decodes a trace from the remaining bytes of the given buffer. The
+	 * position of the buffer is moved to the end of the trace.
+	 *
+	 * @see #decode(byte[])
+	 * @param in
+	 * @return
+	 */
+	public GpxTrace decode(ByteBuffer in) {
+		try {
+			if (readVarint(in) != FORMAT) {
+				throw new IllegalArgumentException("Unknown track encoding");
+			}
+			String version = null;
+			int length = readVarint(in) - 1;
+			if (length >= 0) {
+				byte[] bytes = new byte[length];
+				in.get(bytes);
+				version = new String(bytes, UTF8);
+			}
+			GpxTrace trace = new GpxTrace(version);
+			int tracks = readVarint(in);
+			for (int t = 0; t < tracks; t++) {
+				trace.getTracks().add(decodeTrack(in));
+			}
+			return trace;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated track encoding", e);
+		}
+	}
+
+	private GpxTrack decodeTrack(ByteBuffer in) {
+		int segments = readVarint(in);
+		if (segments > in.remaining()) {
+			throw new IllegalArgumentException("Invalid number of track segments: " + segments);
+		}
+		if (segmentSizes.length < segments) {
+			segmentSizes = new int[segments];
+		}
+		int size = 0;
+		for (int s = 0; s < segments; s++) {
+			segmentSizes[s] = readVarint(in);
+			size += segmentSizes[s];
+		}
+		if (size < 0 || size > in.remaining()) {
+			// every point takes at least one byte
+			throw new IllegalArgumentException("Invalid number of track points: " + size);
+		}
+		ensureColumns(size);
+		int flags = readVarint(in);
+		readMask(in, hasEle, size);
+		readMask(in, hasTime, size);
+
+		if ((flags & FIXED_COORDINATES) != 0) {
+			long lastLat = 0;
+			long lastLon = 0;
+			for (int i = 0; i < size; i++) {
+				lastLat += readSignedVarint(in);
+				lastLon += readSignedVarint(in);
+				lat[i] = lastLat / COORDINATE_SCALE;
+				lon[i] = lastLon / COORDINATE_SCALE;
+			}
+		} else {
+			for (int i = 0; i < size; i++) {
+				lat[i] = in.getDouble();
+				lon[i] = in.getDouble();
+			}
+		}
+
+		long last = 0;
+		for (int i = 0; i < size; i++) {
+			if (hasEle[i]) {
+				if ((flags & FIXED_ELEVATIONS) != 0) {
+					last += readSignedVarint(in);
+					ele[i] = last / ELEVATION_SCALE;
+				} else {
+					ele[i] = in.getDouble();
+				}
+			}
+		}
+
+		last = 0;
+		for (int i = 0; i < size; i++) {
+			if (hasTime[i]) {
+				last += readSignedVarint(in);
+				time[i] = last;
+			}
+		}
+
+		builder.reset();
+		int i = 0;
+		for (int s = 0; s < segments; s++) {
+			builder.startSegment();
+			for (int end = i + segmentSizes[s]; i < end; i++) {
+				builder.addPoint(lat[i], lon[i]);
+				if (hasEle[i]) {
+					builder.setEle(ele[i]);
+				}
+				if (hasTime[i]) {
+					builder.setTime(time[i]);
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	private static void readMask(ByteBuffer in, boolean[] mask, int size) {
+		boolean present = true;
+		int i = 0;
+		while (i < size) {
+			int run = readVarint(in);
+			if (run < 0 || run > size - i) {
+				throw new IllegalArgumentException("Invalid run length: " + run);
+			}
+			Arrays.fill(mask, i, i + run, present);
+			i += run;
+			present = !present;
+		}
+		if (size == 0) {
+			// the empty run
+			readVarint(in);
+		}
+	}
+
+	private void ensureColumns(int size) {
+		if (lat.length < size) {
+			int capacity = Math.max(size, lat.length * 2);
+			lat = new double[capacity];
+			lon = new double[capacity];
+			ele = new double[capacity];
+			time = new long[capacity];
+			hasEle = new boolean[capacity];
+			hasTime = new boolean[capacity];
+		}
+	}
+
+	private void writeSignedVarint(long v) {
+		// zigzag encoding, small negative values take few bytes as well
+		writeVarint((v << 1) ^ (v >> 63));
+	}
+
+	private void writeVarint(long v) {
+		ensureCapacity(10);
+		while ((v & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buffer[position++] = (byte) v;
+	}
+
+	private void writeDouble(double v) {
+		ensureCapacity(8);
+		long bits = Double.doubleToLongBits(v);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (bits >>> shift);
+		}
+	}
+
+	private static long readSignedVarint(ByteBuffer in) {
+		long v = readVarintLong(in);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		long v = readVarintLong(in);
+		if (v > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid varint: " + v);
+		}
+		return (int) v;
+	}
+
+	private static long readVarintLong(ByteBuffer in) {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+		throw new IllegalArgumentException("Invalid varint");
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (position + bytes > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+		}
+	}
+}
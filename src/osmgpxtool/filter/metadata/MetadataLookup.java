@@ -0,0 +1,26 @@
+package osmgpxtool.filter.metadata;
+
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
+
+/**
+ * Metadata of gpx files by gpx id.
+ */
+public interface MetadataLookup {
+
+	/**
+	 * @param id
+	 * @return true, if metadata of the given gpx id is available
+	 */
+	public boolean contains(int id);
+
+	/**
+	 * @param id
+	 * @return metadata of the given gpx id or null
+	 */
+	public GpxFile get(int id);
+
+	/**
+	 * @return number of gpx files
+	 */
+	public int size();
+}
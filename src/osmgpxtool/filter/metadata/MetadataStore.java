@@ -0,0 +1,346 @@
+package osmgpxtool.filter.metadata;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile.Tags;
+
+/**
+ * Compact store of the metadata of gpx files. The entries are packed into
+ * records in direct buffers outside of the heap. User names, visibility
+ * values and tags are stored once in a string pool and referenced by the
+ * records. The records are found by an open addressing hash index of the gpx
+ * ids, so a lookup usually costs a single probe.
+ *
+ * A GpxFile is only created by {@link #get(int)}, when the metadata of a gpx
+ * file is actually needed by a writer. Use {@link #contains(int)} to check
+ * for metadata without creating it.
+ *
+ * The store is thread-safe. Entries can be added while others are read.
+ */
+public class MetadataStore implements MetadataLookup {
+	static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int EMPTY = Integer.MIN_VALUE;
+
+	private static final int UID = 1;
+	private static final int POINTS = 1 << 1;
+	private static final int LAT = 1 << 2;
+	private static final int LON = 1 << 3;
+	private static final int TIMESTAMP = 1 << 4;
+	private static final int TAGS = 1 << 5;
+	private static final int DESCRIPTION = 1 << 6;
+	private static final int FILENAME = 1 << 7;
+
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+	private DatatypeFactory datatypes;
+
+	// hash index: gpx id -> record address
+	private int[] keys;
+	private long[] addresses;
+	private int size = 0;
+
+	// records: address = chunk << 32 | position
+	private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private ByteBuffer current = null;
+	private ByteBuffer record = ByteBuffer.allocate(1024);
+
+	private List<String> strings = new ArrayList<String>();
+	private Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+
+	public MetadataStore() {
+		keys = new int[1024];
+		addresses = new long[1024];
+		Arrays.fill(keys, EMPTY);
+		try {
+			datatypes = DatatypeFactory.newInstance();
+		} catch (DatatypeConfigurationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * adds the given metadata. Existing metadata of the same gpx id is
+	 * replaced.
+	 *
+	 * @param meta
+	 */
+	public void add(GpxFile meta) {
+		lock.writeLock().lock();
+		try {
+			encode(meta);
+			long address = append();
+			int id = meta.getId();
+			int slot = find(id);
+			if (keys[slot] == EMPTY) {
+				keys[slot] = id;
+				size++;
+			}
+			addresses[slot] = address;
+			if (size * 4 > keys.length * 3) {
+				rehash();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return true, if the store contains metadata for the given gpx id
+	 */
+	@Override
+	public boolean contains(int id) {
+		lock.readLock().lock();
+		try {
+			return keys[find(id)] != EMPTY;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * creates the GpxFile of the given gpx id from its record.
+	 *
+	 * @param id
+	 * @return metadata or null, if the store contains no metadata for the id
+	 */
+	@Override
+	public GpxFile get(int id) {
+		lock.readLock().lock();
+		try {
+			int slot = find(id);
+			if (keys[slot] == EMPTY) {
+				return null;
+			}
+			return decode(id, addresses[slot]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of gpx files
+	 */
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return bytes allocated for records outside of the heap
+	 */
+	public long offHeapSize() {
+		lock.readLock().lock();
+		try {
+			long bytes = 0;
+			for (ByteBuffer chunk : chunks) {
+				bytes += chunk.capacity();
+			}
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of distinct strings in the pool
+	 */
+	public int pooledStrings() {
+		lock.readLock().lock();
+		try {
+			return strings.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return slot of the given id or the empty slot, where it would be
+	 *         inserted
+	 */
+	private int find(int id) {
+		int mask = keys.length - 1;
+		int hash = id * 0x9E3779B9;
+		int slot = (hash ^ hash >>> 16) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != id) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash() {
+		int[] oldKeys = keys;
+		long[] oldAddresses = addresses;
+		keys = new int[oldKeys.length * 2];
+		addresses = new long[oldKeys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				addresses[slot] = oldAddresses[i];
+			}
+		}
+	}
+
+	/**
+	 * copies the encoded record into the current chunk. Records never cross
+	 * chunks.
+	 *
+	 * @return address of the record
+	 */
+	private long append() {
+		record.flip();
+		if (current == null || current.remaining() < record.remaining()) {
+			// chunks grow up to the chunk size, so small dumps need little
+			// memory
+			int capacity = current == null ? 1024 * 1024 : Math.min(CHUNK_SIZE, current.capacity() * 2);
+			current = ByteBuffer.allocateDirect(Math.max(capacity, record.remaining()));
+			chunks.add(current);
+		}
+		long address = (long) (chunks.size() - 1) << 32 | current.position();
+		current.put(record);
+		return address;
+	}
+
+	private void encode(GpxFile meta) {
+		record.clear();
+		int flags = (meta.getUid() != null ? UID : 0) | (meta.getPoints() != null ? POINTS : 0)
+				| (meta.getLat() != null ? LAT : 0) | (meta.getLon() != null ? LON : 0)
+				| (meta.getTimestamp() != null ? TIMESTAMP : 0) | (meta.getTags() != null ? TAGS : 0)
+				| (meta.getDescription() != null ? DESCRIPTION : 0) | (meta.getFilename() != null ? FILENAME : 0);
+		ensureCapacity(32);
+		record.put((byte) flags);
+		record.putInt(pool(meta.getUser()));
+		record.putInt(pool(meta.getVisibility()));
+		if (meta.getUid() != null) {
+			record.putInt(meta.getUid());
+		}
+		if (meta.getPoints() != null) {
+			record.putShort(meta.getPoints());
+		}
+		if (meta.getLat() != null) {
+			record.putFloat(meta.getLat());
+		}
+		if (meta.getLon() != null) {
+			record.putFloat(meta.getLon());
+		}
+		if (meta.getTimestamp() != null) {
+			// the lexical form keeps the precision and time zone of the input
+			putString(meta.getTimestamp().toXMLFormat());
+		}
+		if (meta.getTags() != null) {
+			List<String> tags = meta.getTags().getTag();
+			ensureCapacity(4 + tags.size() * 4);
+			record.putInt(tags.size());
+			for (String tag : tags) {
+				record.putInt(pool(tag));
+			}
+		}
+		if (meta.getDescription() != null) {
+			putString(meta.getDescription());
+		}
+		if (meta.getFilename() != null) {
+			putString(meta.getFilename());
+		}
+	}
+
+	private GpxFile decode(int id, long address) {
+		// the duplicate has its own position, so records can be decoded
+		// concurrently
+		ByteBuffer in = chunks.get((int) (address >>> 32)).duplicate();
+		in.position((int) address);
+		GpxFile meta = new GpxFile();
+		meta.setId(id);
+		int flags = in.get() & 0xFF;
+		meta.setUser(pooled(in.getInt()));
+		meta.setVisibility(pooled(in.getInt()));
+		if ((flags & UID) != 0) {
+			meta.setUid(in.getInt());
+		}
+		if ((flags & POINTS) != 0) {
+			meta.setPoints(in.getShort());
+		}
+		if ((flags & LAT) != 0) {
+			meta.setLat(in.getFloat());
+		}
+		if ((flags & LON) != 0) {
+			meta.setLon(in.getFloat());
+		}
+		if ((flags & TIMESTAMP) != 0) {
+			meta.setTimestamp(datatypes.newXMLGregorianCalendar(getString(in)));
+		}
+		if ((flags & TAGS) != 0) {
+			int n = in.getInt();
+			Tags tags = new Tags();
+			for (int i = 0; i < n; i++) {
+				tags.getTag().add(pooled(in.getInt()));
+			}
+			meta.setTags(tags);
+		}
+		if ((flags & DESCRIPTION) != 0) {
+			meta.setDescription(getString(in));
+		}
+		if ((flags & FILENAME) != 0) {
+			meta.setFilename(getString(in));
+		}
+		return meta;
+	}
+
+	private int pool(String s) {
+		if (s == null) {
+			return -1;
+		}
+		Integer index = stringIndex.get(s);
+		if (index == null) {
+			index = strings.size();
+			strings.add(s);
+			stringIndex.put(s, index);
+		}
+		return index;
+	}
+
+	private String pooled(int index) {
+		return index < 0 ? null : strings.get(index);
+	}
+
+	private void putString(String s) {
+		byte[] bytes = s.getBytes(UTF8);
+		ensureCapacity(4 + bytes.length);
+		record.putInt(bytes.length);
+		record.put(bytes);
+	}
+
+	private static String getString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (record.remaining() < bytes) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+			record.flip();
+			larger.put(record);
+			record = larger;
+		}
+	}
+}
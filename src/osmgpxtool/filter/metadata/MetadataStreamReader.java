@@ -0,0 +1,149 @@
+package osmgpxtool.filter.metadata;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile.Tags;
+
+/**
+ * Streaming reader for metadata.xml of a gpx dump. Unlike unmarshalling the
+ * whole file with JAXB, the entries are passed to a {@link Handler} one by
+ * one as they are read, so the complete list of entries is never held in
+ * memory. User names, visibility values and tags are deduplicated, since
+ * they repeat across many entries.
+ *
+ * The values are converted like JAXB does, so the entries are equal to the
+ * entries of the unmarshalled GpxFiles.
+ */
+public class MetadataStreamReader {
+	static Logger LOGGER = LoggerFactory.getLogger(MetadataStreamReader.class);
+
+	/**
+	 * receives the entries of metadata.xml
+	 */
+	public interface Handler {
+		public void add(GpxFile metadata);
+	}
+
+	private XMLInputFactory factory;
+	private DatatypeFactory datatypes;
+	private Map<String, String> strings = new HashMap<String, String>();
+
+	public MetadataStreamReader() {
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		try {
+			datatypes = DatatypeFactory.newInstance();
+		} catch (DatatypeConfigurationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * reads all entries of the given metadata.xml. The stream is not closed.
+	 *
+	 * @param in
+	 * @param handler
+	 * @return number of entries read
+	 * @throws XMLStreamException
+	 *             if the file is not well-formed or an attribute is not valid
+	 */
+	public int read(InputStream in, Handler handler) throws XMLStreamException {
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			return read(reader, handler);
+		} catch (IllegalArgumentException e) {
+			// invalid number or date
+			throw new XMLStreamException(e.getMessage(), reader.getLocation(), e);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private int read(XMLStreamReader reader, Handler handler) throws XMLStreamException {
+		int count = 0;
+		GpxFile meta = null;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("gpxFile")) {
+					meta = readAttributes(reader);
+				} else if (meta == null) {
+					continue;
+				} else if (name.equals("description")) {
+					meta.setDescription(reader.getElementText());
+				} else if (name.equals("tags")) {
+					meta.setTags(new Tags());
+				} else if (name.equals("tag") && meta.getTags() != null) {
+					meta.getTags().getTag().add(pool(reader.getElementText()));
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("gpxFile")) {
+				if (meta.getId() == null) {
+					LOGGER.warn("Skipped metadata without id at line " + reader.getLocation().getLineNumber());
+				} else {
+					handler.add(meta);
+					count++;
+				}
+				meta = null;
+			}
+		}
+		return count;
+	}
+
+	private GpxFile readAttributes(XMLStreamReader reader) {
+		GpxFile meta = new GpxFile();
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String name = reader.getAttributeLocalName(i);
+			String value = reader.getAttributeValue(i).trim();
+			if (name.equals("id")) {
+				meta.setId(Integer.valueOf(value));
+			} else if (name.equals("uid")) {
+				meta.setUid(Integer.valueOf(value));
+			} else if (name.equals("user")) {
+				meta.setUser(pool(reader.getAttributeValue(i)));
+			} else if (name.equals("visibility")) {
+				meta.setVisibility(pool(value));
+			} else if (name.equals("points")) {
+				// JAXB narrows the value to short in the same way, the
+				// points predicate reads it unsigned
+				meta.setPoints((short) Integer.parseInt(value));
+			} else if (name.equals("lat")) {
+				meta.setLat(Float.valueOf(value));
+			} else if (name.equals("lon")) {
+				meta.setLon(Float.valueOf(value));
+			} else if (name.equals("timestamp")) {
+				meta.setTimestamp(datatypes.newXMLGregorianCalendar(value));
+			} else if (name.equals("filename")) {
+				meta.setFilename(reader.getAttributeValue(i));
+			}
+		}
+		return meta;
+	}
+
+	/**
+	 * @return the instance of the given string, which has been read first
+	 */
+	private String pool(String s) {
+		String pooled = strings.get(s);
+		if (pooled == null) {
+			strings.put(s, s);
+			pooled = s;
+		}
+		return pooled;
+	}
+}
@@ -0,0 +1,127 @@
+package osmgpxtool.filter.reader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable buffer holding the content of a single archive entry. The buffer
+ * grows to the size of the largest entry it has held and is reused for the
+ * following entries, so reading entries does not allocate memory per entry.
+ * Buffers are handed out by an {@link EntryBufferPool} and must be released
+ * to the pool after the entry has been processed.
+ */
+public class EntryBuffer {
+	/**
+	 * largest entry, which is read into a buffer. Larger entries must be
+	 * processed as stream.
+	 */
+	public static final long MAX_SIZE = 256L * 1024 * 1024;
+
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+
+	private boolean direct;
+	private ByteBuffer buffer;
+	private byte[] transfer;
+	private String name;
+
+	EntryBuffer(boolean direct) {
+		this.direct = direct;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * reads exactly size bytes from the given stream into the buffer.
+	 *
+	 * @param name
+	 *            name of the entry
+	 * @param in
+	 * @param size
+	 * @throws IOException
+	 *             if the stream ends before size bytes have been read
+	 * @throws IllegalArgumentException
+	 *             if size exceeds {@link #MAX_SIZE}
+	 */
+	public void fill(String name, InputStream in, long size) throws IOException {
+		if (size < 0 || size > MAX_SIZE) {
+			throw new IllegalArgumentException("Entry size out of range for buffering: " + size + " (" + name + ")");
+		}
+		int length = (int) size;
+		if (buffer.capacity() < length) {
+			allocate(Math.max(length, Math.min(buffer.capacity() * 2, (int) MAX_SIZE)));
+		}
+		buffer.clear();
+		if (buffer.hasArray()) {
+			byte[] array = buffer.array();
+			int offset = buffer.arrayOffset();
+			int read = 0;
+			while (read < length) {
+				int n = in.read(array, offset + read, length - read);
+				if (n < 0) {
+					throw new EOFException("Unexpected end of entry " + name + ": " + read + " of " + length + " bytes read");
+				}
+				read += n;
+			}
+			buffer.position(length);
+		} else {
+			if (transfer == null) {
+				transfer = new byte[8192];
+			}
+			int read = 0;
+			while (read < length) {
+				int n = in.read(transfer, 0, Math.min(transfer.length, length - read));
+				if (n < 0) {
+					throw new EOFException("Unexpected end of entry " + name + ": " + read + " of " + length + " bytes read");
+				}
+				buffer.put(transfer, 0, n);
+				read += n;
+			}
+		}
+		buffer.flip();
+		this.name = name;
+	}
+
+	/**
+	 * @return name of the entry held by the buffer
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return size of the entry held by the buffer
+	 */
+	public int size() {
+		return buffer.limit();
+	}
+
+	/**
+	 * returns a read-only view of the entry content. Each call returns an
+	 * independent view positioned at the first byte of the entry.
+	 *
+	 * @return
+	 */
+	public ByteBuffer view() {
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return capacity of the buffer
+	 */
+	int capacity() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * shrinks the buffer to the initial capacity.
+	 */
+	void shrink() {
+		allocate(INITIAL_CAPACITY);
+		name = null;
+	}
+}
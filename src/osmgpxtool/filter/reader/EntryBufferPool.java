@@ -0,0 +1,54 @@
+package osmgpxtool.filter.reader;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed number of {@link EntryBuffer}s, which are shared between the thread
+ * reading an archive and the threads processing its entries. If all buffers
+ * are in use, {@link #acquire()} blocks until a buffer is released.
+ */
+public class EntryBufferPool {
+	/**
+	 * buffers grown beyond this capacity are shrunk when they are released,
+	 * so a few large entries do not keep memory allocated
+	 */
+	private static final int RETAIN_CAPACITY = 16 * 1024 * 1024;
+
+	private BlockingQueue<EntryBuffer> free;
+
+	/**
+	 * @param size
+	 *            number of buffers
+	 * @param direct
+	 *            if true, the buffers are allocated outside of the java heap
+	 */
+	public EntryBufferPool(int size, boolean direct) {
+		free = new ArrayBlockingQueue<EntryBuffer>(size);
+		for (int i = 0; i < size; i++) {
+			free.add(new EntryBuffer(direct));
+		}
+	}
+
+	/**
+	 * takes a buffer from the pool. Blocks if no buffer is available.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public EntryBuffer acquire() throws InterruptedException {
+		return free.take();
+	}
+
+	/**
+	 * returns a buffer to the pool.
+	 *
+	 * @param buffer
+	 */
+	public void release(EntryBuffer buffer) {
+		if (buffer.capacity() > RETAIN_CAPACITY) {
+			buffer.shrink();
+		}
+		free.add(buffer);
+	}
+}
@@ -0,0 +1,418 @@
+package osmgpxtool.filter.reader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.tar.TarUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+/**
+ * Sidecar index of a gpx dump. For every gpx file of the dump, the index
+ * stores its id, the xz block containing the start of the file, the offset
+ * of the file in the decompressed tar archive and its size. The location of
+ * metadata.xml is stored as well. With the index, single gpx files can be
+ * read by seeking in the dump, so that only the xz blocks containing the
+ * required files are decoded.
+ *
+ * The index is built once per dump with {@link #build(File, int)} and stored
+ * next to the dump ({@link #sidecarFile(File)}). The size and modification
+ * time of the dump are stored in the index to detect outdated index files.
+ */
+public class GpxArchiveIndex {
+	static Logger LOGGER = LoggerFactory.getLogger(GpxArchiveIndex.class);
+
+	private static final String MAGIC = "OSMGPXIDX";
+	private static final int VERSION = 1;
+	private static final byte[] XZ_MAGIC = { (byte) 0xFD, '7', 'z', 'X', 'Z', 0 };
+	// POSIX ("ustar\0") and GNU ("ustar ") tar headers
+	private static final byte[] USTAR_MAGIC = { 'u', 's', 't', 'a', 'r' };
+
+	private long dumpLength;
+	private long dumpLastModified;
+	private String metadataName;
+	private long metadataOffset = -1;
+	private long metadataSize;
+	private int size = 0;
+	private int[] ids = new int[1024];
+	private int[] blocks = new int[1024];
+	private long[] offsets = new long[1024];
+	private long[] sizes = new long[1024];
+	private String[] names = new String[1024];
+
+	private GpxArchiveIndex() {
+	}
+
+	/**
+	 * @param dump
+	 * @return file name of the index of the given dump
+	 */
+	public static File sidecarFile(File dump) {
+		return new File(dump.getPath() + ".idx");
+	}
+
+	/**
+	 * detects the format of the dump by its first bytes, so that the name of
+	 * the file does not matter.
+	 *
+	 * @param dump
+	 * @return true, if the dump is a xz compressed archive, false if it is an
+	 *         uncompressed tar archive
+	 * @throws IOException
+	 *             if the dump is neither a xz compressed nor a tar archive
+	 */
+	static boolean isXZ(File dump) throws IOException {
+		byte[] header = new byte[TarConstants.DEFAULT_RCDSIZE];
+		int n = 0;
+		InputStream in = new FileInputStream(dump);
+		try {
+			int read;
+			while (n < header.length && (read = in.read(header, n, header.length - n)) >= 0) {
+				n += read;
+			}
+		} finally {
+			in.close();
+		}
+		if (n >= XZ_MAGIC.length && Arrays.equals(Arrays.copyOf(header, XZ_MAGIC.length), XZ_MAGIC)) {
+			return true;
+		}
+		if (n == header.length && isTarHeader(header)) {
+			return false;
+		}
+		throw new IOException("Not a xz compressed or uncompressed tar archive: " + dump);
+	}
+
+	/**
+	 * @return true, if the record is a ustar header with a valid checksum
+	 */
+	private static boolean isTarHeader(byte[] header) {
+		for (int i = 0; i < USTAR_MAGIC.length; i++) {
+			if (header[TarConstants.MAGIC_OFFSET + i] != USTAR_MAGIC[i]) {
+				return false;
+			}
+		}
+		return TarUtils.verifyCheckSum(header);
+	}
+
+	/**
+	 * opens the dump for random access. Compressed dumps are decoded by a
+	 * seekable xz decoder.
+	 *
+	 * @param dump
+	 * @return
+	 * @throws IOException
+	 */
+	static SeekableInputStream openSeekable(File dump) throws IOException {
+		SeekableFileInputStream in = new SeekableFileInputStream(dump);
+		if (!isXZ(dump)) {
+			return in;
+		}
+		try {
+			return new SeekableXZInputStream(in);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * reads all entries of the given dump and creates the index.
+	 *
+	 * @param dump
+	 *            gpx dump (tar.xz or tar)
+	 * @param decoderThreads
+	 *            number of threads for decoding the dump
+	 * @return
+	 * @throws IOException
+	 */
+	public static GpxArchiveIndex build(File dump, int decoderThreads) throws IOException {
+		return build(dump, decoderThreads, null);
+	}
+
+	/**
+	 * reads all entries of the given dump and creates the index. If a builder
+	 * for the spatial index is given, all gpx files are passed to it.
+	 *
+	 * @param dump
+	 *            gpx dump (tar.xz or tar)
+	 * @param decoderThreads
+	 *            number of threads for decoding the dump
+	 * @param envelopes
+	 *            builder of the spatial index, may be null
+	 * @return
+	 * @throws IOException
+	 */
+	public static GpxArchiveIndex build(File dump, int decoderThreads, GpxEnvelopeIndex.Builder envelopes)
+			throws IOException {
+		GpxArchiveIndex index = new GpxArchiveIndex();
+		index.dumpLength = dump.length();
+		index.dumpLastModified = dump.lastModified();
+
+		// the seekable decoder is only used to map offsets to xz blocks
+		boolean xz = isXZ(dump);
+		SeekableXZInputStream blockIndex = xz ? (SeekableXZInputStream) openSeekable(dump) : null;
+		InputStream in = xz ? ParallelXZInputStream.open(dump, decoderThreads) : new BufferedInputStream(
+				new FileInputStream(dump));
+		LOGGER.info("Building index of " + dump + "...");
+		try {
+			TarEntryScanner scanner = new TarEntryScanner(in);
+			while (scanner.next()) {
+				if (!scanner.getEntry().isFile()) {
+					continue;
+				}
+				String name = scanner.getName();
+				if (name.endsWith("metadata.xml")) {
+					index.metadataName = name;
+					index.metadataOffset = scanner.getOffset();
+					index.metadataSize = scanner.getSize();
+				} else if (name.endsWith(".gpx")) {
+					int block = -1;
+					if (blockIndex != null && scanner.getOffset() < blockIndex.length()) {
+						block = blockIndex.getBlockNumber(scanner.getOffset());
+					}
+					int id = OsmGpxDumpReader.getGpxId(name);
+					index.add(id, block, scanner.getOffset(), scanner.getSize(), name);
+					if (envelopes != null) {
+						if (scanner.getSize() <= EntryBuffer.MAX_SIZE) {
+							envelopes.add(id, scanner.readContent());
+						} else {
+							envelopes.addUnknown(id);
+						}
+					}
+					if (index.size % 100000 == 0) {
+						LOGGER.info(index.size + " gpx files indexed");
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Building index interrupted");
+		} finally {
+			in.close();
+			if (blockIndex != null) {
+				blockIndex.close();
+			}
+		}
+		index.sort();
+		if (index.metadataOffset < 0) {
+			LOGGER.warn("No metadata.xml found in gpx archive: " + dump);
+		}
+		LOGGER.info("Index built. Number of indexed gpx files: " + index.size);
+		return index;
+	}
+
+	private void add(int id, int block, long offset, long size, String name) {
+		if (this.size == ids.length) {
+			int capacity = ids.length * 2;
+			ids = Arrays.copyOf(ids, capacity);
+			blocks = Arrays.copyOf(blocks, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+			names = Arrays.copyOf(names, capacity);
+		}
+		ids[this.size] = id;
+		blocks[this.size] = block;
+		offsets[this.size] = offset;
+		sizes[this.size] = size;
+		names[this.size] = name;
+		this.size++;
+	}
+
+	/**
+	 * sorts the entries by gpx id, so that they can be looked up by binary
+	 * search. Entries are stored in archive order in the dump, which is
+	 * usually sorted by id already.
+	 */
+	private void sort() {
+		boolean sorted = true;
+		for (int i = 1; i < size && sorted; i++) {
+			sorted = ids[i - 1] <= ids[i];
+		}
+		if (sorted) {
+			return;
+		}
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			// id in the upper, position in the lower half
+			keys[i] = ((long) ids[i] << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] sortedIds = new int[size];
+		int[] sortedBlocks = new int[size];
+		long[] sortedOffsets = new long[size];
+		long[] sortedSizes = new long[size];
+		String[] sortedNames = new String[size];
+		for (int i = 0; i < size; i++) {
+			int j = (int) keys[i];
+			sortedIds[i] = ids[j];
+			sortedBlocks[i] = blocks[j];
+			sortedOffsets[i] = offsets[j];
+			sortedSizes[i] = sizes[j];
+			sortedNames[i] = names[j];
+		}
+		ids = sortedIds;
+		blocks = sortedBlocks;
+		offsets = sortedOffsets;
+		sizes = sortedSizes;
+		names = sortedNames;
+	}
+
+	/**
+	 * writes the index to the given file.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(dumpLength);
+			out.writeLong(dumpLastModified);
+			out.writeBoolean(metadataOffset >= 0);
+			if (metadataOffset >= 0) {
+				out.writeUTF(metadataName);
+				out.writeLong(metadataOffset);
+				out.writeLong(metadataSize);
+			}
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeInt(ids[i]);
+				out.writeInt(blocks[i]);
+				out.writeLong(offsets[i]);
+				out.writeLong(sizes[i]);
+				out.writeUTF(names[i]);
+			}
+		} finally {
+			out.close();
+		}
+		LOGGER.info("Index written to " + file);
+	}
+
+	/**
+	 * reads an index file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file is not a valid index file
+	 */
+	public static GpxArchiveIndex read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION) {
+				throw new IOException("Not a gpx archive index or unsupported version: " + file);
+			}
+			GpxArchiveIndex index = new GpxArchiveIndex();
+			index.dumpLength = in.readLong();
+			index.dumpLastModified = in.readLong();
+			if (in.readBoolean()) {
+				index.metadataName = in.readUTF();
+				index.metadataOffset = in.readLong();
+				index.metadataSize = in.readLong();
+			}
+			int n = in.readInt();
+			index.ids = new int[n];
+			index.blocks = new int[n];
+			index.offsets = new long[n];
+			index.sizes = new long[n];
+			index.names = new String[n];
+			for (int i = 0; i < n; i++) {
+				index.ids[i] = in.readInt();
+				index.blocks[i] = in.readInt();
+				index.offsets[i] = in.readLong();
+				index.sizes[i] = in.readLong();
+				index.names[i] = in.readUTF();
+			}
+			index.size = n;
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param dump
+	 * @return true, if the index has been built for the given dump and the
+	 *         dump has not been modified since
+	 */
+	public boolean matches(File dump) {
+		return dump.length() == dumpLength && dump.lastModified() == dumpLastModified;
+	}
+
+	/**
+	 * @return number of indexed gpx files
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param id
+	 *            gpx id
+	 * @return position of the given gpx id in the index, or a negative value
+	 *         if the id is not contained in the dump
+	 */
+	public int find(int id) {
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+
+	public int getId(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * @param i
+	 * @return xz block containing the start of entry i, -1 for uncompressed
+	 *         dumps
+	 */
+	public int getBlock(int i) {
+		return blocks[i];
+	}
+
+	/**
+	 * @param i
+	 * @return offset of the content of entry i in the decompressed archive
+	 */
+	public long getOffset(int i) {
+		return offsets[i];
+	}
+
+	public long getSize(int i) {
+		return sizes[i];
+	}
+
+	public String getName(int i) {
+		return names[i];
+	}
+
+	public boolean hasMetadata() {
+		return metadataOffset >= 0;
+	}
+
+	public String getMetadataName() {
+		return metadataName;
+	}
+
+	public long getMetadataOffset() {
+		return metadataOffset;
+	}
+
+	public long getMetadataSize() {
+		return metadataSize;
+	}
+}
@@ -0,0 +1,445 @@
+package osmgpxtool.filter.reader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import osmgpxtool.filter.gpx.GpxStreamParser;
+import osmgpxtool.filter.gpx.GpxTrace;
+import osmgpxtool.filter.gpx.GpxTrack;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Spatial index of the traces of a gpx dump. For every trace, the envelope of
+ * all its track points and the number of track points are stored. The traces
+ * are stored in the order of the Hilbert curve index of their envelope
+ * centers and grouped into a packed R-tree, whose nodes hold
+ * {@link #NODE_CAPACITY} children each. A bounding box query therefore only
+ * visits the few nodes intersecting the bounding box.
+ *
+ * The index is built with {@link Builder} while the dump is indexed (see
+ * {@link GpxArchiveIndex#build(File, int, Builder)}) and stored next to the
+ * dump ({@link #sidecarFile(File)}). Traces, which could not be parsed while
+ * building the index, are returned by every query.
+ */
+public class GpxEnvelopeIndex {
+	static Logger LOGGER = LoggerFactory.getLogger(GpxEnvelopeIndex.class);
+
+	private static final String MAGIC = "OSMGPXENV";
+	private static final int VERSION = 1;
+	private static final int NODE_CAPACITY = 16;
+	private static final int HILBERT_ORDER = 15;
+
+	private long dumpLength;
+	private long dumpLastModified;
+	private int size;
+	private int[] ids;
+	private int[] points;
+	/**
+	 * envelopes of the traces as minX, minY, maxX, maxY
+	 */
+	private double[] bounds;
+	/**
+	 * envelopes of the tree nodes, level 0 holds the parents of the traces
+	 */
+	private double[][] levels;
+	private int[] unknownIds;
+
+	private GpxEnvelopeIndex() {
+	}
+
+	/**
+	 * @param dump
+	 * @return file name of the spatial index of the given dump
+	 */
+	public static File sidecarFile(File dump) {
+		return new File(dump.getPath() + ".env");
+	}
+
+	/**
+	 * creates the nodes of the packed R-tree bottom up. Each node covers
+	 * NODE_CAPACITY consecutive nodes of the level below.
+	 */
+	private void buildTree() {
+		int levelCount = 0;
+		for (int n = size; n > 1; n = (n + NODE_CAPACITY - 1) / NODE_CAPACITY) {
+			levelCount++;
+		}
+		levels = new double[levelCount][];
+		double[] children = bounds;
+		int childCount = size;
+		for (int l = 0; l < levelCount; l++) {
+			int nodeCount = (childCount + NODE_CAPACITY - 1) / NODE_CAPACITY;
+			double[] nodes = new double[nodeCount * 4];
+			for (int node = 0; node < nodeCount; node++) {
+				Envelope env = new Envelope();
+				int end = Math.min((node + 1) * NODE_CAPACITY, childCount);
+				for (int c = node * NODE_CAPACITY; c < end; c++) {
+					env.expandToInclude(children[c * 4], children[c * 4 + 1]);
+					env.expandToInclude(children[c * 4 + 2], children[c * 4 + 3]);
+				}
+				nodes[node * 4] = env.getMinX();
+				nodes[node * 4 + 1] = env.getMinY();
+				nodes[node * 4 + 2] = env.getMaxX();
+				nodes[node * 4 + 3] = env.getMaxY();
+			}
+			levels[l] = nodes;
+			children = nodes;
+			childCount = nodeCount;
+		}
+	}
+
+	/**
+	 * finds all traces, whose envelope intersects the given bounding box.
+	 * These are the only traces, which can pass a bounding box filter.
+	 *
+	 * @param bbox
+	 * @return ids of the candidate traces
+	 */
+	public BitSet query(Envelope bbox) {
+		BitSet result = new BitSet();
+		for (int id : unknownIds) {
+			result.set(id);
+		}
+		if (size == 0) {
+			return result;
+		}
+		if (levels.length == 0) {
+			query(bbox, -1, 0, result);
+		} else {
+			int top = levels.length - 1;
+			for (int node = 0; node < levels[top].length / 4; node++) {
+				query(bbox, top, node, result);
+			}
+		}
+		return result;
+	}
+
+	private void query(Envelope bbox, int level, int node, BitSet result) {
+		double[] nodes = level < 0 ? bounds : levels[level];
+		if (!intersects(bbox, nodes, node)) {
+			return;
+		}
+		if (level < 0) {
+			result.set(ids[node]);
+			return;
+		}
+		int childCount = level == 0 ? size : levels[level - 1].length / 4;
+		int end = Math.min((node + 1) * NODE_CAPACITY, childCount);
+		for (int c = node * NODE_CAPACITY; c < end; c++) {
+			query(bbox, level - 1, c, result);
+		}
+	}
+
+	private static boolean intersects(Envelope bbox, double[] nodes, int i) {
+		return !(nodes[i * 4] > bbox.getMaxX() || nodes[i * 4 + 2] < bbox.getMinX() || nodes[i * 4 + 1] > bbox.getMaxY() || nodes[i * 4 + 3] < bbox
+				.getMinY());
+	}
+
+	/**
+	 * sums up the number of track points of the given traces.
+	 *
+	 * @param traces
+	 *            gpx ids
+	 * @return
+	 */
+	public long countPoints(BitSet traces) {
+		long count = 0;
+		for (int i = 0; i < size; i++) {
+			if (traces.get(ids[i])) {
+				count += points[i];
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of traces with known envelope
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param dump
+	 * @return true, if the index has been built for the given dump and the
+	 *         dump has not been modified since
+	 */
+	public boolean matches(File dump) {
+		return dump.length() == dumpLength && dump.lastModified() == dumpLastModified;
+	}
+
+	/**
+	 * writes the index to the given file. The traces are written in tree
+	 * order, the nodes are recreated when the index is read.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(dumpLength);
+			out.writeLong(dumpLastModified);
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeInt(ids[i]);
+				out.writeInt(points[i]);
+				for (int k = 0; k < 4; k++) {
+					out.writeDouble(bounds[i * 4 + k]);
+				}
+			}
+			out.writeInt(unknownIds.length);
+			for (int id : unknownIds) {
+				out.writeInt(id);
+			}
+		} finally {
+			out.close();
+		}
+		LOGGER.info("Spatial index written to " + file);
+	}
+
+	/**
+	 * reads a spatial index file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file is not a valid spatial index file
+	 */
+	public static GpxEnvelopeIndex read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION) {
+				throw new IOException("Not a gpx spatial index or unsupported version: " + file);
+			}
+			GpxEnvelopeIndex index = new GpxEnvelopeIndex();
+			index.dumpLength = in.readLong();
+			index.dumpLastModified = in.readLong();
+			index.size = in.readInt();
+			index.ids = new int[index.size];
+			index.points = new int[index.size];
+			index.bounds = new double[index.size * 4];
+			for (int i = 0; i < index.size; i++) {
+				index.ids[i] = in.readInt();
+				index.points[i] = in.readInt();
+				for (int k = 0; k < 4; k++) {
+					index.bounds[i * 4 + k] = in.readDouble();
+				}
+			}
+			index.unknownIds = new int[in.readInt()];
+			for (int i = 0; i < index.unknownIds.length; i++) {
+				index.unknownIds[i] = in.readInt();
+			}
+			index.buildTree();
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * position of the point on a Hilbert curve filling a square of 2^order x
+	 * 2^order cells.
+	 */
+	private static long hilbertIndex(int x, int y, int order) {
+		long d = 0;
+		for (int s = 1 << (order - 1); s > 0; s >>= 1) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			// rotate quadrant
+			if (ry == 0) {
+				if (rx == 1) {
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Collects the envelopes of the traces while a dump is indexed. The gpx
+	 * files are parsed concurrently by a pool of threads.
+	 */
+	public static class Builder {
+		private File dump;
+		private ExecutorService pool;
+		private Semaphore pending;
+		private ThreadLocal<GpxStreamParser> parsers = new ThreadLocal<GpxStreamParser>() {
+			@Override
+			protected GpxStreamParser initialValue() {
+				return new GpxStreamParser();
+			}
+		};
+		private int size = 0;
+		private int[] ids = new int[1024];
+		private int[] points = new int[1024];
+		private double[] bounds = new double[4096];
+		private BitSet unknown = new BitSet();
+		private int empty = 0;
+
+		/**
+		 * @param dump
+		 * @param threads
+		 *            number of threads for parsing gpx files
+		 */
+		public Builder(File dump, int threads) {
+			this.dump = dump;
+			// limits the number of gpx files held in memory
+			this.pending = new Semaphore(threads * 4);
+			this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private int n = 0;
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "envelope-builder-" + (n++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		/**
+		 * adds a gpx file. The file is parsed asynchronously.
+		 *
+		 * @param id
+		 * @param content
+		 * @throws InterruptedException
+		 */
+		public void add(final int id, final byte[] content) throws InterruptedException {
+			pending.acquire();
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compute(id, content);
+					} finally {
+						pending.release();
+					}
+				}
+			});
+		}
+
+		/**
+		 * adds a gpx file, which can not be parsed. It is returned by every
+		 * query.
+		 *
+		 * @param id
+		 */
+		public synchronized void addUnknown(int id) {
+			unknown.set(id);
+		}
+
+		private void compute(int id, byte[] content) {
+			GpxTrace trace;
+			try {
+				trace = parsers.get().parse(content);
+			} catch (XMLStreamException | RuntimeException e) {
+				addUnknown(id);
+				return;
+			}
+			Envelope env = new Envelope();
+			int count = 0;
+			for (GpxTrack track : trace.getTracks()) {
+				for (int i = 0; i < track.size(); i++) {
+					env.expandToInclude(track.getLon(i), track.getLat(i));
+				}
+				count += track.size();
+			}
+			add(id, env, count);
+		}
+
+		private synchronized void add(int id, Envelope env, int count) {
+			if (env.isNull()) {
+				// traces without track points can not pass a bounding box
+				empty++;
+				return;
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				points = Arrays.copyOf(points, size * 2);
+				bounds = Arrays.copyOf(bounds, size * 8);
+			}
+			ids[size] = id;
+			points[size] = count;
+			bounds[size * 4] = env.getMinX();
+			bounds[size * 4 + 1] = env.getMinY();
+			bounds[size * 4 + 2] = env.getMaxX();
+			bounds[size * 4 + 3] = env.getMaxY();
+			size++;
+		}
+
+		/**
+		 * waits until all gpx files have been parsed and creates the index.
+		 *
+		 * @return
+		 * @throws InterruptedException
+		 */
+		public GpxEnvelopeIndex build() throws InterruptedException {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			synchronized (this) {
+				GpxEnvelopeIndex index = new GpxEnvelopeIndex();
+				index.dumpLength = dump.length();
+				index.dumpLastModified = dump.lastModified();
+				// sort traces by the Hilbert index of their envelope centers.
+				// The key holds the Hilbert index in the upper and the
+				// position in the lower half.
+				int cells = 1 << HILBERT_ORDER;
+				long[] keys = new long[size];
+				for (int i = 0; i < size; i++) {
+					double x = (bounds[i * 4] + bounds[i * 4 + 2]) / 2;
+					double y = (bounds[i * 4 + 1] + bounds[i * 4 + 3]) / 2;
+					int cx = (int) Math.max(0, Math.min(cells - 1, (x + 180) / 360 * cells));
+					int cy = (int) Math.max(0, Math.min(cells - 1, (y + 90) / 180 * cells));
+					keys[i] = (hilbertIndex(cx, cy, HILBERT_ORDER) << 32) | i;
+				}
+				Arrays.sort(keys);
+				index.size = size;
+				index.ids = new int[size];
+				index.points = new int[size];
+				index.bounds = new double[size * 4];
+				for (int i = 0; i < size; i++) {
+					int j = (int) keys[i];
+					index.ids[i] = ids[j];
+					index.points[i] = points[j];
+					System.arraycopy(bounds, j * 4, index.bounds, i * 4, 4);
+				}
+				index.unknownIds = new int[unknown.cardinality()];
+				int n = 0;
+				for (int id = unknown.nextSetBit(0); id >= 0; id = unknown.nextSetBit(id + 1)) {
+					index.unknownIds[n++] = id;
+				}
+				index.buildTree();
+				LOGGER.info("Spatial index built. Traces with envelope: " + size + ", without track points: " + empty
+						+ ", not parsable: " + index.unknownIds.length);
+				return index;
+			}
+		}
+	}
+}
@@ -0,0 +1,677 @@
+package osmgpxtool.filter.reader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.bind.JAXBException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import osmgpxtool.filter.GpxFilter;
+import osmgpxtool.filter.GpxPrescanner;
+import osmgpxtool.filter.gpx.GpxTrace;
+import osmgpxtool.filter.gpx.TrackCodec;
+import osmgpxtool.filter.metadata.MetadataLookup;
+import osmgpxtool.filter.metadata.MetadataStore;
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
+import osmgpxtool.filter.writer.Checkpoint;
+import osmgpxtool.filter.writer.Writer;
+import osmgpxtool.util.Marshaller;
+
+/**
+ * Processes gpx entries in three stages, which are connected by bounded
+ * queues:
+ * <ol>
+ * <li>the threads calling {@link #submit(EntryBuffer)} (usually the threads
+ * reading and decompressing the archives). Several archives can be read
+ * concurrently into the same pipeline.</li>
+ * <li>a pool of workers, which parse the entries, look up their metadata and
+ * drop entries, which are rejected by the filter. Entries of the streaming
+ * parser are scanned by a {@link GpxPrescanner} first, so that most entries
+ * outside of the bounding box are dropped without parsing them.</li>
+ * <li>a single writer thread, which passes the remaining entries to the
+ * writer. Writers are therefore never called concurrently.</li>
+ * </ol>
+ * The entries are read into buffers taken from a pool, which are released
+ * after parsing. If the submitting thread is faster than the other stages, it
+ * is blocked until a buffer is available.
+ * 
+ * The tracks of accepted entries are passed to the writer thread encoded by
+ * {@link TrackCodec}. The write queue is bounded by the size of the encoded
+ * tracks ({@link #WRITE_BUFFER_SIZE}) instead of the number of entries, so
+ * that the workers can keep going while a slow writer catches up.
+ * 
+ * If a spill directory is set, entries are spilled into memory mapped segment
+ * files ({@link SpillQueue}) instead of blocking the workers, when the write
+ * buffer is full. Reading and parsing then continue at full speed while the
+ * writer catches up.
+ */
+public class GpxPipeline {
+	static Logger LOGGER = LoggerFactory.getLogger(GpxPipeline.class);
+
+	private static final Entry END = new Entry(null);
+
+	/**
+	 * bytes of encoded tracks, which may be queued for the writer thread
+	 */
+	public static final int WRITE_BUFFER_SIZE = 64 * 1024 * 1024;
+	// estimated bytes per track point of traces, which are queued unencoded
+	private static final int POINT_SIZE = 40;
+
+	private Writer writer;
+	private GpxFilter filter;
+	private boolean streaming;
+	private MetadataStore metadata = new MetadataStore();
+	private List<MetadataLookup> lazyMetadata = new CopyOnWriteArrayList<MetadataLookup>();
+	private BlockingQueue<Entry> parseQueue;
+	private BlockingQueue<Entry> writeQueue;
+	private Semaphore writeBuffer = new Semaphore(WRITE_BUFFER_SIZE);
+	private EntryBufferPool buffers;
+	private ThreadLocal<Marshaller> callerMarshaller;
+	private ThreadLocal<TrackCodec> callerCodec;
+	private Thread[] workers;
+	private Thread writerThread;
+	private AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	private Checkpoint checkpoint = null;
+	private SpillQueue spillQueue = null;
+	// closed when the threads have stopped
+	private List<Closeable> resources = new ArrayList<Closeable>();
+	private boolean finished = false;
+	private boolean stopped = false;
+
+	/**
+	 * gpx entry passed between the stages
+	 */
+	private static class Entry {
+		private String name;
+		private EntryBuffer buffer;
+		private ByteBuffer content;
+		private GpxTrace trace;
+		private byte[] encoded;
+		// the tracks are in the spill queue
+		private boolean spilled = false;
+		// permits of the write buffer held by the entry
+		private int bytes;
+		private GpxFile meta;
+		// results of the filter per track, null for entries without metadata
+		private int[] results;
+
+		private Entry(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * @param writer
+	 * @param workers
+	 *            number of parse/filter worker threads
+	 * @param streaming
+	 *            if true, gpx files are read with the streaming parser,
+	 *            otherwise with JAXB
+	 */
+	public GpxPipeline(Writer writer, int workers, final boolean streaming) {
+		this.writer = writer;
+		this.filter = writer.getFilter();
+		this.streaming = streaming;
+		this.callerMarshaller = new ThreadLocal<Marshaller>() {
+			@Override
+			protected Marshaller initialValue() {
+				return new Marshaller(streaming);
+			}
+		};
+		this.callerCodec = new ThreadLocal<TrackCodec>() {
+			@Override
+			protected TrackCodec initialValue() {
+				return new TrackCodec();
+			}
+		};
+		this.workers = new Thread[workers];
+		this.parseQueue = new ArrayBlockingQueue<Entry>(workers * 4);
+		// bounded by the write buffer
+		this.writeQueue = new LinkedBlockingQueue<Entry>();
+		// one buffer for each queued entry, each worker and the reader
+		this.buffers = new EntryBufferPool(workers * 4 + workers + 1, false);
+	}
+
+	/**
+	 * adds metadata, which is joined with the gpx entries. The metadata of a
+	 * gpx file must be added before the file is submitted. If several
+	 * archives share the pipeline, the metadata of all archives is merged.
+	 * May be called concurrently.
+	 *
+	 * @param meta
+	 */
+	public void addMetadata(GpxFile meta) {
+		metadata.add(meta);
+	}
+
+	/**
+	 * adds metadata of an archive, which is looked up on demand. The
+	 * metadata must be added before the gpx files of the archive are
+	 * submitted.
+	 *
+	 * @param lookup
+	 */
+	public void addMetadata(MetadataLookup lookup) {
+		lazyMetadata.add(lookup);
+	}
+
+	/**
+	 * @return store of the metadata added to the pipeline by
+	 *         {@link #addMetadata(GpxFile)}
+	 */
+	public MetadataStore getMetadata() {
+		return metadata;
+	}
+
+	private boolean hasMetadata(int id) {
+		if (metadata.contains(id)) {
+			return true;
+		}
+		for (MetadataLookup lookup : lazyMetadata) {
+			if (lookup.contains(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private GpxFile getMetadata(int id) {
+		GpxFile meta = metadata.get(id);
+		for (int i = 0; i < lazyMetadata.size() && meta == null; i++) {
+			meta = lazyMetadata.get(i).get(id);
+		}
+		return meta;
+	}
+
+	/**
+	 * sets the checkpoint, which records the gpx files rejected by the filter
+	 * and the gpx files passed to the writer. Must be set before the pipeline
+	 * is started.
+	 * 
+	 * @param checkpoint
+	 */
+	public void setCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * sets the directory of the segment files, into which accepted entries
+	 * are spilled, when the write buffer is full. Must be set before the
+	 * pipeline is started.
+	 *
+	 * @param directory
+	 * @throws IOException
+	 *             if the directory can not be created
+	 */
+	public void setSpillDirectory(File directory) throws IOException {
+		this.spillQueue = new SpillQueue(directory);
+	}
+
+	/**
+	 * starts the worker and writer threads.
+	 */
+	public void start() {
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					parse();
+				}
+			}, "gpx-worker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "gpx-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		LOGGER.info("Processing gpx files with " + workers.length + " worker threads");
+	}
+
+	/**
+	 * takes an empty buffer from the pool. The buffer must be filled and
+	 * passed to {@link #submit(EntryBuffer)}. Blocks, if all buffers are in
+	 * use.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public EntryBuffer acquireBuffer() throws InterruptedException {
+		checkFailure();
+		return buffers.acquire();
+	}
+
+	/**
+	 * returns a buffer, which has not been submitted, to the pool.
+	 *
+	 * @param buffer
+	 */
+	public void releaseBuffer(EntryBuffer buffer) {
+		buffers.release(buffer);
+	}
+
+	/**
+	 * passes a gpx entry to the workers. The buffer is returned to the pool
+	 * after the entry has been parsed.
+	 *
+	 * @param buffer
+	 * @throws InterruptedException
+	 */
+	public void submit(EntryBuffer buffer) throws InterruptedException {
+		Entry e = new Entry(buffer.getName());
+		e.buffer = buffer;
+		parseQueue.put(e);
+	}
+
+	/**
+	 * passes a gpx entry to the workers. The content is not copied, so it
+	 * must not be modified until the pipeline has finished. This is used for
+	 * slices of memory mapped archives.
+	 *
+	 * @param name
+	 * @param content
+	 * @throws InterruptedException
+	 */
+	public void submit(String name, ByteBuffer content) throws InterruptedException {
+		checkFailure();
+		Entry e = new Entry(name);
+		e.content = content;
+		parseQueue.put(e);
+	}
+
+	/**
+	 * parses a gpx entry from the given stream in the calling thread and
+	 * passes it to the writer thread. This is used for entries, which are too
+	 * large to be buffered ({@link EntryBuffer#MAX_SIZE}).
+	 *
+	 * @param name
+	 * @param in
+	 * @throws InterruptedException
+	 */
+	public void submit(String name, InputStream in) throws InterruptedException {
+		checkFailure();
+		Entry e = new Entry(name);
+		try {
+			e.trace = callerMarshaller.get().parse(in);
+			if (accept(e)) {
+				queueForWriter(e, callerCodec.get());
+			}
+		} catch (JAXBException ex) {
+			LOGGER.error("Could not parse gpx file: " + name);
+			ex.printStackTrace();
+		}
+	}
+
+	private void checkFailure() {
+		if (failure.get() != null) {
+			throw new RuntimeException("Processing gpx files failed", failure.get());
+		}
+	}
+
+	/**
+	 * waits until all submitted entries have been written and stops the
+	 * threads.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void finish() throws InterruptedException {
+		stop();
+		checkFailure();
+	}
+
+	/**
+	 * stops the pipeline after the reader has failed. The entries submitted
+	 * so far are still parsed, written and recorded in the checkpoint, so
+	 * that nothing is lost, which has been accepted. A failure of the
+	 * pipeline itself is only logged, so that the caller can rethrow its
+	 * original exception. Does nothing, if the pipeline has already been
+	 * stopped.
+	 */
+	public void abort() {
+		if (stopped) {
+			return;
+		}
+		// the threads are joined even if the reader has been interrupted
+		boolean interrupted = Thread.interrupted();
+		try {
+			LOGGER.warn("Reading stopped, writing the gpx files submitted so far...");
+			stop();
+		} catch (InterruptedException e) {
+			interrupted = true;
+			LOGGER.error("Interrupted while stopping the pipeline, submitted gpx files may not have been written");
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (failure.get() != null) {
+			LOGGER.error("Processing gpx files failed as well");
+			failure.get().printStackTrace();
+		}
+	}
+
+	/**
+	 * passes the end marker through the stages and waits for the threads.
+	 */
+	private void stop() throws InterruptedException {
+		if (stopped) {
+			return;
+		}
+		if (writerThread != null) {
+			for (int i = 0; i < workers.length; i++) {
+				parseQueue.put(END);
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			writeQueue.put(END);
+			writerThread.join();
+		}
+		stopped = true;
+		if (spillQueue != null) {
+			spillQueue.close();
+		}
+		closeResources();
+	}
+
+	/**
+	 * closes the given resource, as soon as the threads of the pipeline have
+	 * stopped, e.g. the memory mapping of an archive, whose slices have been
+	 * submitted. If the pipeline has already finished, the resource is closed
+	 * at once.
+	 *
+	 * @param resource
+	 */
+	void closeOnFinish(Closeable resource) {
+		synchronized (resources) {
+			if (!finished) {
+				resources.add(resource);
+				return;
+			}
+		}
+		close(resource);
+	}
+
+	private void closeResources() {
+		synchronized (resources) {
+			finished = true;
+		}
+		for (Closeable resource : resources) {
+			close(resource);
+		}
+		resources.clear();
+	}
+
+	private static void close(Closeable resource) {
+		try {
+			resource.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * worker stage: parse, join metadata and filter
+	 */
+	private void parse() {
+		Marshaller marshaller = new Marshaller(streaming);
+		TrackCodec codec = new TrackCodec();
+		// the scanner follows the streaming parser, JAXB may see other
+		// track points
+		GpxPrescanner prescanner = streaming && GpxPrescanner.isApplicable(filter) ? new GpxPrescanner(filter) : null;
+		try {
+			Entry e;
+			while ((e = parseQueue.take()) != END) {
+				try {
+					try {
+						// after a failure, keep draining the queue, so that
+						// the reader does not block
+						if (failure.get() == null) {
+							if (rejectMetadata(e.name)) {
+								continue;
+							}
+							ByteBuffer content = e.buffer != null ? e.buffer.view() : e.content;
+							if (prescanner != null && prescan(e.name, content, prescanner)) {
+								continue;
+							}
+							e.trace = marshaller.parse(content);
+						}
+					} finally {
+						if (e.buffer != null) {
+							buffers.release(e.buffer);
+							e.buffer = null;
+						}
+						e.content = null;
+					}
+					if (accept(e)) {
+						queueForWriter(e, codec);
+					}
+				} catch (JAXBException ex) {
+					ex.printStackTrace();
+				} catch (RuntimeException ex) {
+					LOGGER.error("Could not process gpx file: " + e.name);
+					ex.printStackTrace();
+				} catch (Error ex) {
+					LOGGER.error("Worker failed while processing gpx file: " + e.name);
+					failure.compareAndSet(null, ex);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * applies the predicates of the filter on the metadata before the entry
+	 * is parsed.
+	 *
+	 * @return true, if the entry is rejected
+	 */
+	private boolean rejectMetadata(String name) {
+		if (!filter.hasMetadataPredicates()) {
+			return false;
+		}
+		int id = OsmGpxDumpReader.getGpxId(name);
+		GpxFile meta = getMetadata(id);
+		// entries without metadata are passed to the writer
+		if (meta == null || filter.checkMetadata(meta)) {
+			return false;
+		}
+		if (checkpoint != null) {
+			checkpoint.rejected(id);
+		}
+		return true;
+	}
+
+	/**
+	 * scans the raw bytes of an entry before it is parsed.
+	 *
+	 * @return true, if the entry is rejected
+	 */
+	private boolean prescan(String name, ByteBuffer content, GpxPrescanner prescanner) {
+		int id = OsmGpxDumpReader.getGpxId(name);
+		// entries without metadata are passed to the writer
+		if (!hasMetadata(id) || !prescanner.reject(content)) {
+			return false;
+		}
+		if (checkpoint != null) {
+			checkpoint.rejected(id);
+		}
+		return true;
+	}
+
+	/**
+	 * joins the metadata and applies the filter.
+	 *
+	 * @param e
+	 * @return true, if the entry needs to be passed to the writer
+	 */
+	private boolean accept(Entry e) {
+		if (e.trace == null) {
+			return false;
+		}
+		// entries without metadata are passed to the writer, which reports
+		// them. The metadata itself is created by the writer thread for the
+		// accepted entries only.
+		if (!hasMetadata(OsmGpxDumpReader.getGpxId(e.name))) {
+			return true;
+		}
+		e.results = evaluate(e.trace);
+		if (passesFilter(e.trace, e.results)) {
+			return true;
+		}
+		if (checkpoint != null) {
+			checkpoint.rejected(OsmGpxDumpReader.getGpxId(e.name));
+		}
+		return false;
+	}
+
+	/**
+	 * applies the filter to every track of the gpx file. The results are
+	 * passed to the writer, so that the writer thread does not evaluate the
+	 * tracks again.
+	 */
+	private int[] evaluate(GpxTrace trace) {
+		int[] results = new int[trace.getTracks().size()];
+		for (int i = 0; i < results.length; i++) {
+			results[i] = filter.evaluate(trace.getTracks().get(i));
+		}
+		return results;
+	}
+
+	/**
+	 * checks, whether at least one track of the gpx file passes the filter.
+	 * If no track passes, the rejections are counted in the filter statistics
+	 * and the file is not passed to the writer. Otherwise the writer counts
+	 * the results.
+	 *
+	 * @param trace
+	 * @param results
+	 *            results of the tracks
+	 * @return
+	 */
+	private boolean passesFilter(GpxTrace trace, int[] results) {
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] == GpxFilter.PASSED) {
+				return true;
+			}
+		}
+		for (int i = 0; i < results.length; i++) {
+			filter.record(results[i], trace.getTracks().get(i));
+		}
+		return false;
+	}
+
+	/**
+	 * encodes the tracks of an accepted entry and passes it to the writer
+	 * thread. Blocks while the write buffer is full, unless the entry can be
+	 * spilled. Traces, which keep their JAXB gpx file for the writer, are
+	 * queued without encoding and are never spilled.
+	 */
+	private void queueForWriter(Entry e, TrackCodec codec) throws InterruptedException {
+		if (e.trace.hasSource()) {
+			e.bytes = (int) Math.min(WRITE_BUFFER_SIZE, (long) e.trace.size() * POINT_SIZE);
+		} else {
+			e.encoded = codec.encode(e.trace);
+			e.trace = null;
+			e.bytes = Math.min(WRITE_BUFFER_SIZE, e.encoded.length);
+		}
+		if (e.encoded != null && spillQueue != null) {
+			if (!writeBuffer.tryAcquire(e.bytes)) {
+				if (spill(e)) {
+					return;
+				}
+				writeBuffer.acquire(e.bytes);
+			}
+		} else {
+			writeBuffer.acquire(e.bytes);
+		}
+		writeQueue.put(e);
+	}
+
+	/**
+	 * moves the encoded tracks of an entry into the spill queue and passes
+	 * the entry to the writer thread.
+	 *
+	 * @return false, if the entry could not be spilled
+	 */
+	private boolean spill(Entry e) throws InterruptedException {
+		try {
+			// the spill queue keeps the order of the entries in the write
+			// queue, so the writer thread takes the next spilled entry for
+			// every spilled entry of the write queue
+			synchronized (spillQueue) {
+				spillQueue.put(e.name, e.encoded);
+				e.encoded = null;
+				e.spilled = true;
+				e.bytes = 0;
+				writeQueue.put(e);
+			}
+			return true;
+		} catch (IOException ex) {
+			LOGGER.error("Could not spill gpx file " + e.name + ", waiting for the writer");
+			ex.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * writer stage
+	 */
+	private void write() {
+		TrackCodec codec = new TrackCodec();
+		try {
+			Entry e;
+			while ((e = writeQueue.take()) != END) {
+				writeBuffer.release(e.bytes);
+				if (failure.get() != null) {
+					// keep draining the queue, so that the workers do not
+					// block
+					continue;
+				}
+				try {
+					if (e.spilled) {
+						SpillQueue.Record record = spillQueue.take();
+						if (record == null || !record.name.equals(e.name)) {
+							throw new IllegalStateException("Spill queue out of order at gpx file " + e.name);
+						}
+						e.trace = codec.decode(record.data);
+					} else if (e.encoded != null) {
+						e.trace = codec.decode(e.encoded);
+						e.encoded = null;
+					}
+					if (e.results != null) {
+						e.trace.setResults(filter, e.results);
+					}
+					e.meta = getMetadata(OsmGpxDumpReader.getGpxId(e.name));
+					writer.write(e.trace, e.name, e.meta);
+					if (checkpoint != null) {
+						checkpoint.written(OsmGpxDumpReader.getGpxId(e.name));
+					}
+				} catch (RuntimeException | Error ex) {
+					LOGGER.error("Could not write gpx file: " + e.name);
+					failure.compareAndSet(null, ex);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
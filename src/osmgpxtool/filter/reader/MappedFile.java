@@ -0,0 +1,204 @@
+package osmgpxtool.filter.reader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only memory mapping of a file of any size. A single MappedByteBuffer
+ * can not exceed 2 GB, so the file is mapped in segments of
+ * {@link #SEGMENT_SIZE} bytes. As the segment size is a multiple of the tar
+ * record size, tar headers never cross segment boundaries.
+ *
+ * The segments are unmapped by {@link #close()}, so that their memory and
+ * address space are released at once and not only when the buffers are
+ * garbage collected.
+ */
+class MappedFile implements Closeable {
+	static Logger LOGGER = LoggerFactory.getLogger(MappedFile.class);
+
+	static final int SEGMENT_SIZE = 1 << 30;
+
+	private long size;
+	private MappedByteBuffer[] segments;
+
+	/**
+	 * maps the given file into memory.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	MappedFile(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			size = channel.size();
+			int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long position = (long) i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(SEGMENT_SIZE, size - position));
+			}
+		} finally {
+			// the mapping stays valid after the channel has been closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return size of the file
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * returns the given range of the file. If the range lies within a single
+	 * segment, the returned buffer shares the mapped memory, otherwise the
+	 * range is copied.
+	 *
+	 * @param offset
+	 * @param length
+	 * @return read-only buffer positioned at the start of the range
+	 */
+	public ByteBuffer slice(long offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > size) {
+			throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " exceeds file size " + size);
+		}
+		int segment = (int) (offset / SEGMENT_SIZE);
+		int position = (int) (offset % SEGMENT_SIZE);
+		if (position + length <= segments[segment].capacity()) {
+			ByteBuffer slice = segments[segment].asReadOnlyBuffer();
+			slice.position(position);
+			slice.limit(position + length);
+			return slice.slice();
+		}
+		// range crosses a segment boundary
+		ByteBuffer copy = ByteBuffer.allocate(length);
+		while (copy.hasRemaining()) {
+			ByteBuffer part = segments[segment].asReadOnlyBuffer();
+			part.position(position);
+			part.limit(Math.min(part.capacity(), position + copy.remaining()));
+			copy.put(part);
+			segment++;
+			position = 0;
+		}
+		copy.flip();
+		return copy.asReadOnlyBuffer();
+	}
+
+	/**
+	 * unmaps the file. Neither the file nor the slices and streams created
+	 * from it may be used afterwards.
+	 */
+	@Override
+	public void close() {
+		if (segments == null) {
+			return;
+		}
+		for (MappedByteBuffer segment : segments) {
+			if (!unmap(segment)) {
+				LOGGER.warn("Could not unmap file, the memory is released when it is garbage collected");
+				break;
+			}
+		}
+		segments = null;
+	}
+
+	/**
+	 * releases the mapping of a buffer with the cleaner of the JVM. The buffer
+	 * must not be accessed afterwards.
+	 *
+	 * @return false, if the JVM does not allow to unmap the buffer
+	 */
+	static boolean unmap(MappedByteBuffer buffer) {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+			return true;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Java 7 and 8
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			cleaner.getClass().getMethod("clean").invoke(cleaner);
+			return true;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param offset
+	 * @return stream reading the file from the given offset
+	 */
+	public InputStream stream(long offset) {
+		return new MappedInputStream(offset);
+	}
+
+	/**
+	 * sequential stream over the mapped segments. Skipping does not touch
+	 * the skipped pages.
+	 */
+	private class MappedInputStream extends InputStream {
+		private long position;
+
+		private MappedInputStream(long position) {
+			this.position = position;
+		}
+
+		@Override
+		public int read() {
+			if (position >= size) {
+				return -1;
+			}
+			int b = segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE)) & 0xFF;
+			position++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= size) {
+				return -1;
+			}
+			ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+			segment.position((int) (position % SEGMENT_SIZE));
+			int n = Math.min(len, segment.remaining());
+			segment.get(b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			long s = Math.max(0, Math.min(n, size - position));
+			position += s;
+			return s;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, size - position);
+		}
+	}
+}
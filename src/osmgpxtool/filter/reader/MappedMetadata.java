@@ -0,0 +1,339 @@
+package osmgpxtool.filter.reader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import osmgpxtool.filter.metadata.MetadataLookup;
+import osmgpxtool.filter.metadata.MetadataStreamReader;
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
+import osmgpxtool.util.BoundedInputStream;
+import osmgpxtool.util.ByteBufferInputStream;
+
+/**
+ * Lazy metadata of a gpx dump. metadata.xml is not parsed when it is loaded,
+ * only the location of every gpxFile element is indexed by its id. The
+ * element of a gpx file is parsed on {@link #get(int)}, so metadata is only
+ * created for the gpx files, which are written. The index takes 16 bytes per
+ * gpx file, the metadata itself stays in the memory mapped file. Every thread
+ * parses with its own parser, so that the workers of the pipeline do not wait
+ * for each other in {@link #get(int)}.
+ *
+ * metadata.xml of an uncompressed dump is indexed in place. Otherwise it is
+ * copied to a temporary file, which is deleted as soon as it is mapped.
+ */
+public class MappedMetadata implements MetadataLookup {
+	static Logger LOGGER = LoggerFactory.getLogger(MappedMetadata.class);
+
+	private static final byte[] START = "<gpxFile".getBytes();
+	private static final byte[] END = "</gpxFile".getBytes();
+	private static final int EMPTY = Integer.MIN_VALUE;
+
+	private MappedFile file;
+	private int[] keys = new int[1024];
+	private long[] offsets = new long[1024];
+	private int[] lengths = new int[1024];
+	private int size = 0;
+	private ThreadLocal<Parser> parsers = new ThreadLocal<Parser>() {
+		@Override
+		protected Parser initialValue() {
+			return new Parser();
+		}
+	};
+
+	/**
+	 * parser of a thread with its input stream
+	 */
+	private static class Parser {
+		private MetadataStreamReader reader = new MetadataStreamReader();
+		private ByteBufferInputStream in = new ByteBufferInputStream();
+	}
+
+	/**
+	 * indexes metadata.xml in the given mapped file.
+	 *
+	 * @param file
+	 * @param offset
+	 *            offset of metadata.xml in the file
+	 * @param length
+	 *            size of metadata.xml
+	 * @throws IOException
+	 *             if a gpxFile element is not valid
+	 */
+	MappedMetadata(MappedFile file, long offset, long length) throws IOException {
+		this.file = file;
+		Arrays.fill(keys, EMPTY);
+		scan(new BoundedInputStream(file.stream(offset), length), offset);
+	}
+
+	/**
+	 * copies metadata.xml from the given stream to a temporary file and
+	 * indexes it.
+	 *
+	 * @param in
+	 *            stream positioned at metadata.xml, is not closed
+	 * @param length
+	 *            size of metadata.xml
+	 * @return
+	 * @throws IOException
+	 */
+	static MappedMetadata load(InputStream in, long length) throws IOException {
+		File tmp = File.createTempFile("metadata", ".xml");
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				long remaining = length;
+				int n;
+				while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) >= 0) {
+					out.write(buffer, 0, n);
+					remaining -= n;
+				}
+			} finally {
+				out.close();
+			}
+			// the mapping stays valid after the file has been deleted
+			return new MappedMetadata(new MappedFile(tmp), 0, tmp.length());
+		} finally {
+			if (!tmp.delete()) {
+				tmp.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * finds the gpxFile elements and their ids. metadata.xml is generated, so
+	 * the elements are located on the byte level without parsing the XML.
+	 */
+	private void scan(InputStream in, long base) throws IOException {
+		ByteScanner bytes = new ByteScanner(in);
+		StringBuilder tag = new StringBuilder();
+		while (bytes.find(START)) {
+			long start = bytes.position() - START.length;
+			int c = bytes.next();
+			if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+				// other element with the same prefix, e.g. gpxFiles
+				continue;
+			}
+			// read the start tag
+			tag.setLength(0);
+			tag.append((char) c);
+			char quote = 0;
+			while ((c = bytes.next()) >= 0 && (c != '>' || quote != 0)) {
+				if (quote == 0 && (c == '"' || c == '\'')) {
+					quote = (char) c;
+				} else if (c == quote) {
+					quote = 0;
+				}
+				tag.append((char) c);
+			}
+			if (c < 0) {
+				throw new IOException("Truncated gpxFile element in metadata.xml at offset " + start);
+			}
+			if (tag.length() == 0 || tag.charAt(tag.length() - 1) != '/') {
+				if (!bytes.find(END) || !bytes.skipTo('>')) {
+					throw new IOException("Unclosed gpxFile element in metadata.xml at offset " + start);
+				}
+			}
+			long length = bytes.position() - start;
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("gpxFile element too large in metadata.xml at offset " + start);
+			}
+			put(parseId(tag, start), base + start, (int) length);
+		}
+	}
+
+	/**
+	 * extracts the id attribute from the attributes of a start tag.
+	 */
+	private static int parseId(CharSequence tag, long offset) throws IOException {
+		for (int i = 1; i + 3 < tag.length(); i++) {
+			if (tag.charAt(i) == 'i' && tag.charAt(i + 1) == 'd' && Character.isWhitespace(tag.charAt(i - 1))) {
+				int j = i + 2;
+				while (j < tag.length() && Character.isWhitespace(tag.charAt(j))) {
+					j++;
+				}
+				if (j >= tag.length() || tag.charAt(j) != '=') {
+					continue;
+				}
+				j++;
+				while (j < tag.length() && Character.isWhitespace(tag.charAt(j))) {
+					j++;
+				}
+				if (j >= tag.length() || (tag.charAt(j) != '"' && tag.charAt(j) != '\'')) {
+					continue;
+				}
+				int end = j + 1;
+				while (end < tag.length() && tag.charAt(end) != tag.charAt(j)) {
+					end++;
+				}
+				try {
+					return Integer.parseInt(tag.subSequence(j + 1, end).toString().trim());
+				} catch (NumberFormatException e) {
+					break;
+				}
+			}
+		}
+		throw new IOException("gpxFile element without valid id in metadata.xml at offset " + offset);
+	}
+
+	private void put(int id, long offset, int length) {
+		int slot = find(id);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = id;
+			size++;
+		}
+		offsets[slot] = offset;
+		lengths[slot] = length;
+		if (size * 4 > keys.length * 3) {
+			int[] oldKeys = keys;
+			long[] oldOffsets = offsets;
+			int[] oldLengths = lengths;
+			keys = new int[oldKeys.length * 2];
+			offsets = new long[oldKeys.length * 2];
+			lengths = new int[oldKeys.length * 2];
+			Arrays.fill(keys, EMPTY);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) {
+					int s = find(oldKeys[i]);
+					keys[s] = oldKeys[i];
+					offsets[s] = oldOffsets[i];
+					lengths[s] = oldLengths[i];
+				}
+			}
+		}
+	}
+
+	private int find(int id) {
+		int mask = keys.length - 1;
+		int hash = id * 0x9E3779B9;
+		int slot = (hash ^ hash >>> 16) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != id) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	@Override
+	public boolean contains(int id) {
+		return keys[find(id)] != EMPTY;
+	}
+
+	/**
+	 * parses the gpxFile element of the given id. This method is thread-safe,
+	 * as the index is not changed after it has been built.
+	 */
+	@Override
+	public GpxFile get(int id) {
+		int slot = find(id);
+		if (keys[slot] == EMPTY) {
+			return null;
+		}
+		final GpxFile[] result = new GpxFile[1];
+		Parser parser = parsers.get();
+		try {
+			parser.reader.read(parser.in.reset(file.slice(offsets[slot], lengths[slot])),
+					new MetadataStreamReader.Handler() {
+						@Override
+						public void add(GpxFile metadata) {
+							result[0] = metadata;
+						}
+					});
+		} catch (XMLStreamException e) {
+			LOGGER.error("Could not parse metadata of gpx file " + id);
+			e.printStackTrace();
+		}
+		return result[0];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return bytes of the id index on the heap
+	 */
+	public long indexSize() {
+		return keys.length * 16L;
+	}
+
+	/**
+	 * sequential reader of a byte stream with its own buffer
+	 */
+	private static class ByteScanner {
+		private InputStream in;
+		private byte[] buffer = new byte[64 * 1024];
+		private int pos = 0;
+		private int limit = 0;
+		private long position = 0;
+
+		private ByteScanner(InputStream in) {
+			this.in = in;
+		}
+
+		private int next() throws IOException {
+			if (pos == limit) {
+				int n = in.read(buffer);
+				if (n <= 0) {
+					return -1;
+				}
+				pos = 0;
+				limit = n;
+			}
+			position++;
+			return buffer[pos++] & 0xFF;
+		}
+
+		/**
+		 * @return number of bytes read
+		 */
+		private long position() {
+			return position;
+		}
+
+		/**
+		 * reads up to and including the next occurrence of the pattern. The
+		 * pattern must start with a byte, which does not occur in the rest of
+		 * the pattern.
+		 *
+		 * @return false, if the end of the stream has been reached
+		 */
+		private boolean find(byte[] pattern) throws IOException {
+			int matched = 0;
+			int c;
+			while ((c = next()) >= 0) {
+				if (c == pattern[matched]) {
+					if (++matched == pattern.length) {
+						return true;
+					}
+				} else {
+					matched = c == pattern[0] ? 1 : 0;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * reads up to and including the given byte.
+		 */
+		private boolean skipTo(char b) throws IOException {
+			int c;
+			while ((c = next()) >= 0) {
+				if (c == b) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -1,158 +1,581 @@
 package osmgpxtool.filter.reader;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.TreeMap;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.transform.stream.StreamSource;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.CompressorException;
-import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.tukaani.xz.SeekableInputStream;
 
-import osmgpxtool.filter.gpx.schema10.Gpx;
-import osmgpxtool.filter.metadata.schema.GpxFiles;
+import osmgpxtool.filter.metadata.MetadataStreamReader;
 import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
 import osmgpxtool.filter.writer.Writer;
+import osmgpxtool.util.BoundedInputStream;
+import osmgpxtool.util.GpxIdSet;
 import osmgpxtool.util.Progress;
 
 public class OsmGpxDumpReader {
 	static Logger LOGGER = LoggerFactory.getLogger(OsmGpxDumpReader.class);
-	private static TreeMap<Integer, GpxFile> metadata = null;
+	private boolean metadataRead = false;
 	private Writer writer;
 	private String tarFile;
 	private String baseName = null;
-	private List<Integer> writtenIDs;
+	private GpxIdSet readIDs;
+	private GpxPipeline pipeline;
+	private boolean sharedPipeline = false;
+	private Progress p;
+	private int progressPercentPrinted;
+
+	private int decoderThreads = 1;
+	private int workers = 1;
+	private boolean streaming = true;
+	private boolean lazyMetadata = false;
+	private GpxArchiveIndex index = null;
+	private BitSet selection = null;
+	// lazy metadata is looked up in the mapping of the archive
+	private boolean metadataMapped = false;
 
 	public OsmGpxDumpReader(Writer writer, String tarFile) {
 		this.writer = writer;
 		this.tarFile = tarFile;
-		writtenIDs = new ArrayList<Integer>();
-	}
-
-	public List<Integer> read() throws CompressorException, IOException {
-		TarArchiveInputStream tarIn = new TarArchiveInputStream(
-				new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.XZ,
-						new BufferedInputStream(new FileInputStream(tarFile))));
-		int gpxFileListSize = readMetadata();
-
-		TarArchiveEntry tarEntry;
-		LOGGER.info("Start processing " + gpxFileListSize + " gpx files...");
-		Progress p = new Progress();
-		p.start(gpxFileListSize);
-		int progressPercentPrinted = -1;
-		JAXBContext jc = null;
-		Unmarshaller unmarshaller =null;
-		try {
+		readIDs = new GpxIdSet();
+	}
+
+	/**
+	 * @param writer
+	 * @param tarFile
+	 * @param decoderThreads
+	 *            number of threads used for decoding multi-block xz archives
+	 * @param workers
+	 *            number of threads used for parsing and filtering gpx files
+	 * @param streaming
+	 *            if true, gpx files are read with the streaming parser,
+	 *            otherwise with JAXB
+	 */
+	public OsmGpxDumpReader(Writer writer, String tarFile, int decoderThreads, int workers, boolean streaming) {
+		this(writer, tarFile);
+		this.decoderThreads = decoderThreads;
+		this.workers = workers;
+		this.streaming = streaming;
+	}
+
+	/**
+	 * sets the pipeline, which processes the gpx files. Several readers can
+	 * share a pipeline to read archives concurrently. A shared pipeline is
+	 * started and finished by the caller. If no pipeline is set, the reader
+	 * creates its own.
+	 * 
+	 * @param pipeline
+	 */
+	public void setPipeline(GpxPipeline pipeline) {
+		this.pipeline = pipeline;
+		this.sharedPipeline = pipeline != null;
+	}
+
+	/**
+	 * sets the ids of the gpx files, which have already been read. Gpx files
+	 * contained in the set are skipped and the ids of the gpx files read by
+	 * this reader are added. Readers of overlapping archives share this set,
+	 * so that each gpx file is processed only once.
+	 * 
+	 * @param readIDs
+	 */
+	public void setReadIDs(GpxIdSet readIDs) {
+		this.readIDs = readIDs;
+	}
+
+	/**
+	 * sets the sidecar index of the dump. If an index is set, metadata.xml is
+	 * read before the gpx files and, if a selection of gpx ids is given, only
+	 * the selected gpx files are read from the dump.
+	 * 
+	 * @param index
+	 */
+	public void setIndex(GpxArchiveIndex index) {
+		this.index = index;
+	}
 
-			jc = JAXBContext.newInstance("osmgpxtool.filter.gpx.schema10");
-			 unmarshaller = jc.createUnmarshaller();
-		} catch (JAXBException e) {
-			e.printStackTrace();
+	/**
+	 * @param lazyMetadata
+	 *            if true, metadata.xml is only indexed and the metadata of a
+	 *            gpx file is parsed when it is written
+	 */
+	public void setLazyMetadata(boolean lazyMetadata) {
+		this.lazyMetadata = lazyMetadata;
+	}
+
+	/**
+	 * restricts reading to the given gpx ids.
+	 * 
+	 * @param selection
+	 *            ids of the gpx files to read, null to read all gpx files
+	 */
+	public void setSelection(BitSet selection) {
+		this.selection = selection;
+	}
+
+	/**
+	 * reads the gpx dump. If an index and a selection of gpx ids are given,
+	 * only the selected gpx files are read by seeking in the dump. Otherwise,
+	 * the dump is scanned completely. Uncompressed tar dumps are memory
+	 * mapped. The format is detected by the first bytes of the file.
+	 * 
+	 * @return ids of the gpx files, which have been read from this and all
+	 *         other archives sharing the set of read ids
+	 * @throws CompressorException
+	 * @throws IOException
+	 */
+	public GpxIdSet read() throws CompressorException, IOException {
+		if (!GpxArchiveIndex.isXZ(new File(tarFile))) {
+			readMapped();
+		} else if (index != null && selection != null) {
+			readIndexed();
+		} else {
+			scan();
+		}
+		return readIDs;
+	}
+
+	/**
+	 * reads the selected gpx files of the dump. The files are read in the
+	 * order of the archive, so that every required xz block is decoded only
+	 * once. Blocks without selected files are not decoded.
+	 * 
+	 * @throws IOException
+	 */
+	private void readIndexed() throws IOException {
+		long[] selected = selectFromIndex();
+		int n = selected.length;
+		int blocks = 0;
+		int lastBlock = -1;
+		for (long i : selected) {
+			if (index.getBlock((int) i) != lastBlock) {
+				lastBlock = index.getBlock((int) i);
+				blocks++;
+			}
+		}
+		LOGGER.info("Reading " + n + " of " + index.size() + " gpx files"
+				+ (lastBlock >= 0 ? " from " + blocks + " xz blocks" : "") + " using index");
+
+		SeekableInputStream in = GpxArchiveIndex.openSeekable(new File(tarFile));
+		p = new Progress();
+		p.start(n);
+		progressPercentPrinted = -1;
+		startPipeline();
+		try {
+			if (index.hasMetadata()) {
+				in.seek(index.getMetadataOffset());
+				readMetadata(index.getMetadataName(), new BoundedInputStream(in, index.getMetadataSize()),
+					index.getMetadataSize());
+			} else {
+				LOGGER.warn("No metadata.xml found in gpx archive: " + tarFile);
+			}
+			for (long i : selected) {
+				if (!readIDs.add(index.getId((int) i))) {
+					continue;
+				}
+				in.seek(index.getOffset((int) i));
+				processEntry(in, index.getName((int) i), index.getSize((int) i));
+			}
+			finishPipeline();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Reading gpx archive interrupted");
+		} finally {
+			abortPipeline();
+			in.close();
 		}
+	}
 
-		while ((tarEntry = tarIn.getNextTarEntry()) != null) {
-			if (tarEntry.isFile()) {
-				if (isGPX(tarEntry.getName())) {
+	/**
+	 * reads an uncompressed dump through a memory mapping. The tar headers
+	 * are read from the mapping and the gpx entries are passed to the workers
+	 * as slices of the mapping, so the content of the entries is never copied
+	 * by the reader. The workers parse the disjoint slices concurrently.
+	 * 
+	 * metadata.xml is located first, either by the index or by a pass over
+	 * the headers, so no entry needs to be spilled.
+	 * 
+	 * The mapping is closed, when the pipeline has finished, unless lazy
+	 * metadata is looked up in it.
+	 * 
+	 * @throws IOException
+	 */
+	private void readMapped() throws IOException {
+		MappedFile mapped = new MappedFile(new File(tarFile));
+		LOGGER.info("Start processing memory mapped gpx files...");
+		p = new Progress();
+		p.start(0);
+		progressPercentPrinted = -1;
+		startPipeline();
+		try {
+			if (index != null && index.hasMetadata()) {
+				readMetadata(index.getMetadataName(), mapped, index.getMetadataOffset(), index.getMetadataSize());
+			} else {
+				TarEntryScanner scanner = new TarEntryScanner(mapped.stream(0));
+				while (scanner.next()) {
+					if (scanner.getEntry().isFile() && isMetaXML(scanner.getName())) {
+						readMetadata(scanner.getName(), mapped, scanner.getOffset(), scanner.getSize());
+						break;
+					}
+				}
+				if (!metadataRead) {
+					LOGGER.warn("No metadata.xml found in gpx archive: " + tarFile);
+				}
+			}
 
-					p.increment();
-					int currentProgressPercent = (int) (Math.round(p.getProgressPercent()));
-					if (currentProgressPercent % 5 == 0 && currentProgressPercent != progressPercentPrinted) {
-						LOGGER.info(p.getProgressMessage());
-						progressPercentPrinted = currentProgressPercent;
+			if (index != null && selection != null) {
+				long[] selected = selectFromIndex();
+				LOGGER.info("Reading " + selected.length + " of " + index.size() + " gpx files using index");
+				for (long i : selected) {
+					if (!readIDs.add(index.getId((int) i))) {
+						continue;
 					}
-					byte[] content = new byte[(int) tarEntry.getSize()];
-					tarIn.read(content);
-
-					// write GPX file with specified writer
-					Gpx gpx = null;
-					try {
-
-						ByteArrayInputStream bis = new ByteArrayInputStream(content);
-						StreamSource ss = new StreamSource(bis);
-						JAXBElement<Gpx> root = (JAXBElement<Gpx>) unmarshaller.unmarshal(ss, Gpx.class);
-						gpx = root.getValue();
-						bis.close();
-						int id = getGpxId(tarEntry);
-						
-						GpxFile meta = metadata.get(id);
-						writer.write(gpx, tarEntry.getName(),meta);
-						writtenIDs.add(id);
-					} catch (JAXBException ex) {
-						ex.printStackTrace();
+					processMappedEntry(mapped, index.getName((int) i), index.getOffset((int) i),
+							index.getSize((int) i));
+				}
+			} else {
+				TarEntryScanner scanner = new TarEntryScanner(mapped.stream(0));
+				while (scanner.next()) {
+					if (scanner.getEntry().isFile() && isGPX(scanner.getName()) && claim(scanner.getName())) {
+						processMappedEntry(mapped, scanner.getName(), scanner.getOffset(), scanner.getSize());
 					}
 				}
 			}
+			finishPipeline();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Reading gpx archive interrupted");
+		} finally {
+			abortPipeline();
+			if (!metadataMapped) {
+				// a shared pipeline may still parse slices of the mapping
+				pipeline.closeOnFinish(mapped);
+			}
+		}
+	}
 
+	/**
+	 * passes a gpx entry of a memory mapped archive to the pipeline.
+	 * 
+	 * @param mapped
+	 * @param name
+	 * @param offset
+	 *            offset of the content in the archive
+	 * @param size
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void processMappedEntry(MappedFile mapped, String name, long offset, long size) throws IOException,
+			InterruptedException {
+		if (size > EntryBuffer.MAX_SIZE) {
+			// may cross a segment boundary, which would require a copy
+			processEntry(mapped.stream(offset), name, size);
+			return;
 		}
+		updateProgress();
+		pipeline.submit(name, mapped.slice(offset, (int) size));
+	}
 
-		tarIn.close();
-		return writtenIDs;
+	/**
+	 * looks up the selected gpx ids in the index.
+	 * 
+	 * @return positions of the selected entries in the index, sorted by their
+	 *         offset in the archive
+	 */
+	private long[] selectFromIndex() {
+		long[] selected = new long[Math.min(selection.cardinality(), index.size())];
+		int n = 0;
+		for (int id = selection.nextSetBit(0); id >= 0; id = selection.nextSetBit(id + 1)) {
+			int i = index.find(id);
+			if (i >= 0) {
+				selected[n++] = i;
+			}
+		}
+		if (n < selection.cardinality()) {
+			LOGGER.warn((selection.cardinality() - n) + " selected gpx ids are not contained in the dump");
+		}
+		selected = Arrays.copyOf(selected, n);
+		sortByOffset(selected);
+		return selected;
+	}
+
+	/**
+	 * sorts positions in the index by their offset in the archive.
+	 */
+	private void sortByOffset(long[] positions) {
+		boolean sorted = true;
+		for (int i = 1; i < positions.length && sorted; i++) {
+			sorted = index.getOffset((int) positions[i - 1]) < index.getOffset((int) positions[i]);
+		}
+		if (sorted) {
+			// the usual case, dumps are ordered by id
+			return;
+		}
+		TreeMap<Long, Long> byOffset = new TreeMap<Long, Long>();
+		for (long position : positions) {
+			byOffset.put(index.getOffset((int) position), position);
+		}
+		int i = 0;
+		for (Long position : byOffset.values()) {
+			positions[i++] = position;
+		}
 	}
 
-	private int readMetadata() throws IOException, CompressorException {
+	/**
+	 * reads the gpx dump in a single pass. Gpx entries, which appear in the
+	 * archive before metadata.xml, are spilled to an uncompressed temporary
+	 * archive and processed after the scan. Thus, every byte of the
+	 * compressed dump is decompressed exactly once.
+	 * 
+	 * The entries are parsed, filtered and written by a {@link GpxPipeline}
+	 * while the archive is read. If an index is set, metadata.xml is read from
+	 * its indexed location first, so that no entry needs to be spilled.
+	 * 
+	 * @throws IOException
+	 */
+	private void scan() throws IOException {
+		TarArchiveInputStream tarIn = new TarArchiveInputStream(ParallelXZInputStream.open(new File(tarFile),
+				decoderThreads));
 
-		int gpxFileListSize = 0;
+		LOGGER.info("Start processing gpx files...");
+		p = new Progress();
+		p.start(0);
+		progressPercentPrinted = -1;
+		startPipeline();
 
-		// initialize reader
-		TarArchiveInputStream tarIn = new TarArchiveInputStream(
-				new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.XZ,
-						new BufferedInputStream(new FileInputStream(tarFile))));
+		SpillArchive spill = new SpillArchive();
+		try {
+			if (index != null && index.hasMetadata()) {
+				readIndexedMetadata();
+			}
+			TarArchiveEntry tarEntry;
+			while ((tarEntry = tarIn.getNextTarEntry()) != null) {
+				if (tarEntry.isFile()) {
+					if (isMetaXML(tarEntry.getName())) {
+						if (!metadataRead) {
+							readMetadata(tarEntry.getName(), tarIn, tarEntry.getSize());
+						}
+					} else if (isGPX(tarEntry.getName()) && claim(tarEntry.getName())) {
+						if (!metadataRead) {
+							// metadata is not known yet, process entry after
+							// the scan
+							spill.add(tarEntry.getName(), tarIn, tarEntry.getSize());
+						} else {
+							processEntry(tarIn, tarEntry.getName(), tarEntry.getSize());
+						}
+					}
+				}
+			}
 
-		TarArchiveEntry tarEntry;
-		while ((tarEntry = tarIn.getNextTarEntry()) != null) {
-			if (isMetaXML(tarEntry.getName())) {
-				baseName = tarEntry.getName().replace("/metadata.xml", "");
-				String metadataFilename = tarEntry.getName();
-				writer.setMetadataFilename(metadataFilename);
-				// LOGGER.info("Parsing metadata...");
-				byte[] content = new byte[(int) tarEntry.getSize()];
-				tarIn.read(content);
-				// parse metadata file
+			if (!metadataRead) {
+				LOGGER.warn("No metadata.xml found in gpx archive: " + tarFile);
+			}
+			// join spilled entries with metadata
+			TarArchiveInputStream spillIn = spill.replay();
+			if (spillIn != null) {
+				LOGGER.info("Processing " + spill.size() + " spilled gpx files...");
 				try {
-					JAXBContext jc = JAXBContext.newInstance("osmgpxtool.filter.metadata.schema");
-					Unmarshaller unmarshaller = jc.createUnmarshaller();
-					JAXBElement<GpxFiles> root = (JAXBElement<GpxFiles>) unmarshaller.unmarshal(new StreamSource(
-							new ByteArrayInputStream(content)), GpxFiles.class);
-					GpxFiles gpxFiles = root.getValue();
-					metadata = new TreeMap<Integer, GpxFile>();
-					List<GpxFile> gpxFileList = gpxFiles.getGpxFile();
-					gpxFileListSize = gpxFileList.size();
-					LOGGER.info("Parsing " + gpxFileList.size() + " metadata entries...");
-					for (int w = 0; w < gpxFileList.size(); w++) {
-						GpxFile meta = gpxFileList.get(w);
-						metadata.put(meta.getId(), meta);
+					while ((tarEntry = spillIn.getNextTarEntry()) != null) {
+						processEntry(spillIn, tarEntry.getName(), tarEntry.getSize());
 					}
-				} catch (JAXBException ex) {
-					ex.printStackTrace();
+				} finally {
+					spillIn.close();
 				}
 			}
+			finishPipeline();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Reading gpx archive interrupted");
+		} finally {
+			abortPipeline();
+			tarIn.close();
+			spill.delete();
+		}
+	}
+
+	/**
+	 * reads metadata.xml from the location given by the index.
+	 * 
+	 * @throws IOException
+	 */
+	private void readIndexedMetadata() throws IOException {
+		SeekableInputStream in = GpxArchiveIndex.openSeekable(new File(tarFile));
+		try {
+			in.seek(index.getMetadataOffset());
+			readMetadata(index.getMetadataName(), new BoundedInputStream(in, index.getMetadataSize()),
+					index.getMetadataSize());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * checks, whether the given gpx file needs to be read. Gpx files, which
+	 * are not selected or have already been read from another archive, are
+	 * skipped. If the gpx file needs to be read, it is added to the read ids.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	private boolean claim(String name) {
+		int id = getGpxId(name);
+		return (selection == null || selection.get(id)) && readIDs.add(id);
+	}
+
+	/**
+	 * passes a gpx entry to the pipeline. The content is read into a reusable
+	 * buffer. Entries, which are too large to be buffered, are parsed directly
+	 * from the archive.
+	 * 
+	 * @param in
+	 *            stream positioned at the content of the entry
+	 * @param name
+	 * @param size
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void processEntry(InputStream in, String name, long size) throws IOException, InterruptedException {
+		updateProgress();
+
+		if (size > EntryBuffer.MAX_SIZE) {
+			LOGGER.info("Parsing large gpx file (" + size + " bytes) from stream: " + name);
+			pipeline.submit(name, new BoundedInputStream(in, size));
+		} else {
+			EntryBuffer buffer = pipeline.acquireBuffer();
+			try {
+				buffer.fill(name, in, size);
+			} catch (IOException e) {
+				pipeline.releaseBuffer(buffer);
+				throw e;
+			}
+			pipeline.submit(buffer);
+		}
+	}
+
+	private void startPipeline() {
+		if (!sharedPipeline) {
+			pipeline = new GpxPipeline(writer, workers, streaming);
+			pipeline.start();
+		}
+	}
+
+	private void finishPipeline() throws InterruptedException {
+		if (!sharedPipeline) {
+			pipeline.finish();
+		}
+	}
+
+	/**
+	 * stops an own pipeline, which has not been finished because reading
+	 * failed. The entries submitted so far are still written. A shared
+	 * pipeline is stopped by its owner.
+	 */
+	private void abortPipeline() {
+		if (!sharedPipeline) {
+			pipeline.abort();
+		}
+	}
+
+	private void updateProgress() {
+		p.increment();
+		int currentProgressPercent = (int) (Math.round(p.getProgressPercent()));
+		if (currentProgressPercent % 5 == 0 && currentProgressPercent != progressPercentPrinted) {
+			LOGGER.info(p.getProgressMessage());
+			progressPercentPrinted = currentProgressPercent;
+		}
+	}
+
+	/**
+	 * parses the metadata file of the gpx archive. The entries are streamed
+	 * into the metadata of the pipeline, the complete file is never held in
+	 * memory. With lazy metadata, the file is only indexed.
+	 * 
+	 * @param metadataFilename
+	 *            name of the metadata entry
+	 * @param tarIn
+	 *            archive positioned at the metadata entry
+	 * @param size
+	 *            size of the metadata entry
+	 */
+	private void readMetadata(String metadataFilename, InputStream tarIn, long size) {
+		baseName = metadataFilename.replace("/metadata.xml", "");
+		writer.setMetadataFilename(metadataFilename);
+		long tStart = System.currentTimeMillis();
+		try {
+			if (lazyMetadata) {
+				addMetadata(MappedMetadata.load(tarIn, size), tStart);
+				return;
+			}
+			LOGGER.info("Parsing metadata entries...");
+			// entries are passed to the pipeline as they are read
+			int count = new MetadataStreamReader().read(tarIn, new MetadataStreamReader.Handler() {
+				@Override
+				public void add(GpxFile meta) {
+					pipeline.addMetadata(meta);
+				}
+			});
+			metadataLoaded(count, tStart);
+			LOGGER.info("Metadata records: " + pipeline.getMetadata().offHeapSize() / (1024 * 1024)
+					+ " MB off-heap");
+		} catch (XMLStreamException | IOException ex) {
+			ex.printStackTrace();
+		}
+	}
 
+	/**
+	 * reads the metadata file of a memory mapped archive. Lazy metadata is
+	 * indexed in place.
+	 */
+	private void readMetadata(String metadataFilename, MappedFile mapped, long offset, long size) {
+		if (!lazyMetadata) {
+			readMetadata(metadataFilename, new BoundedInputStream(mapped.stream(offset), size), size);
+			return;
 		}
-		tarIn.close();
-		LOGGER.info("Metadata successfully parsed. Total number of Gpx-Files in gpx archive: " + metadata.size());
-		return gpxFileListSize;
+		baseName = metadataFilename.replace("/metadata.xml", "");
+		writer.setMetadataFilename(metadataFilename);
+		long tStart = System.currentTimeMillis();
+		try {
+			addMetadata(new MappedMetadata(mapped, offset, size), tStart);
+			metadataMapped = true;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private void addMetadata(MappedMetadata lookup, long tStart) {
+		pipeline.addMetadata(lookup);
+		metadataLoaded(lookup.size(), tStart);
+		LOGGER.info("Metadata index: " + lookup.indexSize() / (1024 * 1024) + " MB");
+	}
+
+	private void metadataLoaded(int count, long tStart) {
+		metadataRead = true;
+		p.start(selection == null ? count : Math.min(count, selection.cardinality()));
+		Runtime rt = Runtime.getRuntime();
+		LOGGER.info("Metadata successfully " + (lazyMetadata ? "indexed" : "parsed") + " in "
+				+ (System.currentTimeMillis() - tStart) + " ms. Total number of Gpx-Files in gpx archive: " + count
+				+ ". Heap used: " + (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024) + " MB of "
+				+ rt.maxMemory() / (1024 * 1024) + " MB");
 	}
 
 	public String getBaseName() {
 		return baseName;
 	}
-	public List<Integer> getWrittenIDs() {
-		return writtenIDs;
+	public GpxIdSet getReadIDs() {
+		return readIDs;
 	}
-	private int getGpxId(TarArchiveEntry tarEntry) {
-		String n = tarEntry.getName();
+	static int getGpxId(String n) {
 		return Integer.valueOf(n.substring(n.lastIndexOf("/") + 1, n.lastIndexOf(".")));
 
 	}
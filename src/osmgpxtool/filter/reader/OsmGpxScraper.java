@@ -11,12 +11,10 @@ import java.net.URLEncoder;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -38,10 +36,13 @@ import org.jsoup.select.Elements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import osmgpxtool.filter.gpx.GpxTrace;
 import osmgpxtool.filter.gpx.schema10.Gpx;
 import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
 import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile.Tags;
+import osmgpxtool.filter.writer.Checkpoint;
 import osmgpxtool.filter.writer.Writer;
+import osmgpxtool.util.GpxIdSet;
 import osmgpxtool.util.Marshaller;
 import osmgpxtool.util.Progress;
 
@@ -54,18 +55,29 @@ public class OsmGpxScraper {
 	private Writer writer;
 	private int connectionTrails = 0;
 	private String baseName;
-	private List<Integer> writtenTraces;
+	private GpxIdSet writtenTraces;
+	private Checkpoint checkpoint = null;
 	private Marshaller m;
 
 	public OsmGpxScraper(Writer writer) {
+		this(writer, true);
+	}
+
+	/**
+	 * @param writer
+	 * @param streaming
+	 *            if true, traces are read with the streaming gpx parser,
+	 *            otherwise with JAXB
+	 */
+	public OsmGpxScraper(Writer writer, boolean streaming) {
 		super();
 		this.writer = writer;
 		Date date = new Date(System.currentTimeMillis());
 		DateFormat dformat = new SimpleDateFormat("dd-MM-yyyy", Locale.ENGLISH);
 		baseName = "gpx-planet-" + dformat.format(date);
 
-		writtenTraces = new ArrayList<Integer>();
-		m = new Marshaller();
+		writtenTraces = new GpxIdSet();
+		m = new Marshaller(streaming);
 	}
 
 	public void setBaseName(String baseName) {
@@ -121,9 +133,11 @@ public class OsmGpxScraper {
 										+ nineDigitId.substring(0, 3) + "/" + nineDigitId.substring(3, 6) + "/"
 										+ nineDigitId + ".gpx";
 								if (gpxTrack != null) {
-									if (!writtenTraces.contains(id)) {
-										writer.write(gpxTrack, filename, metadata);
-										writtenTraces.add(id);
+									if (writtenTraces.add(id)) {
+										writer.write(GpxTrace.fromGpx(gpxTrack), filename, metadata);
+										if (checkpoint != null) {
+											checkpoint.written(id);
+										}
 									}
 
 								} else {
@@ -160,7 +174,7 @@ public class OsmGpxScraper {
 		// unmarchal gpx element
 		Gpx gpx = null;
 		try {
-			gpx = m.unmarshalAndConvertToGpx10(content);
+			gpx = m.unmarshal(content);
 		} catch (JAXBException ex) {
 			LOGGER.error("Error in XML, user: (" + user + "): " + url);
 			ex.printStackTrace();
@@ -280,7 +294,7 @@ public class OsmGpxScraper {
 					baos.flush();
 					baos.close();
 
-					Gpx gpx = m.unmarshalAndConvertToGpx10(b);
+					Gpx gpx = m.unmarshal(b);
 					// take all tracks of all files and put them in a new Gpx
 					// elemant
 
@@ -439,9 +453,18 @@ public class OsmGpxScraper {
 
 	}
 
-	public void setWrittenIDs(List<Integer> writtenIDs) {
+	public void setWrittenIDs(GpxIdSet writtenIDs) {
 		this.writtenTraces = writtenIDs;
 
 	}
 
+	/**
+	 * sets the checkpoint, which records the written traces.
+	 * 
+	 * @param checkpoint
+	 */
+	public void setCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
 }
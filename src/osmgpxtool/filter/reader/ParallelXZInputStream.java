@@ -0,0 +1,313 @@
+package osmgpxtool.filter.reader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+/**
+ * InputStream, which decodes the blocks of a multi-block xz file concurrently.
+ * The block index at the end of the xz file is used to locate the blocks. Each
+ * worker thread holds its own seekable decoder and decodes complete blocks
+ * into memory. The decoded blocks are returned strictly in file order, so the
+ * stream can be used like a sequential decoder (e.g. by
+ * TarArchiveInputStream).
+ *
+ * Use {@link #open(File, int)} to get a decoder. Single-block files (as
+ * written by xz without -T) are decoded sequentially.
+ */
+public class ParallelXZInputStream extends InputStream {
+	static Logger LOGGER = LoggerFactory.getLogger(ParallelXZInputStream.class);
+
+	/**
+	 * blocks larger than this are not buffered in memory. Files containing
+	 * such blocks are decoded sequentially.
+	 */
+	private static final long MAX_BLOCK_SIZE = 512L * 1024 * 1024;
+	/**
+	 * the decoded blocks read ahead may use this share of the heap. At least
+	 * one block is always read ahead.
+	 */
+	private static final int READ_AHEAD_HEAP_SHARE = 4;
+
+	private File file;
+	private int blockCount;
+	private long[] blockSizes;
+	private ExecutorService pool;
+	private LinkedBlockingQueue<SeekableXZInputStream> decoders;
+	private List<SeekableXZInputStream> allDecoders;
+	private ArrayDeque<Future<byte[]>> pending;
+	private int maxPending;
+	private long maxPendingBytes;
+	// decoded size of the pending blocks
+	private long pendingBytes = 0;
+	private int nextBlock = 0;
+	private byte[] current = null;
+	private int pos = 0;
+	private volatile boolean closed = false;
+
+	private ParallelXZInputStream(File file, SeekableXZInputStream index, int threads) {
+		this.file = file;
+		this.blockCount = index.getBlockCount();
+		this.blockSizes = new long[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			blockSizes[i] = index.getBlockSize(i);
+		}
+		this.decoders = new LinkedBlockingQueue<SeekableXZInputStream>();
+		this.allDecoders = new ArrayList<SeekableXZInputStream>();
+		this.decoders.add(index);
+		this.allDecoders.add(index);
+		this.pending = new ArrayDeque<Future<byte[]>>();
+		// read ahead two blocks per thread, so that no thread waits for
+		// the consumer, as long as the blocks fit into the heap
+		this.maxPending = threads * 2;
+		this.maxPendingBytes = Runtime.getRuntime().maxMemory() / READ_AHEAD_HEAP_SHARE;
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int n = 0;
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "xz-decoder-" + (n++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * opens the given xz file for reading. If the file consists of more than
+	 * one block and threads is greater than 1, the blocks are decoded in
+	 * parallel. Otherwise, a sequential decoder is returned.
+	 *
+	 * @param file
+	 * @param threads
+	 *            number of decoder threads
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream open(File file, int threads) throws IOException {
+		SeekableXZInputStream index;
+		try {
+			index = new SeekableXZInputStream(new SeekableFileInputStream(file));
+		} catch (IOException e) {
+			LOGGER.warn("Could not read xz block index of " + file + ". Falling back to sequential decoding.");
+			return openSequential(file);
+		}
+		int blocks = index.getBlockCount();
+		boolean blocksFit = true;
+		for (int i = 0; i < blocks; i++) {
+			if (index.getBlockSize(i) > MAX_BLOCK_SIZE) {
+				blocksFit = false;
+				break;
+			}
+		}
+		if (threads > 1 && blocks > 1 && blocksFit) {
+			LOGGER.info("Decoding " + blocks + " xz blocks with " + threads + " threads");
+			return new ParallelXZInputStream(file, index, threads);
+		} else {
+			if (blocks <= 1) {
+				LOGGER.info("xz file consists of a single block. Using sequential decoding.");
+			}
+			index.close();
+			return openSequential(file);
+		}
+	}
+
+	/**
+	 * opens the given file with the sequential xz decoder.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream openSequential(File file) throws IOException {
+		try {
+			return new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.XZ,
+					new BufferedInputStream(new FileInputStream(file)));
+		} catch (CompressorException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * @return number of xz blocks of the file
+	 */
+	public int getBlockCount() {
+		return blockCount;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return current[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && fill()) {
+			int s = (int) Math.min(n - skipped, current.length - pos);
+			pos += s;
+			skipped += s;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return current == null ? 0 : current.length - pos;
+	}
+
+	/**
+	 * makes sure that the current block has remaining bytes.
+	 *
+	 * @return false, if the end of the file has been reached
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		while (current == null || pos >= current.length) {
+			submit();
+			Future<byte[]> next = pending.poll();
+			if (next == null) {
+				return false;
+			}
+			// the first pending block
+			pendingBytes -= blockSizes[nextBlock - pending.size() - 1];
+			current = null;
+			try {
+				current = next.get();
+				pos = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * submits decoding tasks until the read ahead limit of blocks or bytes
+	 * is reached.
+	 */
+	private void submit() {
+		while (pending.size() < maxPending && nextBlock < blockCount
+				&& (pending.isEmpty() || pendingBytes + blockSizes[nextBlock] <= maxPendingBytes)) {
+			final int block = nextBlock++;
+			pendingBytes += blockSizes[block];
+			pending.add(pool.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return decodeBlock(block);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * decodes a single block. Every thread uses its own decoder, which is
+	 * returned to the queue of idle decoders afterwards.
+	 *
+	 * @param block
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] decodeBlock(int block) throws IOException {
+		SeekableXZInputStream in = decoders.poll();
+		if (in == null) {
+			in = new SeekableXZInputStream(new SeekableFileInputStream(file));
+			synchronized (allDecoders) {
+				if (closed) {
+					in.close();
+					throw new IOException("Stream closed");
+				}
+				allDecoders.add(in);
+			}
+		}
+		try {
+			byte[] content = new byte[(int) blockSizes[block]];
+			in.seekToBlock(block);
+			int off = 0;
+			while (off < content.length) {
+				int n = in.read(content, off, content.length - off);
+				if (n < 0) {
+					throw new IOException("Unexpected end of xz block " + block + " in " + file);
+				}
+				off += n;
+			}
+			return content;
+		} finally {
+			decoders.add(in);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (Future<byte[]> f : pending) {
+			f.cancel(true);
+		}
+		pending.clear();
+		pool.shutdownNow();
+		current = null;
+		try {
+			// running tasks still read from their decoders
+			while (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+				LOGGER.warn("Waiting for the xz decoder threads to finish");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (allDecoders) {
+			for (SeekableXZInputStream in : allDecoders) {
+				in.close();
+			}
+			allDecoders.clear();
+		}
+	}
+}
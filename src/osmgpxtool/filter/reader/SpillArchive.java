@@ -0,0 +1,110 @@
+package osmgpxtool.filter.reader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Temporary, uncompressed tar archive for gpx entries which are read before
+ * the metadata of the dump is available. The entries are written once while
+ * the dump is scanned and replayed after the scan, so that the compressed
+ * dump does not need to be decompressed a second time.
+ */
+class SpillArchive {
+	static Logger LOGGER = LoggerFactory.getLogger(SpillArchive.class);
+
+	private File file;
+	private TarArchiveOutputStream tarOut;
+	private int size = 0;
+	private byte[] buffer;
+
+	/**
+	 * copies the given entry to the spill archive. The temporary file is
+	 * created on first use.
+	 *
+	 * @param name
+	 * @param in
+	 *            stream positioned at the content of the entry
+	 * @param size
+	 *            size of the entry
+	 * @throws IOException
+	 */
+	public void add(String name, InputStream in, long size) throws IOException {
+		if (tarOut == null) {
+			file = File.createTempFile("osmgpxfilter-spill-", ".tar");
+			file.deleteOnExit();
+			LOGGER.info("Metadata not read yet. Spilling gpx entries to " + file.getAbsolutePath());
+			tarOut = new TarArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			tarOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+			tarOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+			buffer = new byte[64 * 1024];
+		}
+		TarArchiveEntry entry = new TarArchiveEntry(name, true);
+		entry.setSize(size);
+		tarOut.putArchiveEntry(entry);
+		long remaining = size;
+		while (remaining > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n < 0) {
+				throw new EOFException("Unexpected end of entry " + name);
+			}
+			tarOut.write(buffer, 0, n);
+			remaining -= n;
+		}
+		tarOut.closeArchiveEntry();
+		size++;
+	}
+
+	/**
+	 * @return number of spilled entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * finishes the spill archive and opens it for reading. Returns null, if no
+	 * entry has been spilled.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public TarArchiveInputStream replay() throws IOException {
+		if (tarOut == null) {
+			return null;
+		}
+		tarOut.close();
+		tarOut = null;
+		return new TarArchiveInputStream(new BufferedInputStream(new FileInputStream(file)));
+	}
+
+	/**
+	 * removes the temporary file.
+	 */
+	public void delete() {
+		try {
+			if (tarOut != null) {
+				tarOut.close();
+				tarOut = null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (file != null && !file.delete()) {
+			LOGGER.warn("Could not delete spill file: " + file.getAbsolutePath());
+		}
+		file = null;
+		size = 0;
+	}
+}
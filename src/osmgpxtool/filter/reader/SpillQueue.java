@@ -0,0 +1,222 @@
+package osmgpxtool.filter.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue of encoded gpx entries in memory mapped segment files. The pipeline
+ * spills entries into the queue when its write buffer is full, so that the
+ * workers are not blocked by a slow writer, e.g. a busy database. The
+ * operating system writes the pages of the segments to disk as needed, so
+ * the heap is not used for spilled entries.
+ *
+ * Entries are appended to the last segment and taken from the first one in
+ * the same order. A segment, whose entries have all been taken, is reused for
+ * new entries. Up to MAX_FREE_SEGMENTS unused segments are kept, the others
+ * are unmapped and deleted, so that their disk space is released at once and
+ * not only when the buffers are garbage collected. The queue is only used
+ * within a single run, so the segments are not readable after a restart; an
+ * interrupted import is resumed by the checkpoint.
+ *
+ * The queue is thread-safe.
+ */
+class SpillQueue {
+	static Logger LOGGER = LoggerFactory.getLogger(SpillQueue.class);
+
+	static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * number of unused segments kept for reuse
+	 */
+	static final int MAX_FREE_SEGMENTS = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File directory;
+	private ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private ArrayDeque<Segment> freeSegments = new ArrayDeque<Segment>();
+	private int size = 0;
+	private long spilled = 0;
+	private long spilledBytes = 0;
+	private int maxSegments = 0;
+	private boolean unmapFailed = false;
+
+	/**
+	 * entry taken from the queue
+	 */
+	static class Record {
+		final String name;
+		/**
+		 * encoded tracks of the entry. The buffer is a view of the segment
+		 * file, which is only valid until the next call of take(), because the
+		 * segment may then be reused or unmapped.
+		 */
+		final ByteBuffer data;
+
+		private Record(String name, ByteBuffer data) {
+			this.name = name;
+			this.data = data;
+		}
+	}
+
+	private static class Segment {
+		private File file;
+		private MappedByteBuffer buffer;
+		private int writePosition = 0;
+		private int readPosition = 0;
+	}
+
+	/**
+	 * @param directory
+	 *            directory of the segment files, is created if it does not
+	 *            exist
+	 * @throws IOException
+	 */
+	SpillQueue(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create spill directory " + directory);
+		}
+		this.directory = directory;
+	}
+
+	/**
+	 * appends an entry to the queue.
+	 *
+	 * @param name
+	 *            name of the gpx entry
+	 * @param data
+	 *            encoded tracks
+	 * @throws IOException
+	 *             if no segment file can be created, e.g. if the disk is full
+	 */
+	synchronized void put(String name, byte[] data) throws IOException {
+		byte[] nameBytes = name.getBytes(UTF8);
+		int length = 8 + nameBytes.length + data.length;
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.buffer.capacity() - segment.writePosition < length) {
+			// entries never cross segments, large entries get a segment of
+			// their own
+			if (length <= SEGMENT_SIZE && !freeSegments.isEmpty()) {
+				segment = freeSegments.pollFirst();
+			} else {
+				segment = createSegment(Math.max(SEGMENT_SIZE, length));
+			}
+			segments.addLast(segment);
+			maxSegments = Math.max(maxSegments, segments.size() + freeSegments.size());
+		}
+		ByteBuffer out = segment.buffer;
+		out.position(segment.writePosition);
+		out.putInt(nameBytes.length);
+		out.put(nameBytes);
+		out.putInt(data.length);
+		out.put(data);
+		segment.writePosition = out.position();
+		size++;
+		spilled++;
+		spilledBytes += length;
+	}
+
+	/**
+	 * takes the first entry of the queue. The data of the previously taken
+	 * entry must not be used any more, because the segments, whose entries
+	 * have all been taken, are released here.
+	 *
+	 * @return entry or null, if the queue is empty
+	 */
+	synchronized Record take() {
+		Segment segment = segments.peekFirst();
+		while (segment != null && segment.readPosition == segment.writePosition) {
+			if (segment == segments.peekLast()) {
+				// may still receive entries
+				return null;
+			}
+			release(segments.pollFirst());
+			segment = segments.peekFirst();
+		}
+		if (segment == null) {
+			return null;
+		}
+		ByteBuffer in = segment.buffer.duplicate();
+		in.position(segment.readPosition);
+		byte[] nameBytes = new byte[in.getInt()];
+		in.get(nameBytes);
+		int length = in.getInt();
+		in.limit(in.position() + length);
+		ByteBuffer data = in.slice();
+		segment.readPosition = in.limit();
+		size--;
+		return new Record(new String(nameBytes, UTF8), data);
+	}
+
+	/**
+	 * @return number of entries in the queue
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * deletes all segment files.
+	 */
+	synchronized void close() {
+		while (!segments.isEmpty()) {
+			delete(segments.pollFirst());
+		}
+		while (!freeSegments.isEmpty()) {
+			delete(freeSegments.pollFirst());
+		}
+		if (spilled > 0) {
+			LOGGER.info(spilled + " gpx files (" + spilledBytes / (1024 * 1024) + " MB) were spilled to "
+					+ directory + ", up to " + maxSegments + " segment files at a time");
+		}
+	}
+
+	private Segment createSegment(int capacity) throws IOException {
+		Segment segment = new Segment();
+		segment.file = File.createTempFile("gpx-spill-", ".seg", directory);
+		RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+		try {
+			// the mapping stays valid after the file has been closed
+			segment.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (IOException e) {
+			raf.close();
+			delete(segment);
+			throw e;
+		}
+		raf.close();
+		return segment;
+	}
+
+	/**
+	 * keeps an unused segment for reuse or deletes it.
+	 */
+	private void release(Segment segment) {
+		if (segment.buffer.capacity() == SEGMENT_SIZE && freeSegments.size() < MAX_FREE_SEGMENTS) {
+			segment.writePosition = 0;
+			segment.readPosition = 0;
+			freeSegments.addLast(segment);
+		} else {
+			delete(segment);
+		}
+	}
+
+	private void delete(Segment segment) {
+		if (segment.buffer != null && !MappedFile.unmap(segment.buffer) && !unmapFailed) {
+			unmapFailed = true;
+			LOGGER.warn("Could not unmap spill segments, their disk space is released when they are garbage collected");
+		}
+		segment.buffer = null;
+		if (!segment.file.delete()) {
+			segment.file.deleteOnExit();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package osmgpxtool.filter.reader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+/**
+ * Reads the headers of an uncompressed tar stream and keeps track of the
+ * offset of every entry's content in the stream. Unlike
+ * TarArchiveInputStream, which reads the archive in blocks, the offsets
+ * reported by this scanner are exact, so they can be used to seek to an
+ * entry later. GNU long names and the path of pax headers are resolved.
+ */
+class TarEntryScanner {
+	private static final int RECORD_SIZE = 512;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private InputStream in;
+	private byte[] header = new byte[RECORD_SIZE];
+	private long position = 0;
+	private long remaining = 0;
+	private TarArchiveEntry entry;
+	private String name;
+	private long offset;
+
+	TarEntryScanner(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * skips the rest of the current entry and reads the next header. Long
+	 * name and pax header entries are consumed and applied to the following
+	 * entry.
+	 *
+	 * @return false, if the end of the archive has been reached
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		String longName = null;
+		while (true) {
+			skipRemaining();
+			if (!readRecord()) {
+				return false;
+			}
+			if (isZero(header)) {
+				return false;
+			}
+			entry = new TarArchiveEntry(header);
+			offset = position;
+			remaining = entry.getSize();
+			if (entry.isGNULongNameEntry()) {
+				longName = trimNul(new String(readContent(), UTF8));
+			} else if (entry.isPaxHeader()) {
+				String path = parsePaxPath(readContent());
+				if (path != null) {
+					longName = path;
+				}
+			} else {
+				name = longName != null ? longName : entry.getName();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return header of the current entry
+	 */
+	public TarArchiveEntry getEntry() {
+		return entry;
+	}
+
+	/**
+	 * @return name of the current entry, including long names
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return offset of the content of the current entry in the stream
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return size of the content of the current entry
+	 */
+	public long getSize() {
+		return entry.getSize();
+	}
+
+	private boolean readRecord() throws IOException {
+		int read = 0;
+		while (read < RECORD_SIZE) {
+			int n = in.read(header, read, RECORD_SIZE - read);
+			if (n < 0) {
+				if (read == 0) {
+					return false;
+				}
+				throw new EOFException("Truncated tar header at offset " + position);
+			}
+			read += n;
+		}
+		position += RECORD_SIZE;
+		return true;
+	}
+
+	/**
+	 * reads the content of the current entry.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] readContent() throws IOException {
+		if (remaining > Integer.MAX_VALUE) {
+			throw new IOException("Tar header entry too large: " + remaining);
+		}
+		byte[] content = new byte[(int) remaining];
+		int read = 0;
+		while (read < content.length) {
+			int n = in.read(content, read, content.length - read);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of tar archive at offset " + (position + read));
+			}
+			read += n;
+		}
+		position += content.length;
+		// content is padded to full records
+		remaining = -1;
+		skip(padding(entry.getSize()));
+		return content;
+	}
+
+	/**
+	 * skips the unread content of the current entry and its padding. A
+	 * negative number of remaining bytes marks an entry, which has been
+	 * consumed completely.
+	 */
+	private void skipRemaining() throws IOException {
+		if (entry == null || remaining < 0) {
+			return;
+		}
+		long n = remaining;
+		remaining = -1;
+		skip(n + padding(entry.getSize()));
+	}
+
+	private void skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n) {
+			long s = in.skip(n - skipped);
+			if (s <= 0) {
+				// skip is not required to make progress, read instead
+				if (in.read() < 0) {
+					throw new EOFException("Unexpected end of tar archive at offset " + (position + skipped));
+				}
+				s = 1;
+			}
+			skipped += s;
+		}
+		position += n;
+	}
+
+	private static long padding(long size) {
+		long rest = size % RECORD_SIZE;
+		return rest == 0 ? 0 : RECORD_SIZE - rest;
+	}
+
+	private static boolean isZero(byte[] record) {
+		for (byte b : record) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String trimNul(String s) {
+		int end = s.indexOf('\0');
+		return end < 0 ? s : s.substring(0, end);
+	}
+
+	/**
+	 * extracts the path from the records of a pax header ("length key=value\n").
+	 */
+	private static String parsePaxPath(byte[] content) {
+		int pos = 0;
+		while (pos < content.length) {
+			int space = pos;
+			while (space < content.length && content[space] != ' ') {
+				space++;
+			}
+			int length;
+			try {
+				length = Integer.parseInt(new String(content, pos, space - pos, UTF8));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (length <= 0 || pos + length > content.length) {
+				return null;
+			}
+			String record = new String(content, space + 1, pos + length - space - 2, UTF8);
+			if (record.startsWith("path=")) {
+				return record.substring("path=".length());
+			}
+			pos += length;
+		}
+		return null;
+	}
+}
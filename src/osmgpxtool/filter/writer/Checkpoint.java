@@ -0,0 +1,198 @@
+package osmgpxtool.filter.writer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import osmgpxtool.util.GpxIdSet;
+
+/**
+ * Records the progress of a run, so that it can be resumed after it has been
+ * interrupted. The checkpoint file contains the ids of all gpx files, which
+ * are completed: either written and committed by the writer or rejected by
+ * the filter. Gpx files are processed out of archive order by the pipeline,
+ * so the progress is stored as a set of ids instead of a position in the
+ * archive.
+ * 
+ * The writer is committed every {@link #INTERVAL} milliseconds or
+ * {@link #MAX_PENDING} written gpx files. A commit is done in three steps:
+ * <ol>
+ * <li>the ids written since the last commit are stored as pending in the
+ * checkpoint file</li>
+ * <li>the writer is committed</li>
+ * <li>the pending ids are stored as completed</li>
+ * </ol>
+ * If the run is interrupted between the first and the last step, it is
+ * unknown whether the pending gpx files have been committed. On resume they
+ * are discarded from the output and written again, so no rows are
+ * duplicated. The checkpoint file is replaced atomically and synced to disk
+ * in each step.
+ */
+public class Checkpoint {
+	static Logger LOGGER = LoggerFactory.getLogger(Checkpoint.class);
+
+	private static final String MAGIC = "OSMGPXCKP";
+	private static final int VERSION = 1;
+	static final long INTERVAL = 60000;
+	static final int MAX_PENDING = 50000;
+
+	private File file;
+	private ResumableWriter writer;
+	private GpxIdSet completed;
+	private int[] pending = new int[1024];
+	private int pendingSize = 0;
+	private long lastCommit;
+
+	private Checkpoint(File file, ResumableWriter writer, GpxIdSet completed) {
+		this.file = file;
+		this.writer = writer;
+		this.completed = completed;
+		this.lastCommit = System.currentTimeMillis();
+	}
+
+	/**
+	 * starts a new checkpoint file. An existing file is replaced.
+	 * 
+	 * @param file
+	 * @param writer
+	 *            initialized writer
+	 * @return
+	 * @throws IOException
+	 */
+	public static Checkpoint create(File file, ResumableWriter writer) throws IOException {
+		Checkpoint checkpoint = new Checkpoint(file, writer, new GpxIdSet());
+		checkpoint.store(new int[0]);
+		return checkpoint;
+	}
+
+	/**
+	 * continues from an existing checkpoint file. Gpx files, whose commit
+	 * state is unknown, are discarded from the output of the writer.
+	 * 
+	 * @param file
+	 * @param writer
+	 *            initialized writer, which appends to the existing output
+	 * @return
+	 * @throws IOException
+	 *             if the file does not exist or is not a valid checkpoint
+	 */
+	public static Checkpoint resume(File file, ResumableWriter writer) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		GpxIdSet completed;
+		int[] pending;
+		try {
+			if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION) {
+				throw new IOException("Not a checkpoint file or unsupported version: " + file);
+			}
+			completed = GpxIdSet.read(in);
+			pending = new int[in.readInt()];
+			for (int i = 0; i < pending.length; i++) {
+				pending[i] = in.readInt();
+			}
+		} finally {
+			in.close();
+		}
+		Checkpoint checkpoint = new Checkpoint(file, writer, completed);
+		if (pending.length > 0) {
+			LOGGER.info("Discarding " + pending.length + " gpx files of the interrupted commit");
+			writer.discard(pending);
+			writer.commit();
+			checkpoint.store(new int[0]);
+		}
+		LOGGER.info("Resuming from checkpoint " + file + ": " + completed.size() + " gpx files completed");
+		return checkpoint;
+	}
+
+	/**
+	 * @return ids of the completed gpx files. Gpx files contained in the set
+	 *         must not be written again.
+	 */
+	public GpxIdSet getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * marks a gpx file, which is not passed to the writer, as completed. May
+	 * be called concurrently.
+	 * 
+	 * @param id
+	 */
+	public void rejected(int id) {
+		completed.add(id);
+	}
+
+	/**
+	 * marks a gpx file as passed to the writer. The writer is committed, if
+	 * the interval has elapsed. Must be called by the thread, which calls the
+	 * writer.
+	 * 
+	 * @param id
+	 */
+	public void written(int id) {
+		if (pendingSize == pending.length) {
+			pending = Arrays.copyOf(pending, pending.length * 2);
+		}
+		pending[pendingSize++] = id;
+		if (pendingSize >= MAX_PENDING || System.currentTimeMillis() - lastCommit >= INTERVAL) {
+			commit();
+		}
+	}
+
+	/**
+	 * commits the writer and records the written gpx files as completed. Must
+	 * be called by the thread, which calls the writer.
+	 */
+	public void commit() {
+		int[] ids = Arrays.copyOf(pending, pendingSize);
+		try {
+			store(ids);
+			writer.commit();
+			for (int id : ids) {
+				completed.add(id);
+			}
+			store(new int[0]);
+		} catch (IOException e) {
+			LOGGER.error("Could not write checkpoint " + file);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		pendingSize = 0;
+		lastCommit = System.currentTimeMillis();
+		LOGGER.debug("Checkpoint: " + completed.size() + " gpx files completed");
+	}
+
+	/**
+	 * writes the checkpoint to a temporary file, syncs it and replaces the
+	 * checkpoint file.
+	 */
+	private void store(int[] pending) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			completed.write(out);
+			out.writeInt(pending.length);
+			for (int id : pending) {
+				out.writeInt(id);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
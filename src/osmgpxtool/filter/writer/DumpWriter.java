@@ -20,8 +20,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import osmgpxtool.filter.GpxFilter;
+import osmgpxtool.filter.gpx.GpxTrace;
 import osmgpxtool.filter.gpx.schema10.Gpx;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk;
 import osmgpxtool.filter.metadata.schema.GpxFiles;
 import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
 
@@ -82,14 +82,14 @@ public class DumpWriter implements Writer {
 	}
 
 	@Override
-	public void write(Gpx gpx, String filename, GpxFile metadata) {
+	public void write(GpxTrace trace, String filename, GpxFile metadata) {
 		if (metadata == null) {
 			LOGGER.warn("Skipped because of missing metadata: " + filename);
-		} else {
+		} else if (filter.checkMetadata(metadata)) {
 			// if all tracks of gpx file pass the filter, write gpx file.
 			boolean passesFilter = false;
-			for (Trk trk : gpx.getTrk()) {
-				if ( filter.check(trk)) {
+			for (int i = 0; i < trace.getTracks().size(); i++) {
+				if (filter.check(trace, i)) {
 					passesFilter = true;
 				}
 			}
@@ -97,7 +97,7 @@ public class DumpWriter implements Writer {
 				metadataFile.getGpxFile().add(metadata);
 				try {
 					os = new ByteArrayOutputStream();
-					jaxbMarshaller.marshal(gpx, os);
+					jaxbMarshaller.marshal(trace.toGpx(), os);
 					TarArchiveEntry tarEntry = new TarArchiveEntry(filename, true);
 					tarEntry.setSize(os.size());
 					tarOut.putArchiveEntry(tarEntry);
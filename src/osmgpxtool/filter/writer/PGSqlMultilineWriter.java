@@ -1,29 +1,21 @@
 package osmgpxtool.filter.writer;
 
-import java.math.BigDecimal;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.ArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import osmgpxtool.filter.GpxFilter;
-import osmgpxtool.filter.gpx.schema10.Gpx;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg.Trkpt;
+import osmgpxtool.filter.TrackClipper;
+import osmgpxtool.filter.gpx.GpxTrace;
+import osmgpxtool.filter.gpx.GpxTrack;
 import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
-
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.MultiLineString;
-import com.vividsolutions.jts.geom.PrecisionModel;
-import com.vividsolutions.jts.io.WKBWriter;
+import osmgpxtool.util.WkbEncoder;
 
 /**
  * 
@@ -33,7 +25,7 @@ import com.vividsolutions.jts.io.WKBWriter;
  *
  */
 
-public class PGSqlMultilineWriter implements Writer {
+public class PGSqlMultilineWriter implements ResumableWriter {
 	static Logger LOGGER = LoggerFactory.getLogger(PGSqlMultilineWriter.class);
 
 	private String dbName;
@@ -44,11 +36,16 @@ public class PGSqlMultilineWriter implements Writer {
 	private Connection con = null;
 	private PreparedStatement insert;
 	private GpxFilter filter;
+	private boolean resume = false;
+	private String table = "gpx_data_line";
+	private WkbEncoder wkb = new WkbEncoder();
+	private TrackClipper clipper;
 
 	/**
 	 * Writer for Gps traces to PostgresQL/PostGIS database. The writer creates
 	 * a new table named "gpx_planet". If the table exists already, the old one
-	 * will be overwritten.
+	 * will be overwritten. When an interrupted import is resumed
+	 * ({@link #setResume(boolean)}), the existing tables are kept.
 	 * 
 	 * @param dbName
 	 * @param dbUser
@@ -65,6 +62,18 @@ public class PGSqlMultilineWriter implements Writer {
 		this.dbHost = dbHost;
 		this.dbPort = dbPort;
 		this.filter = filter;
+		this.clipper = new TrackClipper(filter);
+	}
+
+	/**
+	 * appends a suffix to the name of the table, so that several writers can
+	 * write into the same database. Must be called before {@link #init()}.
+	 * 
+	 * @param suffix
+	 *            e.g. "_heidelberg" for the table gpx_data_line_heidelberg
+	 */
+	public void setTableSuffix(String suffix) {
+		this.table = "gpx_data_line" + suffix;
 	}
 
 	/**
@@ -76,12 +85,16 @@ public class PGSqlMultilineWriter implements Writer {
 		LOGGER.info("connect to database: " + dbName + ", " + dbHost + ":" + dbPort + " with user: " + dbUser);
 		connectToDatabase();
 		LOGGER.info("Connection successful!");
-		createTable();
+		if (resume) {
+			LOGGER.info("Appending to existing tables");
+		} else {
+			createTable();
+		}
 
 		// prepare insert statement
 		try {
 			insert = con
-					.prepareStatement("INSERT INTO gpx_data_line(gpx_id, trk_id, tags,points,uid,\"user\",visibility,description,geom) VALUES(?,?,?,?,?,?,?,?,ST_GeomFromEWKB(?))");
+					.prepareStatement("INSERT INTO " + table + "(gpx_id, trk_id, tags,points,uid,\"user\",visibility,description,geom) VALUES(?,?,?,?,?,?,?,?,ST_GeomFromEWKB(?))");
 		} catch (SQLException e) {
 			e.printStackTrace();
 			throw new RuntimeException();
@@ -96,12 +109,13 @@ public class PGSqlMultilineWriter implements Writer {
 		Statement create = null;
 		try {
 			create = con.createStatement();
-			create.addBatch("DROP TABLE IF EXISTS gpx_data_line;");
-			create.addBatch("CREATE TABLE gpx_data_line(\"gpx_id\" int, \"trk_id\" int ,\"tags\" text[],\"points\" integer,\"uid\" integer,\"user\" text,\"visibility\" text,\"description\" text,\"geom\" geometry(MultiLineStringZ,4326),CONSTRAINT gpx_data_line_pk PRIMARY KEY (gpx_id, trk_id));");
-			create.addBatch("DROP INDEX IF EXISTS gpx_data_line_geom_index;");
-			create.addBatch("CREATE INDEX gpx_data_line_geom_index ON gpx_data_line USING gist (geom);");
+			create.addBatch("DROP TABLE IF EXISTS " + table + ";");
+			create.addBatch("CREATE TABLE " + table + "(\"gpx_id\" int, \"trk_id\" int ,\"tags\" text[],\"points\" integer,\"uid\" integer,\"user\" text,\"visibility\" text,\"description\" text,\"geom\" geometry(MultiLineStringZ,4326),CONSTRAINT " + table + "_pk PRIMARY KEY (gpx_id, trk_id));");
+			create.addBatch("DROP INDEX IF EXISTS " + table + "_geom_index;");
+			create.addBatch("CREATE INDEX " + table + "_geom_index ON " + table + " USING gist (geom);");
 			create.executeBatch();
 			create.close();
+			con.commit();
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
@@ -116,7 +130,9 @@ public class PGSqlMultilineWriter implements Writer {
 
 		try {
 			con = DriverManager.getConnection(url, dbUser, dbPassword);
-			con.setAutoCommit(true);
+			// rows are committed by commit(), so that the import can be
+			// resumed from the last checkpoint
+			con.setAutoCommit(false);
 
 		} catch (SQLException ex) {
 			LOGGER.error("Could not connect to database");
@@ -132,18 +148,17 @@ public class PGSqlMultilineWriter implements Writer {
 	 * not be written.
 	 */
 	@Override
-	public void write(Gpx gpx, String filename, GpxFile metadata) {
+	public void write(GpxTrace trace, String filename, GpxFile metadata) {
 		if (metadata == null) {
 			LOGGER.warn("Skipped because of missing metadata: " + filename);
-		} else {
+		} else if (filter.checkMetadata(metadata)) {
 			// for each track in gpx
-			for (int i = 0; i < gpx.getTrk().size(); i++) {
-				Trk trk = gpx.getTrk().get(i);
-				if (filter.check(trk)) {
+			for (int i = 0; i < trace.getTracks().size(); i++) {
+				GpxTrack trk = trace.getTracks().get(i);
+				if (filter.check(trace, i)) {
 					// prepare geometry
-					MultiLineString geom = prepareGeometry(trk);
+					byte[] geom = prepareGeometry(trk);
 					if (geom != null) {
-						WKBWriter wr = new WKBWriter(3, true);
 						try {
 							insert.clearParameters();
 							insert.setInt(1, metadata.getId());
@@ -166,7 +181,7 @@ public class PGSqlMultilineWriter implements Writer {
 							} else {
 								insert.setNull(8, java.sql.Types.VARCHAR);
 							}
-							insert.setObject(9, wr.write(geom), java.sql.Types.BINARY);
+							insert.setObject(9, geom, java.sql.Types.BINARY);
 
 							insert.executeUpdate();
 
@@ -183,64 +198,86 @@ public class PGSqlMultilineWriter implements Writer {
 
 	/**
 	 * This method prepares the geometry of the given gps trace. It returns a
-	 * Multilinestring, containing Linestrings for each track segment.
+	 * Multilinestring as EWKB, containing Linestrings for each track segment.
+	 * If parameter -c is set, the track segments are clipped at the bounding
+	 * box, each part inside becomes a linestring, which starts and ends at the
+	 * boundary.
 	 * 
-	 * @param gpx
+	 * @param trk
 	 * @returns null, if MultiLineString is empty
 	 */
-	private MultiLineString prepareGeometry(Trk trk) {
-		GeometryFactory geomF = new GeometryFactory(new PrecisionModel(), 4326);
-		ArrayList<LineString> linestrings = new ArrayList<LineString>();
+	byte[] prepareGeometry(GpxTrack trk) {
+		wkb.startMultiLineString(4326);
 
-		// loop through track segements
-		for (int i = 0; i < trk.getTrkseg().size(); i++) {
-			Trkseg seg = trk.getTrkseg().get(i);
-			/*
-			 * each tracksegment needs at least 2 trackpoints, therefore skip
-			 * tracksegments having only one trackpoint
-			 */
-			ArrayList<Coordinate> coords = new ArrayList<Coordinate>();
-			// loop through trackpoints
-			for (int u = 0; u < seg.getTrkpt().size(); u++) {
-				Trkpt trkpt = seg.getTrkpt().get(u);
-				BigDecimal ele;
-				// TODO find better way to handle data if -e attribute is
-				// not set
-				if (trkpt.getEle() != null) {
-					ele = trkpt.getEle();
-				} else {
-					ele = new BigDecimal(-999.0);
+		// loop through the parts of the track segments
+		int pieces = clipper.clip(trk);
+		for (int p = 0; p < pieces; p++) {
+			int first = clipper.getPieceStart(p);
+			int last = clipper.getPieceEnd(p);
+			// each linestring needs at least 2 trackpoints
+			if (last - first > 1) {
+				wkb.startLineString();
+				for (int i = first; i < last; i++) {
+					// TODO find better way to handle data if -e attribute is
+					// not set
+					wkb.addPoint(clipper.getLon(i), clipper.getLat(i), clipper.hasEle(i) ? clipper.getEle(i) : -999.0);
 				}
-				Coordinate c = new Coordinate(trkpt.getLon().doubleValue(), trkpt.getLat().doubleValue(),
-						ele.doubleValue());
-
-				if (filter.isInBbox(c)) {
-					coords.add(c);
-				} else {
-					if (coords.size() > 1) {
-						linestrings.add(geomF.createLineString(coords.toArray(new Coordinate[coords.size()])));
-					}
-					coords = new ArrayList<Coordinate>();
-				}
-			}
-			// avoid linestring with only one point
-			if (coords.size() > 1) {
-				linestrings.add(geomF.createLineString(coords.toArray(new Coordinate[coords.size()])));
+				wkb.endLineString();
 			}
 		}
-		if (linestrings.size() > 0) {
-			return geomF.createMultiLineString(linestrings.toArray(new LineString[linestrings.size()]));
+		if (wkb.endMultiLineString() > 0) {
+			return wkb.toByteArray();
 		} else {
 			return null;
 		}
 
 	}
 
+	@Override
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	@Override
+	public void commit() {
+		try {
+			con.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * deletes the rows of the given gpx ids.
+	 */
+	@Override
+	public void discard(int[] ids) {
+		Integer[] values = new Integer[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			values[i] = ids[i];
+		}
+		PreparedStatement delete;
+		try {
+			Array array = con.createArrayOf("integer", values);
+			delete = con.prepareStatement("DELETE FROM " + table + " WHERE gpx_id = ANY(?)");
+			delete.setArray(1, array);
+			LOGGER.info(delete.executeUpdate() + " rows discarded from " + table);
+			delete.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
 	@Override
 	public void close() {
 		// close connection
 
 		try {
+			if (con != null) {
+				con.commit();
+			}
 
 			if (insert != null) {
 				insert.close();
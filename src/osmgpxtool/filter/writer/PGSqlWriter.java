@@ -1,6 +1,6 @@
 package osmgpxtool.filter.writer;
 
-import java.math.BigDecimal;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -11,19 +11,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import osmgpxtool.filter.GpxFilter;
-import osmgpxtool.filter.gpx.schema10.Gpx;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg.Trkpt;
+import osmgpxtool.filter.TrackClipper;
+import osmgpxtool.filter.gpx.GpxTrace;
+import osmgpxtool.filter.gpx.GpxTrack;
 import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
+import osmgpxtool.util.WkbEncoder;
 
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.geom.PrecisionModel;
-import com.vividsolutions.jts.io.WKBWriter;
-
-public class PGSqlWriter implements Writer {
+public class PGSqlWriter implements ResumableWriter {
 	static Logger LOGGER = LoggerFactory.getLogger(PGSqlWriter.class);
 
 	private String dbName;
@@ -36,11 +30,17 @@ public class PGSqlWriter implements Writer {
 	private PreparedStatement insert_data;
 
 	private GpxFilter filter;
+	private boolean resume = false;
+	private String infoTable = "gpx_info";
+	private String dataTable = "gpx_data";
+	private WkbEncoder wkb = new WkbEncoder();
+	private TrackClipper clipper;
 
 	/**
 	 * Writer for Gps traces to PostgresQL/PostGIS database. The writer creates
 	 * a new table named "gpx_planet". If the table exists already, the old one
-	 * will be overwritten.
+	 * will be overwritten. When an interrupted import is resumed
+	 * ({@link #setResume(boolean)}), the existing tables are kept.
 	 * 
 	 * @param dbName
 	 * @param dbUser
@@ -56,6 +56,21 @@ public class PGSqlWriter implements Writer {
 		this.dbHost = dbHost;
 		this.dbPort = dbPort;
 		this.filter = filter;
+		this.clipper = new TrackClipper(filter);
+	}
+
+	/**
+	 * appends a suffix to the names of the tables, so that several writers
+	 * can write into the same database. Must be called before
+	 * {@link #init()}.
+	 * 
+	 * @param suffix
+	 *            e.g. "_heidelberg" for the tables gpx_info_heidelberg and
+	 *            gpx_data_heidelberg
+	 */
+	public void setTableSuffix(String suffix) {
+		this.infoTable = "gpx_info" + suffix;
+		this.dataTable = "gpx_data" + suffix;
 	}
 
 	/**
@@ -67,14 +82,18 @@ public class PGSqlWriter implements Writer {
 		LOGGER.info("connect to database: " + dbName + ", " + dbHost + ":" + dbPort + " with user: " + dbUser);
 		connectToDatabase();
 		LOGGER.info("Connection successful!");
-		createTable();
+		if (resume) {
+			LOGGER.info("Appending to existing tables");
+		} else {
+			createTable();
+		}
 
 		// prepare insert statement
 		try {
 			insert_info = con
-					.prepareStatement("INSERT INTO gpx_info(gpx_id,tags,points,uid,\"user\",visibility,description) VALUES(?,?,?,?,?,?,?)");
+					.prepareStatement("INSERT INTO " + infoTable + "(gpx_id,tags,points,uid,\"user\",visibility,description) VALUES(?,?,?,?,?,?,?)");
 			insert_data = con
-					.prepareStatement("INSERT INTO gpx_data(gpx_id,trk_id,trkseg_id,trkpt_id,timestamp,geom) VALUES(?,?,?,?,?,ST_GeomFromEWKB(?))");
+					.prepareStatement("INSERT INTO " + dataTable + "(gpx_id,trk_id,trkseg_id,trkpt_id,timestamp,geom) VALUES(?,?,?,?,TIMESTAMPTZ 'epoch' + ? * INTERVAL '1 millisecond',ST_GeomFromEWKB(?))");
 
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -90,14 +109,15 @@ public class PGSqlWriter implements Writer {
 		Statement create = null;
 		try {
 			create = con.createStatement();
-			create.addBatch("DROP TABLE IF EXISTS gpx_info cascade;");
-			create.addBatch("CREATE TABLE gpx_info(\"gpx_id\" int CONSTRAINT \"gpx_info_id\" PRIMARY KEY,\"tags\" text[],\"points\" integer,\"uid\" integer,\"user\" text,\"visibility\" text,\"description\" text);");
-			create.addBatch("DROP TABLE IF EXISTS gpx_data;");
-			create.addBatch("CREATE TABLE gpx_data(\"gpx_id\" integer references gpx_info(gpx_id),\"trk_id\" integer,\"trkseg_id\" integer,\"trkpt_id\" integer,\"timestamp\" text,geom geometry(PointZ,4326),PRIMARY KEY(gpx_id, trk_id, trkseg_id, trkpt_id));");
-			create.addBatch("DROP INDEX IF EXISTS gpx_data_geom_index;");
-			create.addBatch("CREATE INDEX gpx_data_geom_index ON gpx_data USING gist (geom);");
+			create.addBatch("DROP TABLE IF EXISTS " + infoTable + " cascade;");
+			create.addBatch("CREATE TABLE " + infoTable + "(\"gpx_id\" int CONSTRAINT \"" + infoTable + "_id\" PRIMARY KEY,\"tags\" text[],\"points\" integer,\"uid\" integer,\"user\" text,\"visibility\" text,\"description\" text);");
+			create.addBatch("DROP TABLE IF EXISTS " + dataTable + ";");
+			create.addBatch("CREATE TABLE " + dataTable + "(\"gpx_id\" integer references " + infoTable + "(gpx_id),\"trk_id\" integer,\"trkseg_id\" integer,\"trkpt_id\" integer,\"timestamp\" timestamptz,geom geometry(PointZ,4326),PRIMARY KEY(gpx_id, trk_id, trkseg_id, trkpt_id));");
+			create.addBatch("DROP INDEX IF EXISTS " + dataTable + "_geom_index;");
+			create.addBatch("CREATE INDEX " + dataTable + "_geom_index ON " + dataTable + " USING gist (geom);");
 			create.executeBatch();
 			create.close();
+			con.commit();
 		} catch (SQLException e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -113,7 +133,9 @@ public class PGSqlWriter implements Writer {
 
 		try {
 			con = DriverManager.getConnection(url, dbUser, dbPassword);
-			con.setAutoCommit(true);
+			// rows are committed by commit(), so that the import can be
+			// resumed from the last checkpoint
+			con.setAutoCommit(false);
 
 		} catch (SQLException ex) {
 			LOGGER.error("Could not connect to database");
@@ -130,14 +152,14 @@ public class PGSqlWriter implements Writer {
 	 * geometry is written to relation gpx_data as 3D Points.
 	 */
 	@Override
-	public void write(Gpx gpx, String filename, GpxFile metadata) {
+	public void write(GpxTrace trace, String filename, GpxFile metadata) {
 		if (metadata == null) {
 			LOGGER.warn("Skipped because of missing metadata: " + filename);
-		} else {
+		} else if (filter.checkMetadata(metadata)) {
 			boolean metadataWritten = false;
-			for (int i = 0; i < gpx.getTrk().size(); i++) {
-				Trk trk = gpx.getTrk().get(i);
-				if (filter.check(trk)) {
+			for (int i = 0; i < trace.getTracks().size(); i++) {
+				GpxTrack trk = trace.getTracks().get(i);
+				if (filter.check(trace, i)) {
 					if (metadataWritten == false) {
 						writeMetadata(metadata);
 						metadataWritten = true;
@@ -149,45 +171,44 @@ public class PGSqlWriter implements Writer {
 		}
 	}
 
-	private void writeGeometry(Trk trk, int gpx_id, int trk_id) {
-		GeometryFactory geomF = new GeometryFactory(new PrecisionModel(), 4326);
-		WKBWriter wr = new WKBWriter(3, true);
+	/**
+	 * adds a row per track point inside the bounding box to the batch and
+	 * executes it. Package-private, so that PointPathBenchmark can measure
+	 * the loop.
+	 */
+	void writeGeometry(GpxTrack trk, int gpx_id, int trk_id) {
 		try {
 
-			// loop through track segements
-			for (int trkseg_id = 0; trkseg_id < trk.getTrkseg().size(); trkseg_id++) {
-				Trkseg seg = trk.getTrkseg().get(trkseg_id);
+			// loop through the parts of the track segements inside the
+			// bounding box (if parameter -c is set)
+			int pieces = clipper.clip(trk);
+			for (int p = 0; p < pieces; p++) {
+				int trkseg_id = clipper.getSegment(p);
+				int start = trk.getSegmentStart(trkseg_id);
 				// loop through trackpoints
-				for (int trkpt_id = 0; trkpt_id < seg.getTrkpt().size(); trkpt_id++) {
-					Trkpt trkpt = seg.getTrkpt().get(trkpt_id);
-					BigDecimal ele;
-					// TODO find better way to handle data if -e attribute
-					// is
-					// not set
-					if (trkpt.getEle() != null) {
-						ele = trkpt.getEle();
-					} else {
-						ele = new BigDecimal(-999.0);
-					}
+				for (int c = clipper.getPieceStart(p); c < clipper.getPieceEnd(p); c++) {
+					// interpolated boundary points have no trkpt_id
+					int i = clipper.getSource(c);
+					if (i >= 0) {
+						// TODO find better way to handle data if -e attribute
+						// is
+						// not set
+						double ele = trk.hasEle(i) ? trk.getEle(i) : -999.0;
 
-					// add data to featureBuilder and create feature
-					Coordinate c = new Coordinate(trkpt.getLon().doubleValue(), trkpt.getLat().doubleValue(),
-							ele.doubleValue());
-					if (filter.isInBbox(c)) {
-						Point point = geomF.createPoint(c);
 						insert_data.setInt(1, gpx_id);
 						insert_data.setInt(2, trk_id);
 						insert_data.setInt(3, trkseg_id);
-						insert_data.setInt(4, trkpt_id);
-						if (trkpt.getTime() != null) {
-							insert_data.setString(5, trkpt.getTime().toString());
+						insert_data.setInt(4, i - start);
+						// time is passed as UTC milliseconds
+						if (trk.hasTime(i)) {
+							insert_data.setLong(5, trk.getTime(i));
 						} else {
-							insert_data.setNull(5, java.sql.Types.INTEGER);
+							insert_data.setNull(5, java.sql.Types.BIGINT);
 						}
 
-						insert_data.setObject(6, wr.write(point), java.sql.Types.BINARY);
-						// if parameter -c is set (clip at bounding box)
-
+						// the batch keeps the array, so each row needs its own
+						insert_data.setObject(6, wkb.point(trk.getLon(i), trk.getLat(i), ele, 4326).toByteArray(),
+								java.sql.Types.BINARY);
 						insert_data.addBatch();
 
 					}
@@ -233,11 +254,55 @@ public class PGSqlWriter implements Writer {
 
 	}
 
+	@Override
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	@Override
+	public void commit() {
+		try {
+			con.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * deletes the rows of the given gpx ids.
+	 */
+	@Override
+	public void discard(int[] ids) {
+		Integer[] values = new Integer[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			values[i] = ids[i];
+		}
+		PreparedStatement delete;
+		try {
+			Array array = con.createArrayOf("integer", values);
+			delete = con.prepareStatement("DELETE FROM " + dataTable + " WHERE gpx_id = ANY(?)");
+			delete.setArray(1, array);
+			LOGGER.info(delete.executeUpdate() + " rows discarded from " + dataTable);
+			delete.close();
+			delete = con.prepareStatement("DELETE FROM " + infoTable + " WHERE gpx_id = ANY(?)");
+			delete.setArray(1, array);
+			LOGGER.info(delete.executeUpdate() + " rows discarded from " + infoTable);
+			delete.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
 	@Override
 	public void close() {
 		// close connection
 
 		try {
+			if (con != null) {
+				con.commit();
+			}
 
 			if (insert_info != null) {
 				insert_info.close();
@@ -0,0 +1,142 @@
+package osmgpxtool.filter.writer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import osmgpxtool.filter.GpxFilter;
+import osmgpxtool.filter.Region;
+import osmgpxtool.filter.RegionSet;
+import osmgpxtool.filter.gpx.GpxTrace;
+import osmgpxtool.filter.gpx.GpxTrack;
+import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Writes every region of a {@link RegionSet} with its own writer, so that
+ * many extracts are cut in one pass over the dump. A gpx file is passed to
+ * the writers of the regions, whose bounding box intersects the bounding box
+ * of the file. Each of these writers applies the filter of its region, which
+ * also clips the tracks at the region, if requested.
+ *
+ * At the end a summary of the written gpx files and tracks of every region is
+ * logged.
+ */
+public class RegionWriter implements Writer {
+	static Logger LOGGER = LoggerFactory.getLogger(RegionWriter.class);
+
+	private GpxFilter filter;
+	private RegionSet regions;
+	protected List<Writer> writers;
+	// gpx files written per region
+	private int[] written;
+
+	/**
+	 * @param filter
+	 *            filter of the region set, which is applied before the files
+	 *            are passed to the writer
+	 * @param writers
+	 *            one writer per region in the order of
+	 *            {@link RegionSet#getRegions()}, each with the filter of its
+	 *            region
+	 */
+	public RegionWriter(GpxFilter filter, List<Writer> writers) {
+		this.filter = filter;
+		this.regions = filter.getRegions();
+		if (regions == null || regions.size() != writers.size()) {
+			throw new IllegalArgumentException("One writer per region needed");
+		}
+		this.writers = new ArrayList<Writer>(writers);
+		this.written = new int[writers.size()];
+	}
+
+	@Override
+	public void init() {
+		for (Writer writer : writers) {
+			writer.init();
+		}
+	}
+
+	/**
+	 * counts the result of the region set filter for every track and passes
+	 * the gpx file to the writers of the regions, which it may intersect.
+	 */
+	@Override
+	public void write(GpxTrace trace, String filename, GpxFile metadata) {
+		if (metadata != null && filter.checkMetadata(metadata)) {
+			for (int i = 0; i < trace.getTracks().size(); i++) {
+				filter.check(trace, i);
+			}
+		}
+		Envelope env = getEnvelope(trace);
+		if (env == null) {
+			return;
+		}
+		for (Region region : regions.query(env)) {
+			Writer writer = writers.get(region.getIndex());
+			long passed = writer.getFilter().getPassed();
+			writer.write(trace, filename, metadata);
+			if (writer.getFilter().getPassed() > passed) {
+				written[region.getIndex()]++;
+			}
+		}
+	}
+
+	/**
+	 * @return bounding box of all track points or null, if the file has no
+	 *         track points
+	 */
+	private static Envelope getEnvelope(GpxTrace trace) {
+		double minLon = Double.POSITIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		double minLat = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		for (GpxTrack trk : trace.getTracks()) {
+			for (int i = 0; i < trk.size(); i++) {
+				minLon = Math.min(minLon, trk.getLon(i));
+				maxLon = Math.max(maxLon, trk.getLon(i));
+				minLat = Math.min(minLat, trk.getLat(i));
+				maxLat = Math.max(maxLat, trk.getLat(i));
+			}
+		}
+		if (minLon > maxLon) {
+			return null;
+		}
+		return new Envelope(minLon, maxLon, minLat, maxLat);
+	}
+
+	/**
+	 * closes the writers and logs the summary of the regions.
+	 */
+	@Override
+	public void close() {
+		for (Writer writer : writers) {
+			writer.close();
+		}
+		LOGGER.info("Summary of " + regions.size() + " regions:");
+		for (Region region : regions.getRegions()) {
+			GpxFilter regionFilter = writers.get(region.getIndex()).getFilter();
+			LOGGER.info(region.getName() + ": " + written[region.getIndex()] + " gpx files, "
+					+ regionFilter.getPassed() + " tracks written, " + regionFilter.getRejected()
+					+ " tracks rejected");
+		}
+	}
+
+	/**
+	 * @return filter of the region set
+	 */
+	@Override
+	public GpxFilter getFilter() {
+		return filter;
+	}
+
+	@Override
+	public void setMetadataFilename(String filename) {
+		for (Writer writer : writers) {
+			writer.setMetadataFilename(filename);
+		}
+	}
+}
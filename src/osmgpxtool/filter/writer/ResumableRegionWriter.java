@@ -0,0 +1,45 @@
+package osmgpxtool.filter.writer;
+
+import java.util.List;
+
+import osmgpxtool.filter.GpxFilter;
+
+/**
+ * {@link RegionWriter} of resumable writers, e.g. a database import of
+ * several regions. The checkpoint of the import covers all regions.
+ */
+public class ResumableRegionWriter extends RegionWriter implements ResumableWriter {
+
+	/**
+	 * @see RegionWriter#RegionWriter(GpxFilter, List)
+	 */
+	public ResumableRegionWriter(GpxFilter filter, List<Writer> writers) {
+		super(filter, writers);
+		for (Writer writer : writers) {
+			if (!(writer instanceof ResumableWriter)) {
+				throw new IllegalArgumentException("Writer is not resumable: " + writer.getClass().getSimpleName());
+			}
+		}
+	}
+
+	@Override
+	public void setResume(boolean resume) {
+		for (Writer writer : writers) {
+			((ResumableWriter) writer).setResume(resume);
+		}
+	}
+
+	@Override
+	public void commit() {
+		for (Writer writer : writers) {
+			((ResumableWriter) writer).commit();
+		}
+	}
+
+	@Override
+	public void discard(int[] ids) {
+		for (Writer writer : writers) {
+			((ResumableWriter) writer).discard(ids);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package osmgpxtool.filter.writer;
+
+/**
+ * Writer, whose output can be committed in steps, so that an interrupted run
+ * can be resumed with {@link Checkpoint}.
+ */
+public interface ResumableWriter extends Writer {
+
+	/**
+	 * @param resume
+	 *            if true, {@link #init()} keeps the existing output and the
+	 *            writer appends to it
+	 */
+	public void setResume(boolean resume);
+
+	/**
+	 * makes everything written so far durable.
+	 */
+	public void commit();
+
+	/**
+	 * removes everything written for the given gpx ids. This is used on
+	 * resume for gpx files, whose commit state is unknown.
+	 * 
+	 * @param ids
+	 */
+	public void discard(int[] ids);
+}
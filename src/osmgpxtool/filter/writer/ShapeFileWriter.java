@@ -3,7 +3,7 @@ package osmgpxtool.filter.writer;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.math.BigDecimal;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -26,10 +26,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import osmgpxtool.filter.GpxFilter;
-import osmgpxtool.filter.gpx.schema10.Gpx;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg;
-import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg.Trkpt;
+import osmgpxtool.filter.TrackClipper;
+import osmgpxtool.filter.gpx.GpxTrace;
+import osmgpxtool.filter.gpx.GpxTrack;
 import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -46,6 +45,7 @@ public class ShapeFileWriter implements Writer {
 	private SimpleFeatureBuilder featureBuilder;
 	private Transaction transaction;
 	private SimpleFeatureStore featureStore;
+	private TrackClipper clipper;
 
 	/**
 	 * Writer for gps traces in shapefile as 3D points with corresponding
@@ -58,6 +58,10 @@ public class ShapeFileWriter implements Writer {
 		super();
 		this.outFile = outFile;
 		this.filter = filter;
+		this.clipper = new TrackClipper(filter);
+		// Define Schema
+		this.featureBuilder = new SimpleFeatureBuilder(createFeatureType());
+		this.geomF = new GeometryFactory();
 	}
 
 	/*
@@ -71,11 +75,7 @@ public class ShapeFileWriter implements Writer {
 		file = new File(outFile);
 
 		try {
-			// Define Schema
-			final SimpleFeatureType TYPE = createFeatureType();
-			featureBuilder = new SimpleFeatureBuilder(TYPE);
-
-			geomF = new GeometryFactory();
+			final SimpleFeatureType TYPE = featureBuilder.getFeatureType();
 			ShapefileDataStoreFactory dataStoreFactory = new ShapefileDataStoreFactory();
 
 			// define parameter for ShapeFileDataStore object
@@ -112,20 +112,21 @@ public class ShapeFileWriter implements Writer {
 		builder.add("trk_id", Integer.class);
 		builder.add("seg_id", Integer.class);
 		builder.add("trkpt_id", Integer.class);
-		builder.add("timestamp", String.class);
+		// written as dbf timestamp field
+		builder.add("timestamp", Timestamp.class);
 		builder.add("ele", Double.class);
 
 		return builder.buildFeatureType();
 	}
 
 	@Override
-	public void write(Gpx gpx, String filename, GpxFile metadata) {
+	public void write(GpxTrace trace, String filename, GpxFile metadata) {
 		if (metadata == null) {
 			LOGGER.warn("Skipped because of missing metadata: " + filename);
-		} else {
-			for (int i = 0; i < gpx.getTrk().size(); i++) {
-				Trk trk = gpx.getTrk().get(i);
-				if (filter.check(trk)) {
+		} else if (filter.checkMetadata(metadata)) {
+			for (int i = 0; i < trace.getTracks().size(); i++) {
+				GpxTrack trk = trace.getTracks().get(i);
+				if (filter.check(trace, i)) {
 
 					List<SimpleFeature> featureList = gpxToFeatureList(trk, metadata.getId(), i);
 					SimpleFeatureCollection collection = new ListFeatureCollection(featureStore.getSchema(),
@@ -154,51 +155,50 @@ public class ShapeFileWriter implements Writer {
 		}
 	}
 
-	private List<SimpleFeature> gpxToFeatureList(Trk trk, int gpx_id, int trk_id) {
+	/**
+	 * creates a feature per track point inside the bounding box.
+	 * Package-private, so that PointPathBenchmark can measure the loop.
+	 * 
+	 * @return null, if no track point is inside
+	 */
+	List<SimpleFeature> gpxToFeatureList(GpxTrack trk, int gpx_id, int trk_id) {
 		List<SimpleFeature> featureList = new ArrayList<SimpleFeature>();
 		// loop through tracks
 
-		// loop through track segements
-		for (int trkseg_id = 0; trkseg_id < trk.getTrkseg().size(); trkseg_id++) {
-			Trkseg seg = trk.getTrkseg().get(trkseg_id);
+		// loop through the parts of the track segements inside the bounding
+		// box (if parameter -c is set)
+		int pieces = clipper.clip(trk);
+		for (int p = 0; p < pieces; p++) {
+			int trkseg_id = clipper.getSegment(p);
+			int start = trk.getSegmentStart(trkseg_id);
 
 			// loop through trackpoints
-			for (int trkpt_id = 0; trkpt_id < seg.getTrkpt().size(); trkpt_id++) {
-				Trkpt trkpt = seg.getTrkpt().get(trkpt_id);
-				BigDecimal ele;
+			for (int c = clipper.getPieceStart(p); c < clipper.getPieceEnd(p); c++) {
+				// interpolated boundary points have no trkpt_id
+				int i = clipper.getSource(c);
+				if (i < 0) {
+					continue;
+				}
 				// TODO find better way to handle data if -e attribute is
 				// not set
-				if (trkpt.getEle() != null) {
-					ele = trkpt.getEle();
-				} else {
-					ele = new BigDecimal(-999.0);
-				}
+				double ele = trk.hasEle(i) ? trk.getEle(i) : -999.0;
 
 				// add data to featureBuilder and create feature
-				// Coordinate c = new
-				// Coordinate(trkpt.getLon().doubleValue(),
-				// trkpt.getLat().doubleValue(), ele.doubleValue());
-				Coordinate c = new Coordinate(trkpt.getLon().doubleValue(), trkpt.getLat().doubleValue(),
-						ele.doubleValue());
-				Point point = geomF.createPoint(c);
+				Point point = geomF.createPoint(new Coordinate(trk.getLon(i), trk.getLat(i), ele));
 				featureBuilder.add(point);
 				featureBuilder.add(gpx_id);
 				featureBuilder.add(trk_id);
 				featureBuilder.add(trkseg_id);
-				featureBuilder.add(trkpt_id);
-				if (trkpt.getTime() != null) {
-					featureBuilder.add(trkpt.getTime().toString());
+				featureBuilder.add(i - start);
+				if (trk.hasTime(i)) {
+					featureBuilder.add(new Timestamp(trk.getTime(i)));
 				} else {
 					featureBuilder.add(null);
 				}
 
-				featureBuilder.add(ele.doubleValue());
+				featureBuilder.add(ele);
 
-				SimpleFeature feature = featureBuilder.buildFeature(null);
-				// if parameter -c is set (clip at bounding box)
-				if (filter.isInBbox(c)) {
-					featureList.add(feature);
-				}
+				featureList.add(featureBuilder.buildFeature(null));
 			}
 
 		}
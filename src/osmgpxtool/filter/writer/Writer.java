@@ -4,17 +4,18 @@
 package osmgpxtool.filter.writer;
 
 import osmgpxtool.filter.GpxFilter;
-import osmgpxtool.filter.gpx.schema10.Gpx;
+import osmgpxtool.filter.gpx.GpxTrace;
 import osmgpxtool.filter.metadata.schema.GpxFiles.GpxFile;
 
 public interface Writer {
 	
 	/**
-	 * @param gpx
+	 * @param trace
+	 *            tracks of the gpx file
 	 * @param filename
 	 * @param metadata
 	 */
-	public void write(Gpx gpx, String filename, GpxFile metadata);
+	public void write(GpxTrace trace, String filename, GpxFile metadata);
 
 	public void init();
 
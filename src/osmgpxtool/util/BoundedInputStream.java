@@ -0,0 +1,72 @@
+package osmgpxtool.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream reading at most a given number of bytes from the underlying
+ * stream. Closing this stream does not close the underlying stream.
+ */
+public class BoundedInputStream extends FilterInputStream {
+	private long remaining;
+
+	/**
+	 * @param in
+	 * @param size
+	 *            number of bytes, which can be read
+	 */
+	public BoundedInputStream(InputStream in, long size) {
+		super(in);
+		this.remaining = size;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (remaining <= 0) {
+			return -1;
+		}
+		int b = in.read();
+		if (b >= 0) {
+			remaining--;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (remaining <= 0) {
+			return -1;
+		}
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n > 0) {
+			remaining -= n;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long s = in.skip(Math.min(n, remaining));
+		remaining -= s;
+		return s;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() {
+		// the underlying stream stays open
+	}
+}
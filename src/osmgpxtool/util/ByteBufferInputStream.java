@@ -0,0 +1,65 @@
+package osmgpxtool.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream reading the remaining bytes of a ByteBuffer. The stream can be
+ * reused for other buffers with {@link #reset(ByteBuffer)}, so that no stream
+ * object needs to be created per buffer.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private ByteBuffer buffer;
+
+	public ByteBufferInputStream() {
+	}
+
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * sets the buffer to read from. The position of the given buffer is
+	 * advanced while reading.
+	 *
+	 * @param buffer
+	 * @return this stream
+	 */
+	public ByteBufferInputStream reset(ByteBuffer buffer) {
+		this.buffer = buffer;
+		return this;
+	}
+
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		int s = (int) Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + s);
+		return s;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+}
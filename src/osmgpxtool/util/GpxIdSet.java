@@ -0,0 +1,156 @@
+package osmgpxtool.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe set of gpx ids, stored as a bitmap. The bitmap is divided into
+ * pages of {@link #PAGE_SIZE} ids, which are allocated when the first id of
+ * the page is added. A page needs 8 KB, so tens of millions of ids take a few
+ * megabytes, and ids are added and tested in constant time without locking.
+ */
+public class GpxIdSet {
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<AtomicLongArray>(
+			1 << (31 - PAGE_BITS));
+	private AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * adds the given id.
+	 *
+	 * @param id
+	 *            non-negative gpx id
+	 * @return true, if the id has not been contained in the set before
+	 */
+	public boolean add(int id) {
+		if (id < 0) {
+			throw new IllegalArgumentException("Negative gpx id: " + id);
+		}
+		AtomicLongArray page = pages.get(id >>> PAGE_BITS);
+		if (page == null) {
+			pages.compareAndSet(id >>> PAGE_BITS, null, new AtomicLongArray(PAGE_SIZE / 64));
+			page = pages.get(id >>> PAGE_BITS);
+		}
+		int word = (id & PAGE_MASK) >>> 6;
+		long bit = 1L << id;
+		while (true) {
+			long value = page.get(word);
+			if ((value & bit) != 0) {
+				return false;
+			}
+			if (page.compareAndSet(word, value, value | bit)) {
+				size.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return true, if the set contains the given id
+	 */
+	public boolean contains(int id) {
+		if (id < 0) {
+			return false;
+		}
+		AtomicLongArray page = pages.get(id >>> PAGE_BITS);
+		return page != null && (page.get((id & PAGE_MASK) >>> 6) & (1L << id)) != 0;
+	}
+
+	/**
+	 * returns the smallest id of the set, which is greater than or equal to
+	 * the given id.
+	 *
+	 * @param from
+	 * @return the id or -1, if there is no such id
+	 */
+	public int nextId(int from) {
+		for (int p = from >>> PAGE_BITS; p < pages.length(); p++) {
+			AtomicLongArray page = pages.get(p);
+			if (page == null) {
+				continue;
+			}
+			int start = p == from >>> PAGE_BITS ? from & PAGE_MASK : 0;
+			for (int i = start; i < PAGE_SIZE; i++) {
+				long word = page.get(i >>> 6) >>> i;
+				if (word == 0) {
+					// skip to the next word
+					i |= 63;
+					continue;
+				}
+				i += Long.numberOfTrailingZeros(word);
+				return (p << PAGE_BITS) | i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return number of ids in the set
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * writes the allocated pages of the set. Ids added concurrently may or may
+	 * not be contained in the written set.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		int count = 0;
+		for (int p = 0; p < pages.length(); p++) {
+			if (pages.get(p) != null) {
+				count++;
+			}
+		}
+		out.writeInt(count);
+		for (int p = 0; p < pages.length() && count > 0; p++) {
+			AtomicLongArray page = pages.get(p);
+			if (page != null) {
+				out.writeInt(p);
+				for (int i = 0; i < page.length(); i++) {
+					out.writeLong(page.get(i));
+				}
+				count--;
+			}
+		}
+	}
+
+	/**
+	 * reads a set written by {@link #write(DataOutput)}.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static GpxIdSet read(DataInput in) throws IOException {
+		GpxIdSet set = new GpxIdSet();
+		int count = in.readInt();
+		for (int n = 0; n < count; n++) {
+			int p = in.readInt();
+			if (p < 0 || p >= set.pages.length()) {
+				throw new IOException("Invalid page of gpx id set: " + p);
+			}
+			AtomicLongArray page = new AtomicLongArray(PAGE_SIZE / 64);
+			int size = 0;
+			for (int i = 0; i < page.length(); i++) {
+				long word = in.readLong();
+				page.set(i, word);
+				size += Long.bitCount(word);
+			}
+			set.pages.set(p, page);
+			set.size.addAndGet(size);
+		}
+		return set;
+	}
+}
@@ -1,15 +1,23 @@
 package osmgpxtool.util;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.stream.StreamSource;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import osmgpxtool.filter.gpx.GpxStreamParser;
+import osmgpxtool.filter.gpx.GpxTrace;
+
 import osmgpxtool.filter.gpx.schema10.Gpx;
 import osmgpxtool.filter.gpx.schema10.Gpx.Trk;
 import osmgpxtool.filter.gpx.schema10.Gpx.Trk.Trkseg;
@@ -20,11 +28,32 @@ import osmgpxtool.filter.gpx.schema11.TrksegType;
 import osmgpxtool.filter.gpx.schema11.WptType;
 
 public class Marshaller {
+	static Logger LOGGER = LoggerFactory.getLogger(Marshaller.class);
+	// bytes searched for the root element by sniffVersion
+	private static final int SNIFF_LIMIT = 16 * 1024;
 	private Unmarshaller unmarshaller10 = null;
 	private Unmarshaller unmarshaller11 = null;
 	private javax.xml.bind.Marshaller marshaller10 = null;
+	private GpxStreamParser streamParser = null;
+	private ByteBufferInputStream streamIn = new ByteBufferInputStream();
 
+	/**
+	 * Marshaller, which reads gpx files with the streaming parser and uses
+	 * JAXB only as fallback.
+	 */
 	public Marshaller() {
+		this(true);
+	}
+
+	/**
+	 * @param streaming
+	 *            if true, gpx files are read with the streaming parser by
+	 *            {@link #unmarshal(byte[])}. Otherwise, JAXB is used.
+	 */
+	public Marshaller(boolean streaming) {
+		if (streaming) {
+			streamParser = new GpxStreamParser();
+		}
 		try {
 			unmarshaller10 = JAXBContext.newInstance("osmgpxtool.filter.gpx.schema10").createUnmarshaller();
 			unmarshaller11 = JAXBContext.newInstance("osmgpxtool.filter.gpx.schema11").createUnmarshaller();
@@ -38,21 +67,148 @@ public class Marshaller {
 
 	}
 
+	/**
+	 * reads the given gpx file (version 1.0 or 1.1). The file is parsed with
+	 * the streaming parser, unless it is disabled or fails for the given file.
+	 * In these cases the file is unmarshalled with JAXB.
+	 * 
+	 * @param content
+	 * @return gpx in version 1.0
+	 * @throws JAXBException
+	 */
+	public Gpx unmarshal(byte[] content) throws JAXBException {
+		return unmarshal(ByteBuffer.wrap(content));
+	}
+
+	/**
+	 * reads the gpx file from the remaining bytes of the given buffer. The
+	 * position of the buffer is not changed.
+	 * 
+	 * @see #unmarshal(byte[])
+	 * @param content
+	 * @return gpx in version 1.0
+	 * @throws JAXBException
+	 */
+	public Gpx unmarshal(ByteBuffer content) throws JAXBException {
+		if (streamParser != null) {
+			try {
+				return streamParser.parse(streamIn.reset(content.duplicate())).toGpx();
+			} catch (XMLStreamException e) {
+				LOGGER.debug("Streaming parser failed, falling back to JAXB: " + e.getMessage());
+			}
+		}
+		return unmarshalAndConvertToGpx10(content);
+	}
+
+	/**
+	 * reads a gpx file from the given stream. As the stream can only be read
+	 * once, there is no fallback if the streaming parser fails, and gpx files
+	 * of version 1.1 can only be read by the streaming parser.
+	 * 
+	 * @param in
+	 * @return gpx in version 1.0
+	 * @throws JAXBException
+	 */
+	public Gpx unmarshal(InputStream in) throws JAXBException {
+		if (streamParser != null) {
+			try {
+				return streamParser.parse(in).toGpx();
+			} catch (XMLStreamException e) {
+				throw new JAXBException(e.getMessage(), e);
+			}
+		}
+		JAXBElement<Gpx> root = (JAXBElement<Gpx>) unmarshaller10.unmarshal(new StreamSource(in), Gpx.class);
+		return root.getValue();
+	}
+
+	/**
+	 * reads the given gpx file (version 1.0 or 1.1) into the columnar
+	 * representation. The file is parsed with the streaming parser, unless
+	 * it is disabled or fails for the given file. In these cases the file is
+	 * unmarshalled with JAXB and converted.
+	 * 
+	 * @param content
+	 * @return tracks of the gpx file, null if the version is not supported
+	 * @throws JAXBException
+	 */
+	public GpxTrace parse(ByteBuffer content) throws JAXBException {
+		if (streamParser != null) {
+			try {
+				return streamParser.parse(streamIn.reset(content.duplicate()));
+			} catch (XMLStreamException e) {
+				LOGGER.debug("Streaming parser failed, falling back to JAXB: " + e.getMessage());
+			}
+		}
+		// files of version 1.1 keep their conversion to version 1.0, which is
+		// written to dumps
+		Gpx gpx = unmarshalAndConvertToGpx10(content, sniffVersion(content));
+		return gpx == null ? null : GpxTrace.fromGpx(gpx);
+	}
+
+	/**
+	 * reads a gpx file from the given stream into the columnar
+	 * representation.
+	 * 
+	 * @see #unmarshal(InputStream)
+	 * @param in
+	 * @return
+	 * @throws JAXBException
+	 */
+	public GpxTrace parse(InputStream in) throws JAXBException {
+		if (streamParser != null) {
+			try {
+				return streamParser.parse(in);
+			} catch (XMLStreamException e) {
+				throw new JAXBException(e.getMessage(), e);
+			}
+		}
+		return GpxTrace.fromGpx(unmarshal(in));
+	}
+
 	public Gpx unmarshalGpx10(byte[] content) throws JAXBException {
+		return unmarshalGpx10(ByteBuffer.wrap(content));
+	}
+
+	public Gpx unmarshalGpx10(ByteBuffer content) throws JAXBException {
 
-		JAXBElement<Gpx> root = (JAXBElement<Gpx>) unmarshaller10.unmarshal(new StreamSource(new ByteArrayInputStream(
-				content)), Gpx.class);
+		JAXBElement<Gpx> root = (JAXBElement<Gpx>) unmarshaller10.unmarshal(new StreamSource(new ByteBufferInputStream(
+				content.duplicate())), Gpx.class);
 		return root.getValue();
 	}
 
 	public GpxType unmarshalGpx11(byte[] content) throws JAXBException {
+		return unmarshalGpx11(ByteBuffer.wrap(content));
+	}
+
+	public GpxType unmarshalGpx11(ByteBuffer content) throws JAXBException {
 
 		JAXBElement<GpxType> root = (JAXBElement<GpxType>) unmarshaller11.unmarshal(new StreamSource(
-				new ByteArrayInputStream(content)), GpxType.class);
+				new ByteBufferInputStream(content.duplicate())), GpxType.class);
 		return root.getValue();
 	}
 
 	public Gpx unmarshalAndConvertToGpx10(byte[] content) throws JAXBException {
+		return unmarshalAndConvertToGpx10(ByteBuffer.wrap(content));
+	}
+
+	/**
+	 * reads a gpx file of version 1.0 or 1.1 with JAXB. The version is taken
+	 * from the root element before the file is parsed, so the file is only
+	 * unmarshalled once with the context of its version. Files of version 1.1
+	 * are converted to version 1.0.
+	 * 
+	 * @param content
+	 * @return gpx in version 1.0, null if the version is not supported
+	 * @throws JAXBException
+	 */
+	public Gpx unmarshalAndConvertToGpx10(ByteBuffer content) throws JAXBException {
+		return unmarshalAndConvertToGpx10(content, sniffVersion(content));
+	}
+
+	private Gpx unmarshalAndConvertToGpx10(ByteBuffer content, String version) throws JAXBException {
+		if ("1.1".equals(version)) {
+			return gpx11ToGpx10(unmarshalGpx11(content));
+		}
 		Gpx gpx = null;
 		gpx = unmarshalGpx10(content);
 		if (gpx != null) {
@@ -60,7 +216,8 @@ public class Marshaller {
 			if (gpx.getVersion().equals("1.0")) {
 				return gpx;
 			} else if (gpx.getVersion().equals("1.1")) {
-				// unmarchal as gpx version 1.1
+				// the version could not be sniffed, unmarchal again as gpx
+				// version 1.1
 				GpxType gpx11 = unmarshalGpx11(content);
 				Gpx gpx10 = gpx11ToGpx10(gpx11);
 				return gpx10;
@@ -84,6 +241,7 @@ public class Marshaller {
 					pt.setLat(p.getLat());
 					pt.setLon(p.getLon());
 					pt.setEle(p.getEle());
+					pt.setTime(p.getTime());
 					trkseg.getTrkpt().add(pt);
 				}
 				trk.getTrkseg().add(trkseg);
@@ -93,6 +251,139 @@ public class Marshaller {
 		return gpx10;
 	}
 
+	/**
+	 * reads the version attribute of the root element from the raw bytes of
+	 * a gpx file. The XML declaration, comments and a document type
+	 * declaration before the root element are skipped. Only ASCII compatible
+	 * encodings are recognized.
+	 * 
+	 * @param content
+	 * @return the version or null, if it could not be determined
+	 */
+	static String sniffVersion(ByteBuffer content) {
+		int pos = content.position();
+		int limit = Math.min(content.limit(), pos + SNIFF_LIMIT);
+		// UTF-8 byte order mark
+		if (limit - pos >= 3 && (content.get(pos) & 0xFF) == 0xEF && (content.get(pos + 1) & 0xFF) == 0xBB
+				&& (content.get(pos + 2) & 0xFF) == 0xBF) {
+			pos += 3;
+		}
+		while (true) {
+			while (pos < limit && isWhitespace(content.get(pos))) {
+				pos++;
+			}
+			if (pos + 1 >= limit || content.get(pos) != '<') {
+				return null;
+			}
+			byte next = content.get(pos + 1);
+			if (next == '?') {
+				pos = skipPast(content, pos + 2, limit, "?>");
+			} else if (next == '!') {
+				if (startsWith(content, pos, limit, "<!--")) {
+					pos = skipPast(content, pos + 4, limit, "-->");
+				} else {
+					// doctype, internal subsets are not supported
+					int end = pos;
+					while (end < limit && content.get(end) != '>' && content.get(end) != '[') {
+						end++;
+					}
+					if (end == limit || content.get(end) == '[') {
+						return null;
+					}
+					pos = end + 1;
+				}
+			} else {
+				break;
+			}
+			if (pos < 0) {
+				return null;
+			}
+		}
+		// root element name, prefix is ignored
+		int nameStart = ++pos;
+		while (pos < limit && !isWhitespace(content.get(pos)) && content.get(pos) != '>' && content.get(pos) != '/') {
+			if (content.get(pos) == ':') {
+				nameStart = pos + 1;
+			}
+			pos++;
+		}
+		if (!startsWith(content, nameStart, pos, "gpx") || pos - nameStart != 3) {
+			return null;
+		}
+		// attributes
+		while (pos < limit) {
+			while (pos < limit && isWhitespace(content.get(pos))) {
+				pos++;
+			}
+			if (pos >= limit || content.get(pos) == '>' || content.get(pos) == '/') {
+				return null;
+			}
+			int attrStart = pos;
+			while (pos < limit && content.get(pos) != '=' && !isWhitespace(content.get(pos))) {
+				pos++;
+			}
+			int attrEnd = pos;
+			while (pos < limit && isWhitespace(content.get(pos))) {
+				pos++;
+			}
+			if (pos + 1 >= limit || content.get(pos) != '=') {
+				return null;
+			}
+			pos++;
+			while (pos < limit && isWhitespace(content.get(pos))) {
+				pos++;
+			}
+			if (pos >= limit || (content.get(pos) != '"' && content.get(pos) != '\'')) {
+				return null;
+			}
+			byte quote = content.get(pos);
+			int valueStart = ++pos;
+			while (pos < limit && content.get(pos) != quote) {
+				pos++;
+			}
+			if (pos >= limit) {
+				return null;
+			}
+			if (attrEnd - attrStart == 7 && startsWith(content, attrStart, attrEnd, "version")) {
+				StringBuilder version = new StringBuilder(pos - valueStart);
+				for (int i = valueStart; i < pos; i++) {
+					version.append((char) (content.get(i) & 0xFF));
+				}
+				return version.toString().trim();
+			}
+			pos++;
+		}
+		return null;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private static boolean startsWith(ByteBuffer content, int pos, int limit, String s) {
+		if (limit - pos < s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (content.get(pos + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return position after the next occurrence of s or -1
+	 */
+	private static int skipPast(ByteBuffer content, int pos, int limit, String s) {
+		for (; pos < limit; pos++) {
+			if (startsWith(content, pos, limit, s)) {
+				return pos + s.length();
+			}
+		}
+		return -1;
+	}
+
 	public byte[] marshal10(Gpx gpx) {
 		byte[] out = null;
 		try {
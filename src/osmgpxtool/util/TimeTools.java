@@ -7,6 +7,8 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.TimeZone;
 
+import javax.xml.bind.DatatypeConverter;
+
 /**
  * Class for getting and parsing and converting different time related stuff.
  * 
@@ -144,4 +146,155 @@ public class TimeTools {
 		sdf.setCalendar(Calendar.getInstance(TimeZone.getTimeZone("GMT")));
 		return sdf.format(millis);
 	}
+
+	private static final ThreadLocal<GregorianCalendar> UTC_CALENDAR = new ThreadLocal<GregorianCalendar>() {
+		@Override
+		protected GregorianCalendar initialValue() {
+			return new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		}
+	};
+
+	/**
+	 * Formats a point in time like the xsd:dateTime values of gpx files in
+	 * UTC.
+	 * 
+	 * e.g.: 1262340000500 is converted to "2010-01-01T10:00:00.500Z";
+	 * 
+	 * @param millis
+	 *            UTC milliseconds value
+	 * @return formatted string: "yyyy-MM-ddTHH:mm:ss[.SSS]Z", milliseconds are
+	 *         omitted if they are 0
+	 */
+	public static String toXmlTime(long millis) {
+		GregorianCalendar gc = UTC_CALENDAR.get();
+		gc.setTimeInMillis(millis);
+		StringBuilder sb = new StringBuilder(24);
+		sb.append(gc.get(Calendar.YEAR)).append('-');
+		pad(sb, gc.get(Calendar.MONTH) + 1, 2).append('-');
+		pad(sb, gc.get(Calendar.DAY_OF_MONTH), 2).append('T');
+		pad(sb, gc.get(Calendar.HOUR_OF_DAY), 2).append(':');
+		pad(sb, gc.get(Calendar.MINUTE), 2).append(':');
+		pad(sb, gc.get(Calendar.SECOND), 2);
+		if (gc.get(Calendar.MILLISECOND) != 0) {
+			pad(sb.append('.'), gc.get(Calendar.MILLISECOND), 3);
+		}
+		return sb.append('Z').toString();
+	}
+
+	private static StringBuilder pad(StringBuilder sb, int value, int digits) {
+		for (int limit = 10; digits > 1; digits--, limit *= 10) {
+			if (value < limit) {
+				sb.append('0');
+			}
+		}
+		return sb.append(value);
+	}
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Parses an xsd:dateTime value, like the time of gpx track points, to UTC
+	 * milliseconds without creating calendar objects.
+	 * <p>
+	 * The common form "yyyy-MM-ddTHH:mm:ss[.S+](Z|&plusmn;hh:mm)" is parsed
+	 * directly, fractions of milliseconds are truncated. Other valid forms
+	 * (e.g. without time zone, which means local time) and years before 1583
+	 * are passed to {@link DatatypeConverter#parseDateTime(String)}. JAXB uses
+	 * the Julian calendar before the Gregorian cutover in October 1582, which
+	 * the direct parsing does not.
+	 * 
+	 * @param s
+	 *            the String to be parsed
+	 * @return UTC milliseconds value
+	 * @throws IllegalArgumentException
+	 *             if s is not a valid xsd:dateTime
+	 */
+	public static long parseXmlTime(String s) {
+		int n = s.length();
+		if (n >= 20 && s.charAt(4) == '-' && s.charAt(7) == '-' && s.charAt(10) == 'T' && s.charAt(13) == ':'
+				&& s.charAt(16) == ':') {
+			int year = digits(s, 0, 4);
+			int month = digits(s, 5, 2);
+			int day = digits(s, 8, 2);
+			int hour = digits(s, 11, 2);
+			int minute = digits(s, 14, 2);
+			int second = digits(s, 17, 2);
+			int pos = 19;
+			int millis = 0;
+			if (pos < n && s.charAt(pos) == '.') {
+				int start = ++pos;
+				while (pos < n && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') {
+					if (pos - start < 3) {
+						millis = millis * 10 + s.charAt(pos) - '0';
+					}
+					pos++;
+				}
+				if (pos == start) {
+					millis = -1;
+				}
+				for (int i = pos - start; i < 3; i++) {
+					millis *= 10;
+				}
+			}
+			int offset = -1;
+			if (pos == n - 1 && s.charAt(pos) == 'Z') {
+				offset = 0;
+			} else if (pos == n - 6 && (s.charAt(pos) == '+' || s.charAt(pos) == '-') && s.charAt(pos + 3) == ':') {
+				int offsetHour = digits(s, pos + 1, 2);
+				int offsetMinute = digits(s, pos + 4, 2);
+				if (offsetHour >= 0 && offsetMinute >= 0 && offsetMinute <= 59
+						&& offsetHour * 60 + offsetMinute <= 14 * 60) {
+					offset = (offsetHour * 60 + offsetMinute) * 60000;
+					if (s.charAt(pos) == '-') {
+						offset = -offset;
+					}
+				}
+			}
+			if (year >= 1583 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month) && hour >= 0
+					&& hour <= 23 && minute >= 0 && minute <= 59 && second >= 0 && second <= 59 && millis >= 0
+					&& offset != -1) {
+				return epochDay(year, month, day) * MILLIS_PER_DAY + ((hour * 60 + minute) * 60 + second) * 1000L
+						+ millis - offset;
+			}
+		}
+		// uncommon or invalid values
+		return DatatypeConverter.parseDateTime(s).getTimeInMillis();
+	}
+
+	/**
+	 * @return value of the decimal digits or -1, if a character is not a
+	 *         digit
+	 */
+	private static int digits(String s, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + c - '0';
+		}
+		return value;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		if (month == 2) {
+			return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+		}
+		return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+	}
+
+	/**
+	 * @return days since 1970-01-01 of the given date of the proleptic
+	 *         gregorian calendar
+	 */
+	private static long epochDay(int year, int month, int day) {
+		// count years from march, so that the leap day is the last day
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
 }
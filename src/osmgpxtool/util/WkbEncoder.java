@@ -0,0 +1,179 @@
+package osmgpxtool.util;
+
+import java.util.Arrays;
+
+/**
+ * Encodes points and linestrings with z coordinate as EWKB directly from
+ * coordinate values. The bytes are the same as written by JTS
+ * <code>new WKBWriter(3, true)</code> for geometries of a GeometryFactory
+ * with the given SRID (big endian, SRID in every geometry), but no
+ * Coordinate, Geometry or stream objects are created. The internal buffer is
+ * reused for the next geometry, so the only allocation per geometry is the
+ * array returned by {@link #toByteArray()}.
+ *
+ * An encoder must not be shared between threads. {@link #forThread()}
+ * returns the encoder of the calling thread.
+ */
+public class WkbEncoder {
+	private static final int WKB_POINT = 1;
+	private static final int WKB_LINESTRING = 2;
+	private static final int WKB_MULTILINESTRING = 5;
+	private static final int FLAG_Z = 0x80000000;
+	private static final int FLAG_SRID = 0x20000000;
+
+	private static final ThreadLocal<WkbEncoder> ENCODERS = new ThreadLocal<WkbEncoder>() {
+		@Override
+		protected WkbEncoder initialValue() {
+			return new WkbEncoder();
+		}
+	};
+
+	private byte[] buffer = new byte[4096];
+	private int position = 0;
+	private int srid = 0;
+
+	// offsets of the element counts, which are written when the geometry is
+	// finished
+	private int multiCountOffset = -1;
+	private int multiCount = 0;
+	private int lineCountOffset = -1;
+	private int lineCount = 0;
+
+	/**
+	 * @return the encoder of the calling thread
+	 */
+	public static WkbEncoder forThread() {
+		return ENCODERS.get();
+	}
+
+	/**
+	 * encodes a single point.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param srid
+	 * @return this encoder, call {@link #toByteArray()} to get the bytes
+	 */
+	public WkbEncoder point(double x, double y, double z, int srid) {
+		position = 0;
+		this.srid = srid;
+		writeHeader(WKB_POINT);
+		writeCoordinate(x, y, z);
+		return this;
+	}
+
+	/**
+	 * starts a multilinestring. Add the linestrings with
+	 * {@link #startLineString()}, {@link #addPoint(double, double, double)}
+	 * and {@link #endLineString()}.
+	 *
+	 * @param srid
+	 */
+	public void startMultiLineString(int srid) {
+		position = 0;
+		this.srid = srid;
+		writeHeader(WKB_MULTILINESTRING);
+		multiCountOffset = position;
+		multiCount = 0;
+		writeInt(0);
+	}
+
+	/**
+	 * starts a linestring of the current multilinestring.
+	 */
+	public void startLineString() {
+		if (multiCountOffset < 0 || lineCountOffset >= 0) {
+			throw new IllegalStateException("No multilinestring started or linestring not ended");
+		}
+		writeHeader(WKB_LINESTRING);
+		lineCountOffset = position;
+		lineCount = 0;
+		writeInt(0);
+	}
+
+	/**
+	 * adds a point to the current linestring.
+	 */
+	public void addPoint(double x, double y, double z) {
+		writeCoordinate(x, y, z);
+		lineCount++;
+	}
+
+	/**
+	 * ends the current linestring.
+	 */
+	public void endLineString() {
+		putInt(lineCountOffset, lineCount);
+		lineCountOffset = -1;
+		multiCount++;
+	}
+
+	/**
+	 * ends the current multilinestring.
+	 *
+	 * @return number of linestrings
+	 */
+	public int endMultiLineString() {
+		if (lineCountOffset >= 0) {
+			throw new IllegalStateException("Linestring not ended");
+		}
+		putInt(multiCountOffset, multiCount);
+		multiCountOffset = -1;
+		return multiCount;
+	}
+
+	/**
+	 * @return copy of the encoded geometry
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, position);
+	}
+
+	/**
+	 * @return number of encoded bytes
+	 */
+	public int size() {
+		return position;
+	}
+
+	private void writeHeader(int type) {
+		ensureCapacity(9);
+		// big endian
+		buffer[position++] = 0;
+		writeInt(type | FLAG_Z | FLAG_SRID);
+		writeInt(srid);
+	}
+
+	private void writeCoordinate(double x, double y, double z) {
+		ensureCapacity(24);
+		writeLong(Double.doubleToLongBits(x));
+		writeLong(Double.doubleToLongBits(y));
+		writeLong(Double.doubleToLongBits(z));
+	}
+
+	private void writeInt(int v) {
+		ensureCapacity(4);
+		putInt(position, v);
+		position += 4;
+	}
+
+	private void putInt(int offset, int v) {
+		buffer[offset] = (byte) (v >>> 24);
+		buffer[offset + 1] = (byte) (v >>> 16);
+		buffer[offset + 2] = (byte) (v >>> 8);
+		buffer[offset + 3] = (byte) v;
+	}
+
+	private void writeLong(long v) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (v >>> shift);
+		}
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (position + bytes > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+		}
+	}
+}
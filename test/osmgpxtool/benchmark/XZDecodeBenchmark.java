@@ -0,0 +1,169 @@
+package osmgpxtool.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import osmgpxtool.filter.reader.ParallelXZInputStream;
+
+/**
+ * Compares the throughput of the sequential xz decoder with the block
+ * parallel decoder. A synthetic gpx archive with the given number of gpx
+ * files is written as multi-block tar.xz file and read completely with both
+ * decoders.
+ * 
+ * Usage: XZDecodeBenchmark [gpx files] [block size in MB] [threads]
+ */
+public class XZDecodeBenchmark {
+	static Logger LOGGER = LoggerFactory.getLogger(XZDecodeBenchmark.class);
+
+	public static void main(String[] args) throws IOException {
+		int files = args.length > 0 ? Integer.valueOf(args[0]) : 20000;
+		int blockSize = (args.length > 1 ? Integer.valueOf(args[1]) : 8) * 1024 * 1024;
+		int threads = args.length > 2 ? Integer.valueOf(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		File archive = File.createTempFile("osmgpxfilter-benchmark-", ".tar.xz");
+		archive.deleteOnExit();
+		LOGGER.info("Writing synthetic archive with " + files + " gpx files: " + archive);
+		long size = writeArchive(archive, files, blockSize);
+
+		// warm up both decoders once
+		readArchive(ParallelXZInputStream.openSequential(archive));
+		readArchive(ParallelXZInputStream.open(archive, threads));
+
+		long t0 = System.nanoTime();
+		readArchive(ParallelXZInputStream.openSequential(archive));
+		long sequential = System.nanoTime() - t0;
+
+		t0 = System.nanoTime();
+		readArchive(ParallelXZInputStream.open(archive, threads));
+		long parallel = System.nanoTime() - t0;
+
+		LOGGER.info("uncompressed size: " + (size / (1024 * 1024)) + " MB, compressed size: "
+				+ (archive.length() / (1024 * 1024)) + " MB");
+		LOGGER.info("sequential decoder: " + throughput(size, sequential));
+		LOGGER.info("parallel decoder (" + threads + " threads): " + throughput(size, parallel));
+		LOGGER.info(String.format(Locale.ENGLISH, "speedup: %.2f", (double) sequential / parallel));
+		archive.delete();
+	}
+
+	private static String throughput(long bytes, long nanos) {
+		return String.format(Locale.ENGLISH, "%.1f s, %.1f MB/s", nanos / 1e9, bytes / (1024d * 1024d)
+				/ (nanos / 1e9));
+	}
+
+	/**
+	 * reads all entries of the archive and returns the number of bytes read.
+	 */
+	private static long readArchive(InputStream in) throws IOException {
+		TarArchiveInputStream tarIn = new TarArchiveInputStream(in);
+		byte[] buf = new byte[64 * 1024];
+		long bytes = 0;
+		while (tarIn.getNextTarEntry() != null) {
+			int n;
+			while ((n = tarIn.read(buf)) != -1) {
+				bytes += n;
+			}
+		}
+		tarIn.close();
+		return bytes;
+	}
+
+	/**
+	 * writes a tar.xz archive with random gpx tracks. A new xz block is
+	 * started after every blockSize bytes of uncompressed input.
+	 *
+	 * @return uncompressed size of all gpx files
+	 */
+	private static long writeArchive(File archive, int files, final int blockSize) throws IOException {
+		final XZOutputStream xzOut = new XZOutputStream(new BufferedOutputStream(new FileOutputStream(archive)),
+				new LZMA2Options(6));
+		// start a new block after blockSize bytes
+		OutputStream blockOut = new OutputStream() {
+			private long written = 0;
+
+			@Override
+			public void write(int b) throws IOException {
+				xzOut.write(b);
+				count(1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				xzOut.write(b, off, len);
+				count(len);
+			}
+
+			private void count(int len) throws IOException {
+				written += len;
+				if (written >= blockSize) {
+					xzOut.endBlock();
+					written = 0;
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				xzOut.close();
+			}
+		};
+		TarArchiveOutputStream tarOut = new TarArchiveOutputStream(blockOut);
+		Random random = new Random(42);
+		long size = 0;
+		for (int id = 1; id <= files; id++) {
+			byte[] gpx = syntheticGpx(random);
+			String nineDigitId = String.format("%09d", id);
+			TarArchiveEntry entry = new TarArchiveEntry("gpx-planet-benchmark/public/" + nineDigitId.substring(0, 3)
+					+ "/" + nineDigitId.substring(3, 6) + "/" + nineDigitId + ".gpx", true);
+			entry.setSize(gpx.length);
+			tarOut.putArchiveEntry(entry);
+			tarOut.write(gpx);
+			tarOut.closeArchiveEntry();
+			size += gpx.length;
+		}
+		tarOut.close();
+		return size;
+	}
+
+	public static byte[] syntheticGpx(Random random) {
+		SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
+		timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<gpx version=\"1.0\" creator=\"osmgpxfilter\" xmlns=\"http://www.topografix.com/GPX/1/0\">\n");
+		sb.append("  <trk>\n    <trkseg>\n");
+		double lat = random.nextDouble() * 170 - 85;
+		double lon = random.nextDouble() * 360 - 180;
+		double ele = random.nextDouble() * 1000;
+		int points = 50 + random.nextInt(500);
+		long time = 1262304000000L + (long) (random.nextDouble() * 100000000000L);
+		for (int i = 0; i < points; i++) {
+			lat += (random.nextDouble() - 0.5) * 0.001;
+			lon += (random.nextDouble() - 0.5) * 0.001;
+			ele += (random.nextDouble() - 0.5) * 2;
+			time += 1000;
+			sb.append(String.format(Locale.ENGLISH,
+					"      <trkpt lat=\"%.7f\" lon=\"%.7f\">\n        <ele>%.2f</ele>\n        <time>%s</time>\n      </trkpt>\n",
+					lat, lon, ele, timeFormat.format(new Date(time))));
+		}
+		sb.append("    </trkseg>\n  </trk>\n</gpx>\n");
+		return sb.toString().getBytes(Charset.forName("UTF-8"));
+	}
+}
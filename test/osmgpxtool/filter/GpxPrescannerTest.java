@@ -0,0 +1,220 @@
+package osmgpxtool.filter;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+import osmgpxtool.filter.gpx.GpxTrace;
+import osmgpxtool.filter.gpx.GpxTrack;
+import osmgpxtool.util.Marshaller;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Differential test of the {@link GpxPrescanner}: a file rejected by the
+ * scanner must not contain a track, which passes {@link GpxFilter#evaluate}
+ * after parsing it with the streaming parser. The synthetic gpx files contain
+ * the cases, which the scanner has to handle without a parser: namespace
+ * prefixes, comments, CDATA sections, self-closing track points, missing or
+ * empty elevations and track points outside of track segments.
+ */
+public class GpxPrescannerTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int FILES = 2000;
+
+	private Random random;
+	private String prefix;
+
+	@Test
+	public void bbox() {
+		check(new GpxFilter(-1d, 1d, -1d, 1d, false, false));
+		check(new GpxFilter(0d, 10d, 0d, 10d, true, false));
+	}
+
+	@Test
+	public void elevation() {
+		check(new GpxFilter(null, null, null, null, false, true));
+		check(new GpxFilter(-5d, 5d, -5d, 5d, false, true));
+	}
+
+	@Test
+	public void polygon() {
+		Region region = new Region("polygon", new PolygonBoundary(Arrays.asList(new double[] { -4, -4, 4, -4, 0, 4 })));
+		check(new GpxFilter(region, false, false));
+		check(new GpxFilter(region, true, true));
+	}
+
+	@Test
+	public void regions() {
+		List<Region> regions = new ArrayList<Region>();
+		regions.add(new Region("box", new Envelope(10, 12, 10, 12)));
+		regions.add(new Region("triangle", new PolygonBoundary(Arrays.asList(new double[] { -3, -3, 0, -3, -3, 0 }))));
+		check(new GpxFilter(new RegionSet(regions), false));
+		check(new GpxFilter(new RegionSet(regions), true));
+	}
+
+	/**
+	 * scans and parses the same synthetic files for the given filter.
+	 */
+	private void check(GpxFilter filter) {
+		assertTrue(GpxPrescanner.isApplicable(filter));
+		GpxPrescanner scanner = new GpxPrescanner(filter);
+		Marshaller marshaller = new Marshaller(true);
+		random = new Random(11);
+		int parsed = 0;
+		int rejected = 0;
+		for (int i = 0; i < FILES; i++) {
+			byte[] gpx = createGpx();
+			ByteBuffer content = ByteBuffer.wrap(gpx);
+			boolean reject = scanner.reject(content);
+			assertTrue("position of the buffer changed", content.position() == 0);
+
+			GpxTrace trace;
+			try {
+				trace = marshaller.parse(ByteBuffer.wrap(gpx));
+			} catch (Exception e) {
+				// the pipeline drops files, which can not be parsed
+				continue;
+			}
+			parsed++;
+			if (reject) {
+				rejected++;
+				for (GpxTrack track : trace.getTracks()) {
+					if (filter.evaluate(track) == GpxFilter.PASSED) {
+						fail("file rejected by the scanner has a track, which passes the filter:\n"
+								+ new String(gpx, UTF8));
+					}
+				}
+			}
+		}
+		assertTrue("only " + parsed + " files could be parsed", parsed > FILES / 2);
+		assertTrue("no file was rejected", rejected > 0);
+	}
+
+	private byte[] createGpx() {
+		prefix = random.nextInt(5) == 0 ? "g:" : "";
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>\n");
+		if (random.nextInt(10) == 0) {
+			sb.append("<!DOCTYPE gpx>\n");
+		}
+		sb.append("<!-- <trk><trkseg><trkpt lat=\"0\" lon=\"0\"/></trkseg></trk> -->\n");
+		sb.append('<').append(prefix).append("gpx version=\"").append(random.nextBoolean() ? "1.0" : "1.1")
+				.append("\" xmlns").append(prefix.isEmpty() ? "" : ":g")
+				.append("=\"http://www.topografix.com/GPX/1/0\">");
+		if (random.nextInt(4) == 0) {
+			sb.append(start("wpt")).append(" lat=\"0\" lon=\"0\">").append(element("ele", "1")).append(end("wpt"));
+		}
+		if (random.nextInt(6) == 0) {
+			// not a track of the file
+			sb.append("<metadata><trk><trkseg><trkpt lat='0' lon='0'/></trkseg></trk></metadata>");
+		}
+		if (random.nextInt(8) == 0) {
+			sb.append(start("trkpt")).append(" lat='0' lon='0'/>");
+		}
+		int tracks = random.nextInt(4);
+		for (int t = 0; t < tracks; t++) {
+			appendTrack(sb);
+		}
+		sb.append(end("gpx"));
+		return sb.toString().getBytes(UTF8);
+	}
+
+	private void appendTrack(StringBuilder sb) {
+		sb.append(start("trk")).append('>').append(element("name", "a &lt; b"));
+		if (random.nextInt(8) == 0) {
+			sb.append("<extensions><trkseg><trkpt lat='0' lon='0'/><trkpt lat='0' lon='0'/></trkseg></extensions>");
+		}
+		double lat = random.nextDouble() * 40 - 20;
+		double lon = random.nextDouble() * 40 - 20;
+		double missingEle = random.nextInt(3) == 0 ? 0.05 : 0;
+		int segments = random.nextInt(4);
+		for (int s = 0; s < segments; s++) {
+			if (random.nextInt(10) == 0) {
+				// track point outside of a track segment
+				sb.append(start("trkpt")).append(" lat='0' lon='0'>").append(element("ele", "1"))
+						.append(end("trkpt"));
+			}
+			sb.append(start("trkseg")).append('>');
+			int points = random.nextInt(4) == 0 ? random.nextInt(2) : random.nextInt(40);
+			for (int i = 0; i < points; i++) {
+				lat += (random.nextDouble() - 0.5) * 2;
+				lon += (random.nextDouble() - 0.5) * 2;
+				appendPoint(sb, lat, lon, random.nextDouble() >= missingEle);
+				if (random.nextInt(50) == 0) {
+					sb.append("<![CDATA[ <trkpt lat='0' lon='0'><ele>1</ele></trkpt> ]]>");
+				}
+			}
+			sb.append(end("trkseg"));
+		}
+		sb.append(end("trk"));
+	}
+
+	private void appendPoint(StringBuilder sb, double lat, double lon, boolean ele) {
+		char quote = random.nextBoolean() ? '"' : '\'';
+		sb.append(start("trkpt"));
+		if (random.nextInt(3) == 0) {
+			sb.append(" lon").append(random.nextBoolean() ? " = " : "=").append(quote).append(coordinate(lon))
+					.append(quote).append(" lat=").append(quote).append(coordinate(lat)).append(quote);
+		} else {
+			sb.append(" lat=").append(quote).append(coordinate(lat)).append(quote).append("\n lon=").append(quote)
+					.append(coordinate(lon)).append(quote);
+		}
+		if (!ele && random.nextInt(4) == 0) {
+			sb.append("/>");
+			return;
+		}
+		sb.append('>');
+		if (random.nextInt(8) == 0) {
+			sb.append("<extensions><ele>1</ele><trkpt lat='0' lon='0'/></extensions>");
+		}
+		if (ele) {
+			sb.append(element("ele", random.nextInt(5) == 0 ? "5"
+					: String.format(Locale.ENGLISH, "%.2f", random.nextDouble() * 100)));
+		} else if (random.nextInt(3) == 0) {
+			sb.append(random.nextBoolean() ? element("ele", "") : start("ele") + "/>");
+		}
+		if (random.nextInt(10) == 0) {
+			sb.append("<!-- <ele>3</ele> -->");
+		}
+		sb.append(element("time", "2010-01-01T00:00:00Z")).append(end("trkpt"));
+	}
+
+	private String coordinate(double value) {
+		switch (random.nextInt(6)) {
+		case 0:
+			return String.format(Locale.ENGLISH, "%.7f", value);
+		case 1:
+			return String.format(Locale.ENGLISH, "%.3f", value);
+		case 2:
+			return Double.toString(value);
+		case 3:
+			return String.format(Locale.ENGLISH, " %.15f ", value);
+		case 4:
+			return String.format(Locale.ENGLISH, "%.20f", value);
+		default:
+			return String.format(Locale.ENGLISH, "%.1e", value);
+		}
+	}
+
+	private String start(String name) {
+		return "<" + prefix + name;
+	}
+
+	private String end(String name) {
+		return "</" + prefix + name + ">";
+	}
+
+	private String element(String name, String value) {
+		return start(name) + ">" + value + end(name);
+	}
+}
@@ -0,0 +1,146 @@
+package osmgpxtool.filter.writer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import osmgpxtool.benchmark.XZDecodeBenchmark;
+import osmgpxtool.filter.GpxFilter;
+import osmgpxtool.filter.gpx.GpxTrace;
+import osmgpxtool.filter.gpx.GpxTrack;
+import osmgpxtool.util.Marshaller;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * Measures time and heap allocation per track point of the steady-state
+ * processing loop after parsing: the filter and the geometry loops of the
+ * writers (PGSqlWriter.writeGeometry, PGSqlMultilineWriter.prepareGeometry
+ * and ShapeFileWriter.gpxToFeatureList). The database writers bind their rows
+ * to a {@link NullPreparedStatement}, so the allocations of the JDBC driver
+ * are not included. The features of the shapefile writer are built, but not
+ * written. The allocated bytes are taken from the thread allocation counter
+ * of the JVM, so the benchmark needs a HotSpot based JVM. The JTS objects,
+ * which were used by the writers before, are measured for comparison.
+ *
+ * Usage: PointPathBenchmark [gpx files] [iterations]
+ */
+public class PointPathBenchmark {
+	static Logger LOGGER = LoggerFactory.getLogger(PointPathBenchmark.class);
+
+	private static com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	// keeps the results alive, so that the JIT cannot drop the loops
+	private static long sink = 0;
+
+	private static GpxFilter filter;
+	private static PGSqlWriter pointWriter;
+	private static PGSqlMultilineWriter lineWriter;
+	private static ShapeFileWriter shapeWriter;
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.valueOf(args[0]) : 2000;
+		int iterations = args.length > 1 ? Integer.valueOf(args[1]) : 20;
+
+		Marshaller marshaller = new Marshaller();
+		Random random = new Random(42);
+		List<GpxTrack> tracks = new ArrayList<GpxTrack>();
+		long points = 0;
+		for (int i = 0; i < files; i++) {
+			GpxTrace trace = marshaller.parse(ByteBuffer.wrap(XZDecodeBenchmark.syntheticGpx(random)));
+			for (GpxTrack track : trace.getTracks()) {
+				tracks.add(track);
+				points += track.size();
+			}
+		}
+		LOGGER.info(tracks.size() + " tracks with " + points + " points");
+
+		// bbox covering half of the world, clipping and elevation check on
+		filter = new GpxFilter(-180d, 0d, -85d, 85d, true, true);
+		pointWriter = new PGSqlWriter(filter, null, null, null, null, null);
+		setField(pointWriter, "insert_data", new NullPreparedStatement());
+		lineWriter = new PGSqlMultilineWriter(filter, null, null, null, null, null);
+		shapeWriter = new ShapeFileWriter(null, filter);
+
+		// warm up
+		for (int i = 0; i < 3; i++) {
+			for (int mode = 0; mode < 5; mode++) {
+				run(tracks, mode);
+			}
+		}
+
+		measure("filter", tracks, iterations, points, 0);
+		measure("PGSqlWriter", tracks, iterations, points, 1);
+		measure("PGSqlMultilineWriter", tracks, iterations, points, 2);
+		measure("ShapeFileWriter", tracks, iterations, points, 3);
+		measure("JTS Point + WKBWriter", tracks, iterations, points, 4);
+		LOGGER.debug("" + sink);
+	}
+
+	private static void setField(Object object, String name, Object value) throws ReflectiveOperationException {
+		Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(object, value);
+	}
+
+	private static void measure(String name, List<GpxTrack> tracks, int iterations, long points, int mode) {
+		long thread = Thread.currentThread().getId();
+		long bytes = threads.getThreadAllocatedBytes(thread);
+		long t0 = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			run(tracks, mode);
+		}
+		long nanos = System.nanoTime() - t0;
+		bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+		LOGGER.info(String.format(Locale.ENGLISH, "%-24s %8.1f ns/point %8.2f bytes/point", name, (double) nanos
+				/ (points * iterations), (double) bytes / (points * iterations)));
+	}
+
+	private static void run(List<GpxTrack> tracks, int mode) {
+		for (int t = 0; t < tracks.size(); t++) {
+			GpxTrack track = tracks.get(t);
+			switch (mode) {
+			case 0:
+				sink += filter.evaluate(track);
+				break;
+			case 1:
+				pointWriter.writeGeometry(track, 1, t);
+				break;
+			case 2:
+				byte[] geom = lineWriter.prepareGeometry(track);
+				sink += geom == null ? 0 : geom.length;
+				break;
+			case 3:
+				List<SimpleFeature> features = shapeWriter.gpxToFeatureList(track, 1, t);
+				sink += features == null ? 0 : features.size();
+				break;
+			default:
+				encodeJts(track);
+			}
+		}
+	}
+
+	private static void encodeJts(GpxTrack track) {
+		GeometryFactory geomF = new GeometryFactory(new PrecisionModel(), 4326);
+		WKBWriter wr = new WKBWriter(3, true);
+		for (int i = 0; i < track.size(); i++) {
+			if (filter.isInBbox(track.getLon(i), track.getLat(i))) {
+				Coordinate c = new Coordinate(track.getLon(i), track.getLat(i), track.hasEle(i) ? track.getEle(i) : -999.0);
+				byte[] b = wr.write(geomF.createPoint(c));
+				sink += b == null ? 0 : b.length;
+			}
+		}
+	}
+}